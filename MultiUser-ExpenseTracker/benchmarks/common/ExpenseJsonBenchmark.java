@@ -0,0 +1,81 @@
+package common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// ExpenseJson (hand-written codec) against the plain Gson binding it replaced, one expense per
+// operation. Run with -prof gc to see the allocation per record as well:
+//   java -jar target/benchmarks.jar ExpenseJsonBenchmark -prof gc
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpenseJsonBenchmark {
+    private static final String[] CATEGORIES = {"Food", "Transport", "Entertainment", "Shopping",
+            "Bills", "Healthcare", "Education", "Other"};
+    private static final int RECORDS = 1024;
+
+    private final Expense[] expenses = new Expense[RECORDS];
+    private final String[] lines = new String[RECORDS];
+    private final StringBuilder buffer = new StringBuilder(256);
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < RECORDS; i++) {
+            // mostly plain notes, now and then one that needs escaping
+            String note = i % 16 == 0 ? "dinner \"Chez Marie\" & tip" : "note " + i;
+            expenses[i] = new Expense(1 + random.nextInt(50_000) / 100.0, CATEGORIES[random.nextInt(CATEGORIES.length)],
+                    LocalDate.of(2020, 1, 1).plusDays(random.nextInt(5 * 365)), note);
+            lines[i] = ExpenseJson.toJsonReflective(expenses[i]);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (RECORDS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public String encodeCodec() {
+        return ExpenseJson.toJson(expenses[nextIndex()]);
+    }
+
+    @Benchmark
+    public String encodeGson() {
+        return ExpenseJson.toJsonReflective(expenses[nextIndex()]);
+    }
+
+    // the way the server streams GET_EXPENSES and writes snapshots: into a reused buffer
+    @Benchmark
+    public int appendCodec() {
+        buffer.setLength(0);
+        ExpenseJson.appendJson(expenses[nextIndex()], buffer);
+        return buffer.length();
+    }
+
+    @Benchmark
+    public Expense decodeCodec() {
+        return ExpenseJson.fromJson(lines[nextIndex()]);
+    }
+
+    @Benchmark
+    public Expense decodeGson() {
+        return ExpenseJson.fromJsonReflective(lines[nextIndex()]);
+    }
+}
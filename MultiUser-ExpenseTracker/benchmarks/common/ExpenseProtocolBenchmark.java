@@ -0,0 +1,97 @@
+package common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Formatting and parsing the requests themselves, per request: the text protocol's ADD_EXPENSE line
+// and GET_EXPENSES options, and the binary protocol's expense and query encoding
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpenseProtocolBenchmark {
+    private final Expense expense = new Expense(25.5, "Food", LocalDate.of(2024, 1, 15), "Lunch with the team");
+    private final ExpenseQuery query = new ExpenseQuery().category("Food")
+            .dateRange(LocalDate.of(2024, 1, 1), LocalDate.of(2024, 1, 31)).page(0, 50);
+
+    private String addLine;
+    private String[] queryParts;
+    private final BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter();
+    private final BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(Integer.MAX_VALUE);
+    private byte[] expensePayload;
+    private byte[] queryPayload;
+
+    @Setup
+    public void setUp() {
+        addLine = ExpenseProtocol.toServerMessage(expense, "alice");
+        queryParts = query.toCommand("alice").split("\\|");
+        // a category name crosses the wire once per connection and is an id after that, so let both
+        // dictionaries learn it first and measure that steady state
+        byte[] first = payload(writer.begin(BinaryProtocol.ADD_EXPENSE).writeExpense(expense));
+        reader.wrap(first, first.length);
+        reader.readByte();
+        reader.readExpense();
+
+        expensePayload = payload(writer.begin(BinaryProtocol.ADD_EXPENSE).writeExpense(expense));
+        queryPayload = payload(writer.begin(BinaryProtocol.GET_EXPENSES).writeQuery(query));
+    }
+
+    // the frame without its length prefix, which is a single byte for frames this small
+    private static byte[] payload(BinaryProtocol.FrameWriter frame) {
+        byte[] bytes = frame.toFrame();
+        return Arrays.copyOfRange(bytes, 1, bytes.length);
+    }
+
+    @Benchmark
+    public String formatAddText() {
+        return ExpenseProtocol.toServerMessage(expense, "alice");
+    }
+
+    @Benchmark
+    public Expense parseAddText() {
+        return ExpenseProtocol.parseServerMessage(addLine);
+    }
+
+    @Benchmark
+    public String formatQueryText() {
+        return query.toCommand("alice");
+    }
+
+    @Benchmark
+    public ExpenseQuery parseQueryText() {
+        return ExpenseQuery.parse(queryParts, 2);
+    }
+
+    @Benchmark
+    public int formatAddBinary() {
+        return writer.begin(BinaryProtocol.ADD_EXPENSE).writeExpense(expense).frameSize();
+    }
+
+    @Benchmark
+    public Expense parseAddBinary() {
+        reader.wrap(expensePayload, expensePayload.length);
+        reader.readByte();
+        return reader.readExpense();
+    }
+
+    @Benchmark
+    public ExpenseQuery parseQueryBinary() {
+        reader.wrap(queryPayload, queryPayload.length);
+        reader.readByte();
+        return reader.readQuery();
+    }
+}
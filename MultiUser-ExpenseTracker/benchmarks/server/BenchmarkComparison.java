@@ -0,0 +1,132 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Puts two JMH JSON result files (from BenchmarkSuite, or java -jar benchmarks.jar -rf json) side by
+// side. Results are matched on benchmark, parameters and thread count. A change is only called
+// better or worse when it is bigger than the threshold and bigger than both runs' error margins
+// together. Throughput is better when higher, every time-based mode when lower. For SampleTime
+// results the p99 is compared as well.
+//
+// Usage: java -cp target/benchmarks.jar server.BenchmarkComparison <old.json> <new.json> [thresholdPercent]
+public class BenchmarkComparison {
+    private static final class Score {
+        final double value;
+        final double error;
+        final String unit;
+        final boolean higherIsBetter;
+
+        Score(double value, double error, String unit, boolean higherIsBetter) {
+            this.value = value;
+            this.error = error;
+            this.unit = unit;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java server.BenchmarkComparison <old.json> <new.json> [thresholdPercent]");
+            return;
+        }
+        Map<String, Score> before = load(args[0]);
+        Map<String, Score> after = load(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 5.0;
+
+        int better = 0, worse = 0;
+        System.out.printf("%-90s %14s %14s %9s  %s%n", "benchmark", "old", "new", "change", "unit");
+        for (Map.Entry<String, Score> entry : after.entrySet()) {
+            Score now = entry.getValue();
+            Score then = before.get(entry.getKey());
+            if (then == null) {
+                System.out.printf("%-90s %14s %14.3f %9s  %s%n", entry.getKey(), "-", now.value, "new", now.unit);
+                continue;
+            }
+
+            double change = (now.value - then.value) / then.value * 100;
+            String verdict = "";
+            boolean significant = Math.abs(change) >= threshold
+                    || Double.isNaN(change) || Double.isInfinite(change);
+            boolean outsideError = Math.abs(now.value - then.value) > zeroIfNaN(now.error) + zeroIfNaN(then.error);
+            if (significant && outsideError) {
+                boolean improved = now.higherIsBetter ? change > 0 : change < 0;
+                verdict = improved ? "  better" : "  WORSE";
+                if (improved) {
+                    better++;
+                } else {
+                    worse++;
+                }
+            }
+            System.out.printf("%-90s %14.3f %14.3f %+8.1f%%  %s%s%n", entry.getKey(), then.value, now.value,
+                    change, now.unit, verdict);
+        }
+        for (String name : before.keySet()) {
+            if (!after.containsKey(name)) {
+                System.out.printf("%-90s %14.3f %14s %9s%n", name, before.get(name).value, "-", "gone");
+            }
+        }
+        System.out.println();
+        System.out.println(better + " better, " + worse + " worse (threshold " + threshold + "%)");
+    }
+
+    private static double zeroIfNaN(double value) {
+        return Double.isNaN(value) ? 0 : value;
+    }
+
+    private static Map<String, Score> load(String file) throws IOException {
+        JsonArray results = JsonParser.parseString(Files.readString(Paths.get(file), StandardCharsets.UTF_8)).getAsJsonArray();
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (JsonElement element : results) {
+            JsonObject result = element.getAsJsonObject();
+            String mode = result.get("mode").getAsString();
+            StringBuilder name = new StringBuilder(result.get("benchmark").getAsString());
+            if (result.has("params")) {
+                // sorted, so the key doesn't depend on the order JMH wrote them in
+                Map<String, String> params = new TreeMap<>();
+                for (Map.Entry<String, JsonElement> param : result.getAsJsonObject("params").entrySet()) {
+                    params.put(param.getKey(), param.getValue().getAsString());
+                }
+                name.append(params);
+            }
+            name.append(" t=").append(result.get("threads").getAsInt()).append(' ').append(mode);
+
+            JsonObject metric = result.getAsJsonObject("primaryMetric");
+            boolean higherIsBetter = mode.equals("thrpt");
+            String unit = metric.get("scoreUnit").getAsString();
+            scores.put(name.toString(), new Score(metric.get("score").getAsDouble(),
+                    errorOf(metric), unit, higherIsBetter));
+
+            if (mode.equals("sample") && metric.has("scorePercentiles")) {
+                JsonElement p99 = metric.getAsJsonObject("scorePercentiles").get("99.0");
+                if (p99 != null) {
+                    scores.put(name + " p99", new Score(p99.getAsDouble(), Double.NaN, unit, false));
+                }
+            }
+        }
+        return scores;
+    }
+
+    // JMH writes "NaN" when there weren't enough iterations to have an error margin
+    private static double errorOf(JsonObject metric) {
+        JsonElement error = metric.get("scoreError");
+        if (error == null) {
+            return Double.NaN;
+        }
+        try {
+            return error.getAsDouble();
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
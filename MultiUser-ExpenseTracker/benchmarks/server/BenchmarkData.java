@@ -0,0 +1,48 @@
+package server;
+
+import common.Expense;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Synthetic expenses and scratch directories for the benchmarks, the same shape StorageStressTest uses
+final class BenchmarkData {
+    static final String[] CATEGORIES = {"Food", "Transport", "Bills", "Shopping", "Other"};
+
+    private BenchmarkData() {
+    }
+
+    // count should be a power of two, so callers can cycle through them with a mask
+    static Expense[] expenses(int count, int seed) {
+        return history(count, seed).toArray(new Expense[0]);
+    }
+
+    // five years of expenses in random order, always the same for the same seed
+    static List<Expense> history(int rows, int seed) {
+        Random random = new Random(seed);
+        List<Expense> expenses = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            expenses.add(new Expense(1 + random.nextInt(50_000) / 100.0, CATEGORIES[random.nextInt(CATEGORIES.length)],
+                    LocalDate.of(2020, 1, 1).plusDays(random.nextInt(5 * 365)), "note " + i));
+        }
+        return expenses;
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
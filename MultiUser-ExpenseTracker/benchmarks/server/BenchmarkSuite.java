@@ -0,0 +1,70 @@
+package server;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Runs every benchmark once, and StorageBenchmark once per thread count (1, 2, 4 ... maxThreads).
+// Everything lands in one JMH JSON file. Keep one per version and compare two of them with
+// BenchmarkComparison. "quick" cuts warmup and measurement short, for a rough idea in a few minutes.
+//
+// Usage: java -cp target/benchmarks.jar server.BenchmarkSuite [results.json] [maxThreads] [quick]
+public class BenchmarkSuite {
+    private static final String SINGLE_THREADED = "(common\\.ExpenseJsonBenchmark|common\\.ExpenseProtocolBenchmark"
+            + "|server\\.ProcessCommandBenchmark|server\\.ColdStartBenchmark|server\\.LoopbackBenchmark)\\..*";
+    private static final String THREADED = "server\\.StorageBenchmark\\..*";
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        Path results = Paths.get(args.length > 0 ? args[0] : "target/jmh-results.json");
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        boolean quick = args.length > 2 && args[2].equals("quick");
+
+        JsonArray all = new JsonArray();
+        all.addAll(run(SINGLE_THREADED, 1, quick));
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            all.addAll(run(THREADED, threads, quick));
+            if (threads < maxThreads && threads * 2 > maxThreads) {
+                threads = maxThreads / 2; // make sure the last step is exactly maxThreads
+            }
+        }
+
+        Path parent = results.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(results, new GsonBuilder().setPrettyPrinting().create().toJson(all), StandardCharsets.UTF_8);
+        System.out.println("Wrote " + all.size() + " results to " + results);
+    }
+
+    private static JsonArray run(String include, int threads, boolean quick) throws IOException, RunnerException {
+        Path part = Files.createTempFile("jmh-part", ".json");
+        try {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(part.toString());
+            if (quick) {
+                options.warmupIterations(1).measurementIterations(2)
+                        .warmupTime(TimeValue.seconds(1)).measurementTime(TimeValue.seconds(1));
+            }
+            new Runner(options.build()).run();
+            return JsonParser.parseString(Files.readString(part, StandardCharsets.UTF_8)).getAsJsonArray();
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+}
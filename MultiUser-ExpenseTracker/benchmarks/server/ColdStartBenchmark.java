@@ -0,0 +1,113 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.ExpenseSummary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// How long the server takes to get a data/ directory back into memory when it starts, and how long
+// until it can answer its first request. The directory is written once per trial by ExpenseStorage
+// itself: a compacted snapshot per user plus a log tail of 5% of the rows that still has to be
+// replayed, like a server that was killed between two compactions.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ColdStartBenchmark {
+    // users x expenses per user
+    @Param({"10x1000", "100x10000", "10x200000"})
+    public String dataset;
+
+    // lazy loads with warm-up on, otherwise load() would have nothing to wait for
+    @Param({"eager", "parallel", "lazy"})
+    public String startup;
+
+    // JSON snapshots or mapped segments (ServerConfig reads it once, every combination gets its own fork)
+    @Param({"object", "mapped"})
+    public String backend;
+
+    private Path dataDirectory;
+    private PrintStream console;
+    private int expectedRows;
+    private String lastUser;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setProperty("expense.storage.backend", backend);
+
+        String[] size = dataset.split("x");
+        int users = Integer.parseInt(size[0]);
+        int rows = Integer.parseInt(size[1]);
+        int logged = rows / 20;
+
+        dataDirectory = Files.createTempDirectory("expense-bench-coldstart");
+        ExpenseStorage storage = new ExpenseStorage(dataDirectory.toString(), ExpenseStorage.StartupMode.EAGER, false);
+        for (int user = 0; user < users; user++) {
+            String username = "user" + user;
+            storage.addExpenses(username, BenchmarkData.history(rows - logged, user));
+            storage.compact(username);
+            storage.addExpenses(username, BenchmarkData.history(logged, -user));
+        }
+        storage.shutdown();
+        expectedRows = users * rows;
+        lastUser = "user" + (users - 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ServerLog.flush();
+        System.setOut(console);
+        BenchmarkData.deleteRecursively(dataDirectory);
+    }
+
+    // everything in memory
+    @Benchmark
+    public int load() {
+        ExpenseStorage storage = new ExpenseStorage(dataDirectory.toString(),
+                ExpenseStorage.StartupMode.fromString(startup), true);
+        try {
+            storage.awaitLoaded();
+            int rows = storage.getTotalExpenseCount();
+            if (rows != expectedRows) {
+                throw new IllegalStateException("Loaded " + rows + " expenses, expected " + expectedRows);
+            }
+            return rows;
+        } finally {
+            storage.shutdown();
+        }
+    }
+
+    // the first GET_SUMMARY answered, for the user eager loads last
+    @Benchmark
+    public int firstRequest() {
+        ExpenseStorage storage = new ExpenseStorage(dataDirectory.toString(),
+                ExpenseStorage.StartupMode.fromString(startup), false);
+        try {
+            return storage.getSummary(lastUser, ExpenseSummary.GroupBy.MONTH, null, null).size();
+        } finally {
+            storage.shutdown();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import client.ClientConnection;
+import common.Expense;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end request latency over loopback: a real server (Server.main) in the benchmark's JVM and
+// one ClientConnection per benchmark thread. SampleTime gives the latency distribution, so the JSON
+// results carry p50/p90/p99/p99.9 and not just the mean.
+//
+// Server settings are plain system properties read once by ServerConfig. Each parameter
+// combination runs in a fresh fork, so setting them before the server starts is enough.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final int HISTORY = 5_000;
+
+    @Param({"virtual", "nio"})
+    public String engine;
+
+    @Param({"text", "binary"})
+    public String protocol;
+
+    private Path dataDirectory;
+    private PrintStream console;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        dataDirectory = Files.createTempDirectory("expense-bench-loopback");
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        System.setProperty("expense.port", String.valueOf(port));
+        System.setProperty("expense.data.dir", dataDirectory.toString());
+        System.setProperty("expense.server.engine", engine);
+
+        Thread server = new Thread(() -> Server.main(new String[0]), "bench-server");
+        server.setDaemon(true);
+        server.start();
+        waitForServer();
+    }
+
+    private void waitForServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            ClientConnection probe = new ClientConnection("localhost", port, false);
+            if (probe.connect()) {
+                probe.disconnect();
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("Server did not come up on port " + port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        // the server thread dies with the fork
+        ServerLog.flush();
+        System.setOut(console);
+        BenchmarkData.deleteRecursively(dataDirectory);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        ClientConnection connection;
+        String username;
+        Expense[] expenses;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(LoopbackBenchmark bench) {
+            connection = new ClientConnection("localhost", bench.port, bench.protocol.equals("binary"));
+            if (!connection.connect()) {
+                throw new IllegalStateException("Could not connect to the benchmark server");
+            }
+            username = "loopback" + Thread.currentThread().threadId();
+            expenses = BenchmarkData.expenses(1024, (int) Thread.currentThread().threadId());
+            for (String answer : connection.addExpenses(username, BenchmarkData.history(HISTORY, 0))) {
+                if (!answer.startsWith("SUCCESS")) {
+                    throw new IllegalStateException("Preloading failed: " + answer);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            connection.disconnect();
+        }
+
+        Expense nextExpense() {
+            next = (next + 1) & (expenses.length - 1);
+            return expenses[next];
+        }
+    }
+
+    @Benchmark
+    public String addExpense(Client client) {
+        return client.connection.addExpense(client.username, client.nextExpense());
+    }
+
+    @Benchmark
+    public String getPage(Client client, Blackhole blackhole) {
+        return client.connection.getExpenses(client.username, new ExpenseQuery().page(0, 50), blackhole::consume);
+    }
+
+    @Benchmark
+    public String getSummary(Client client, Blackhole blackhole) {
+        return client.connection.getSummary(client.username, ExpenseSummary.GroupBy.MONTH, null, null,
+                blackhole::consume);
+    }
+}
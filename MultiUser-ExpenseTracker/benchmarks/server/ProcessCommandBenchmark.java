@@ -0,0 +1,141 @@
+package server;
+
+import common.Expense;
+import common.ExpenseProtocol;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// One text command through ClientHandler, from the request line to the text of the answer, without
+// the socket. processCommand runs on the calling thread. handleMessage takes the same trip through
+// the worker pool that every real request takes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessCommandBenchmark {
+    private static final int HISTORY = 10_000;
+
+    private Path dataDirectory;
+    private ExpenseStorage storage;
+    private ClientHandler handler;
+    private PrintStream console;
+    private String[] addCommands;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // every command is logged, keep that out of the measurement
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        dataDirectory = Files.createTempDirectory("expense-bench-commands");
+        storage = new ExpenseStorage(dataDirectory.toString());
+        storage.addExpenses("bench", BenchmarkData.history(HISTORY, 1));
+        checkSummaryMatchesFilter();
+        RequestDispatcher dispatcher = new RequestDispatcher(ServerConfig.WORKER_THREADS,
+                ServerConfig.WORKER_QUEUE_CAPACITY, ServerConfig.MAX_CONNECTIONS);
+        handler = new ClientHandler("bench", storage, dispatcher);
+
+        Expense[] expenses = BenchmarkData.expenses(1024, 2);
+        addCommands = new String[expenses.length];
+        for (int i = 0; i < expenses.length; i++) {
+            addCommands[i] = ExpenseProtocol.toServerMessage(expenses[i], "bench");
+        }
+    }
+
+    // The summary and the category filter have to agree on which categories are the same, or the pie
+    // chart shows slices whose rows don't add up. Some rows are added again with the category
+    // lower-cased, then every summary row's count is compared with what its filter returns.
+    private void checkSummaryMatchesFilter() {
+        List<Expense> lowerCased = new ArrayList<>();
+        for (Expense expense : BenchmarkData.history(100, 3)) {
+            lowerCased.add(new Expense(expense.getAmount(), expense.getCategory().toLowerCase(Locale.ROOT),
+                    expense.getDate(), expense.getNote()));
+        }
+        storage.addExpenses("bench", lowerCased);
+
+        int counted = 0;
+        for (ExpenseSummary group : storage.getSummary("bench", ExpenseSummary.GroupBy.CATEGORY, null, null)) {
+            int matches = storage.queryExpenses("bench", new ExpenseQuery().category(group.getKey()).page(0, 1))
+                    .getTotalMatches();
+            if (matches != group.getCount()) {
+                throw new IllegalStateException("Summary counts " + group.getCount() + " expenses in "
+                        + group.getKey() + ", the category filter returns " + matches);
+            }
+            counted += group.getCount();
+        }
+        if (counted != storage.getTotalExpenseCount()) {
+            throw new IllegalStateException("Summary counts " + counted + " expenses, stored "
+                    + storage.getTotalExpenseCount());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.shutdown();
+        ServerLog.flush();
+        System.setOut(console);
+        BenchmarkData.deleteRecursively(dataDirectory);
+    }
+
+    private String nextAdd() {
+        next = (next + 1) & (addCommands.length - 1);
+        return addCommands[next];
+    }
+
+    @Benchmark
+    public String addExpense() {
+        return handler.processCommand(nextAdd()).getText();
+    }
+
+    @Benchmark
+    public String addExpenseDispatched() {
+        return handler.handleMessage(nextAdd()).getText();
+    }
+
+    // head plus the 50 JSON lines, as they'd be written to the socket
+    @Benchmark
+    public int getExpensesPage() {
+        return drain(handler.processCommand("GET_EXPENSES|bench|category=Food|limit=50"));
+    }
+
+    @Benchmark
+    public String getSummary() {
+        return handler.processCommand("GET_SUMMARY|bench|MONTH").getText();
+    }
+
+    private static int drain(Response response) {
+        int length = response.getText().length();
+        if (response.isStreamed()) {
+            List<Expense> chunk;
+            while (!(chunk = response.getRows().next(Response.CHUNK_ROWS)).isEmpty()) {
+                length += Response.encodeChunk(chunk).length();
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,119 @@
+package server;
+
+import common.Expense;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ExpenseStorage add/get throughput. Thread count comes from JMH (-t, or BenchmarkSuite runs
+// 1, 2, 4 ... N). With users=perThread every thread works on its own user, which is the case the
+// per-user locks are for. With users=shared they all fight over one user's lock.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+    @Param({"perThread", "shared"})
+    public String users;
+
+    // rows every user starts with
+    @Param({"10000"})
+    public int history;
+
+    private Path dataDirectory;
+    private ExpenseStorage storage;
+    private PrintStream console;
+    private final AtomicInteger nextUser = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // storage logs every add, keep that out of the measurement
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        dataDirectory = Files.createTempDirectory("expense-bench-storage");
+        storage = new ExpenseStorage(dataDirectory.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.shutdown();
+        ServerLog.flush();
+        System.setOut(console);
+        BenchmarkData.deleteRecursively(dataDirectory);
+    }
+
+    @State(Scope.Thread)
+    public static class UserState {
+        String username;
+        Expense[] expenses;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(StorageBenchmark bench) {
+            int id = bench.nextUser.getAndIncrement();
+            username = bench.users.equals("shared") ? "shared" : "user" + id;
+            expenses = BenchmarkData.expenses(1024, id);
+            if (bench.users.equals("perThread") || id == 0) {
+                bench.storage.addExpenses(username, BenchmarkData.history(bench.history, id));
+            }
+        }
+
+        Expense nextExpense() {
+            next = (next + 1) & (expenses.length - 1);
+            return expenses[next];
+        }
+
+        String nextCategory() {
+            return nextExpense().getCategory();
+        }
+    }
+
+    @Benchmark
+    public void addExpense(UserState user) {
+        storage.addExpense(user.username, user.nextExpense());
+    }
+
+    // the client's first page
+    @Benchmark
+    public ExpensePage getPage(UserState user) {
+        return storage.queryExpenses(user.username, new ExpenseQuery().page(0, 50));
+    }
+
+    // category and month through the indexes, as the client filters them
+    @Benchmark
+    public ExpensePage getFiltered(UserState user) {
+        return storage.queryExpenses(user.username, new ExpenseQuery().category(user.nextCategory())
+                .dateRange(LocalDate.of(2023, Month.MARCH, 1), LocalDate.of(2023, Month.MARCH, 31)).page(0, 50));
+    }
+
+    @Benchmark
+    public List<ExpenseSummary> getSummary(UserState user) {
+        return storage.getSummary(user.username, ExpenseSummary.GroupBy.MONTH, null, null);
+    }
+}
@@ -0,0 +1,152 @@
+package client;
+
+import common.Expense;
+import common.ExpenseSummary;
+
+import javafx.animation.AnimationTimer;
+import javafx.collections.ListChangeListener;
+import javafx.scene.chart.PieChart;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// The pie chart's numbers, kept up to date from the expense table's rows instead of recomputed:
+// every row added to the list adds its amount to its category, every row removed takes it off
+// again, so a batch of rows costs a map lookup per row whatever the size of the history.
+//
+// Each category keeps its PieChart.Data for good and only its value changes, so the chart moves the
+// slice rather than building a new one. Changes are collected and applied at most once a frame, from
+// an AnimationTimer, however many batches arrive in between. Everything runs on the FX thread.
+//
+// Categories that differ only in case are one slice, named after the first spelling seen, the same
+// rule the server's summary and category filter use.
+//
+// A paged table (PagedExpenseList) never has all the rows, so there the totals start from the
+// server's (show) and new expenses are added one by one (add).
+final class CategoryTotals implements ListChangeListener<Expense> {
+    private final PieChart chart;
+    private final Map<String, Category> categories = new HashMap<>();
+    // categories whose slice is out of date
+    private final List<Category> changed = new ArrayList<>();
+    private final AnimationTimer nextFrame = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            stop();
+            scheduled = false;
+            apply();
+        }
+    };
+    private boolean scheduled;
+
+    private static final class Category {
+        private final String key;
+        private final String name;
+        private double total;
+        private int count;
+        private boolean changed;
+        private PieChart.Data slice; // null until the category is first drawn
+
+        Category(String name) {
+            this.key = key(name);
+            this.name = name;
+        }
+    }
+
+    CategoryTotals(PieChart chart) {
+        this.chart = chart;
+    }
+
+    @Override
+    public void onChanged(Change<? extends Expense> change) {
+        if (change.getList().isEmpty()) {
+            // cleared (log out, refresh): no need to take the rows off one at a time
+            clear();
+            return;
+        }
+        while (change.next()) {
+            if (change.wasPermutated()) {
+                // the table was sorted, the totals are the same
+                continue;
+            }
+            for (Expense expense : change.getRemoved()) {
+                count(expense, -1);
+            }
+            for (Expense expense : change.getAddedSubList()) {
+                count(expense, 1);
+            }
+        }
+        schedule();
+    }
+
+    // starts over from one summary row per category
+    void show(List<ExpenseSummary> totals) {
+        clear();
+        for (ExpenseSummary row : totals) {
+            Category category = category(row.getKey());
+            category.total = row.getTotal();
+            category.count = row.getCount();
+            category.changed = true;
+            changed.add(category);
+        }
+        schedule();
+    }
+
+    void add(Expense expense) {
+        count(expense, 1);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!changed.isEmpty() && !scheduled) {
+            scheduled = true;
+            nextFrame.start();
+        }
+    }
+
+    private void count(Expense expense, int sign) {
+        Category category = category(expense.getCategory());
+        category.total += sign * expense.getAmount();
+        category.count += sign;
+        if (!category.changed) {
+            category.changed = true;
+            changed.add(category);
+        }
+    }
+
+    private Category category(String name) {
+        return categories.computeIfAbsent(key(name), key -> new Category(name));
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private void apply() {
+        for (Category category : changed) {
+            category.changed = false;
+            if (category.count <= 0) {
+                if (category.slice != null) {
+                    chart.getData().remove(category.slice);
+                }
+                categories.remove(category.key);
+            } else if (category.slice == null) {
+                category.slice = new PieChart.Data(category.name, category.total);
+                chart.getData().add(category.slice);
+            } else {
+                category.slice.setPieValue(category.total);
+            }
+        }
+        changed.clear();
+    }
+
+    void clear() {
+        nextFrame.stop();
+        scheduled = false;
+        categories.clear();
+        changed.clear();
+        chart.getData().clear();
+    }
+}
@@ -1,10 +1,11 @@
 package client;
 
 import common.Expense;
-import common.ExpenseJson;
-import common.ExpenseProtocol;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
 
 import javafx.application.Application;
+import javafx.concurrent.Task;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -13,6 +14,7 @@ import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.layout.VBox;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.Region;
 import javafx.scene.chart.PieChart;
 import javafx.stage.Stage;
 import javafx.collections.FXCollections;
@@ -21,16 +23,24 @@ import javafx.scene.control.Alert.AlertType;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class Client extends Application {
     private static final String HOST = "localhost";
     private static final int PORT = 5000;
+    private static final int PAGE_SIZE = 500;
+    // Histories longer than this aren't downloaded: the table pages through them on the server,
+    // TABLE_PAGE_ROWS rows at a time with at most TABLE_PAGES pages in memory.
+    private static final int PAGED_ROWS = Integer.getInteger("expense.client.pagedRows", 100_000);
+    private static final int TABLE_PAGE_ROWS = 200;
+    private static final int TABLE_PAGES = 10;
+    // every row the same height, so a paged table never has to measure rows it doesn't show
+    private static final double TABLE_ROW_HEIGHT = 24;
 
     private Stage primaryStage;
     private ClientConnection connection;
+    // every call to the server goes through here, off the JavaFX thread
+    private ExpenseService service;
     private String currentUsername;
 
     private Scene loginScene;
@@ -42,11 +52,33 @@ public class Client extends Application {
     private TableView<Expense> expensesTable;
     private ObservableList<Expense> expensesData;
     private PieChart pieChart;
+    private CategoryTotals categoryTotals;
+    private ProgressBar loadProgress;
+    private Label loadStatusLabel;
+    private Button cancelLoadButton;
+
+    // the table's items while the history is paged from the server instead of loaded, else null
+    private PagedExpenseList pagedExpenses;
+    // the look at the history's size that decides between loading and paging, while it runs
+    private Task<Integer> sizing;
+    // the load filling expensesData, if one is running
+    private Task<Integer> loadTask;
+    // whether expensesData holds the whole history, so new expenses can just be appended
+    private boolean expensesLoaded;
+    // the sequence number the next expense appended to a loaded expensesData has
+    private int nextSequence;
+    // the server pushing the user's new expenses, null when logged out
+    private ExpenseService.PushSubscription pushes;
+    // pushes that came in while a load was running, applied once it's done
+    private final List<ExpenseService.Push> heldPushes = new ArrayList<>();
+    // pushes were dropped while a load was running, so it has to catch up once it's done
+    private boolean resyncPending;
 
     @Override
     public void start(Stage stage) {
         this.primaryStage = stage;
         this.connection = new ClientConnection(HOST, PORT);
+        this.service = new ExpenseService(connection, ExpenseCache.forServer(HOST, PORT));
 
         loginScene = createLoginScene();
         dashboardScene = createDashboardScene();
@@ -69,6 +101,12 @@ public class Client extends Application {
         primaryStage.show();
     }
 
+    @Override
+    public void stop() {
+        stopPushes();
+        service.shutdown();
+    }
+
     // ---------- LOGIN SCREEN ----------
     private Scene createLoginScene() {
         Label titleLabel = new Label("Multi-User Expense Tracker");
@@ -96,19 +134,31 @@ public class Client extends Application {
 
             statusLabel.setText("Connecting to server...");
             errorLabel.setText("");
+            loginButton.setDisable(true);
 
-            if (connection.connect()) {
-                currentUsername = username;
+            Task<Boolean> connect = service.connect();
+            connect.setOnSucceeded(done -> {
+                loginButton.setDisable(false);
                 statusLabel.setText("");
-                errorLabel.setText("");
-                showDashboard();
-            } else {
-                showAlert(AlertType.ERROR, "Connection Error", 
-                    "Failed to connect to server.", 
-                    "Make sure the server is running on " + HOST + ":" + PORT);
-                errorLabel.setText("Failed to connect to server.");
+                if (connect.getValue()) {
+                    currentUsername = username;
+                    errorLabel.setText("");
+                    // a subscribed connection takes no other requests, so pushes get one of their own
+                    pushes = service.subscribe(new ClientConnection(HOST, PORT, false), username,
+                            this::expensesPushed);
+                    showDashboard();
+                } else {
+                    showAlert(AlertType.ERROR, "Connection Error", 
+                        "Failed to connect to server.", 
+                        "Make sure the server is running on " + HOST + ":" + PORT);
+                    errorLabel.setText("Failed to connect to server.");
+                }
+            });
+            connect.setOnFailed(done -> {
+                loginButton.setDisable(false);
                 statusLabel.setText("");
-            }
+                errorLabel.setText("Failed to connect to server.");
+            });
         });
 
         VBox root = new VBox(10);
@@ -141,12 +191,18 @@ public class Client extends Application {
 
         addExpenseButton.setOnAction(e -> primaryStage.setScene(addExpenseScene));
         viewExpensesButton.setOnAction(e -> {
-            loadExpenses();
-            updatePieChart(pieChart);
+            // show the screen right away, the rows fill in as they arrive
             primaryStage.setScene(viewExpensesScene);
+            loadExpenses();
         });
         logoutButton.setOnAction(e -> {
-            connection.disconnect();
+            cancelLoad();
+            stopPushes();
+            showLoaded();
+            expensesData.clear();
+            categoryTotals.clear();
+            expensesLoaded = false;
+            service.disconnect();
             currentUsername = null;
             primaryStage.setScene(loginScene);
         });
@@ -239,24 +295,37 @@ public class Client extends Application {
                 }
 
                 Expense expense = new Expense(amount, category.trim(), date, note);
-                String command = ExpenseProtocol.toServerMessage(expense, currentUsername);
-                String response = connection.sendCommand(command);
-
-                if (response != null && response.startsWith("SUCCESS")) {
-                    statusLabel.setText("Expense added successfully!");
-                    statusLabel.getStyleClass().add("success-label");
-                    errorLabel.setText("");
-                    amountField.clear();
-                    categoryComboBox.setValue(null);
-                    datePicker.setValue(LocalDate.now());
-                    noteField.clear();
-                    loadExpenses();
-                } else {
-                    showAlert(AlertType.ERROR, "Server Error", 
-                        "Failed to add expense", response != null ? response : "Unknown error");
-                    errorLabel.setText("Error: " + response);
+                statusLabel.setText("Adding expense...");
+                errorLabel.setText("");
+                submitButton.setDisable(true);
+
+                Task<String> add = service.addExpense(currentUsername, expense);
+                add.setOnSucceeded(done -> {
+                    submitButton.setDisable(false);
+                    String response = add.getValue();
+                    if (response.startsWith("SUCCESS")) {
+                        statusLabel.setText("Expense added successfully!");
+                        statusLabel.getStyleClass().add("success-label");
+                        errorLabel.setText("");
+                        amountField.clear();
+                        categoryComboBox.setValue(null);
+                        datePicker.setValue(LocalDate.now());
+                        noteField.clear();
+                        expenseAdded(expense);
+                    } else {
+                        showAlert(AlertType.ERROR, "Server Error", 
+                            "Failed to add expense", response);
+                        errorLabel.setText("Error: " + response);
+                        statusLabel.setText("");
+                    }
+                });
+                add.setOnFailed(done -> {
+                    submitButton.setDisable(false);
+                    showAlert(AlertType.ERROR, "Connection Error", 
+                        "Failed to add expense", add.getException().getMessage());
+                    errorLabel.setText("Error: " + add.getException().getMessage());
                     statusLabel.setText("");
-                }
+                });
             } catch (NumberFormatException ex) {
                 showAlert(AlertType.WARNING, "Validation Error", 
                     "Invalid Amount", "Please enter a valid number.");
@@ -302,10 +371,14 @@ public class Client extends Application {
         expensesTable = new TableView<>(expensesData);
         expensesTable.setPrefHeight(250);
         expensesTable.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+        expensesTable.setSortPolicy(this::sortTable);
 
         pieChart = new PieChart();
         pieChart.setPrefHeight(250);
         pieChart.setTitle("Spending by Category");
+        // the slices follow the table's rows, whichever way they get there
+        categoryTotals = new CategoryTotals(pieChart);
+        expensesData.addListener(categoryTotals);
 
         TableColumn<Expense, Double> amountColumn = new TableColumn<>("Amount");
         amountColumn.setCellValueFactory(new PropertyValueFactory<>("amount"));
@@ -330,18 +403,32 @@ public class Client extends Application {
         TableColumn<Expense, String> noteColumn = new TableColumn<>("Note");
         noteColumn.setCellValueFactory(new PropertyValueFactory<>("note"));
 
+        // what a paged table asks the server to sort by; the server can't sort by note
+        amountColumn.setUserData(ExpenseQuery.SortKey.AMOUNT);
+        categoryColumn.setUserData(ExpenseQuery.SortKey.CATEGORY);
+        dateColumn.setUserData(ExpenseQuery.SortKey.DATE);
+
         expensesTable.getColumns().addAll(amountColumn, categoryColumn, dateColumn, noteColumn);
 
-        Label statusLabel = new Label();
-        statusLabel.setStyle("-fx-text-fill: blue;");
+        loadStatusLabel = new Label();
+        loadStatusLabel.setStyle("-fx-text-fill: blue;");
+
+        loadProgress = new ProgressBar(0);
+        loadProgress.setPrefWidth(300);
+        loadProgress.setVisible(false);
+
+        cancelLoadButton = new Button("Cancel");
+        cancelLoadButton.setVisible(false);
+        cancelLoadButton.setOnAction(e -> cancelLoad());
+
+        HBox progressBox = new HBox(10);
+        progressBox.setAlignment(Pos.CENTER);
+        progressBox.getChildren().addAll(loadProgress, loadStatusLabel, cancelLoadButton);
 
         Button refreshButton = new Button("Refresh");
         Button backButton = new Button("Back to Dashboard");
 
-        refreshButton.setOnAction(e -> {
-            loadExpenses();
-            updatePieChart(pieChart);
-        });
+        refreshButton.setOnAction(e -> loadExpenses());
         backButton.setOnAction(e -> primaryStage.setScene(dashboardScene));
 
         HBox buttonBox = new HBox(10);
@@ -358,35 +445,13 @@ public class Client extends Application {
         root.getChildren().addAll(
                 titleLabel,
                 chartsBox,
-                statusLabel,
+                progressBox,
                 buttonBox
         );
 
         return new Scene(root, 1000, 600);
     }
 
-    private void updatePieChart(PieChart pieChart) {
-        pieChart.getData().clear();
-
-        if (expensesData == null || expensesData.isEmpty()) {
-            return;
-        }
-
-        Map<String, Double> categoryTotals = new HashMap<>();
-        for (Expense expense : expensesData) {
-            String category = expense.getCategory();
-            categoryTotals.put(category, 
-                categoryTotals.getOrDefault(category, 0.0) + expense.getAmount());
-        }
-
-        ObservableList<PieChart.Data> pieChartData = FXCollections.observableArrayList();
-        for (Map.Entry<String, Double> entry : categoryTotals.entrySet()) {
-            pieChartData.add(new PieChart.Data(entry.getKey(), entry.getValue()));
-        }
-
-        pieChart.setData(pieChartData);
-    }
-
     private void showAlert(AlertType type, String title, String header, String content) {
         Alert alert = new Alert(type);
         alert.setTitle(title);
@@ -408,56 +473,266 @@ public class Client extends Application {
         if (expensesData == null) {
             return;
         }
+        cancelLoad();
+        showLoaded();
+        expensesData.clear();
+        categoryTotals.clear();
+        expensesLoaded = false;
 
         if (!connection.isConnected()) {
-            expensesData.clear();
             showAlert(AlertType.ERROR, "Connection Error", 
                 "Not connected to server", "Please reconnect and try again.");
             return;
         }
 
-        try {
-            String command = "GET_EXPENSES|" + currentUsername;
-            String response = connection.sendCommand(command);
-
-            if (response == null || !response.startsWith("SUCCESS")) {
-                expensesData.clear();
-                if (response != null && response.startsWith("ERROR")) {
-                    showAlert(AlertType.ERROR, "Server Error", 
-                        "Failed to load expenses", response);
-                }
+        // a history that's too long to download is paged from the server instead
+        String username = currentUsername;
+        Task<Integer> size = service.historySize(username);
+        sizing = size;
+        size.setOnSucceeded(e -> {
+            if (sizing != size) {
                 return;
             }
+            sizing = null;
+            if (size.getValue() > PAGED_ROWS) {
+                showPaged(size.getValue());
+            } else {
+                // the history comes in a page at a time on the I/O thread, and the rows show up as they arrive
+                track(service.loadExpenses(username, PAGE_SIZE, expensesData::addAll), true);
+            }
+        });
+        size.setOnFailed(e -> {
+            if (sizing == size) {
+                sizing = null;
+                showAlert(AlertType.ERROR, "Error", 
+                    "Failed to load expenses", size.getException().getMessage());
+            }
+        });
+    }
 
-            String[] parts = response.split("\\|");
-            if (parts.length < 2) {
-                expensesData.clear();
-                return;
+    // The table shows a PagedExpenseList, which fetches the rows as they're scrolled to. The pie
+    // chart can't be added up from rows that aren't here, so it starts from the server's totals.
+    private void showPaged(int total) {
+        PagedExpenseList paged = new PagedExpenseList(service, currentUsername, total, TABLE_PAGE_ROWS, TABLE_PAGES);
+        pagedExpenses = paged;
+        expensesTable.getSortOrder().clear();
+        for (TableColumn<Expense, ?> column : expensesTable.getColumns()) {
+            column.setSortable(column.getUserData() != null);
+        }
+        expensesTable.setFixedCellSize(TABLE_ROW_HEIGHT);
+        expensesTable.setItems(paged);
+        loadStatusLabel.setText(String.format("%,d expenses, fetched from the server as you scroll", total));
+        showServerTotals(paged);
+    }
+
+    private void showServerTotals(PagedExpenseList paged) {
+        Task<List<ExpenseSummary>> totals = service.categoryTotals(currentUsername);
+        totals.setOnSucceeded(e -> {
+            if (pagedExpenses == paged) {
+                categoryTotals.show(totals.getValue());
+            }
+        });
+    }
+
+    // back to the table holding the whole history in expensesData
+    private void showLoaded() {
+        if (pagedExpenses == null) {
+            return;
+        }
+        pagedExpenses.close();
+        pagedExpenses = null;
+        expensesTable.getSortOrder().clear();
+        expensesTable.setItems(expensesData);
+        for (TableColumn<Expense, ?> column : expensesTable.getColumns()) {
+            column.setSortable(true);
+        }
+        expensesTable.setFixedCellSize(Region.USE_COMPUTED_SIZE);
+    }
+
+    // A loaded table sorts itself. A paged one has the server sort, by the first column sorted on.
+    private boolean sortTable(TableView<Expense> table) {
+        if (pagedExpenses == null) {
+            return TableView.DEFAULT_SORT_POLICY.call(table);
+        }
+        ExpenseQuery.SortKey key = null;
+        boolean descending = false;
+        if (!table.getSortOrder().isEmpty()) {
+            TableColumn<Expense, ?> column = table.getSortOrder().get(0);
+            key = (ExpenseQuery.SortKey) column.getUserData();
+            descending = column.getSortType() == TableColumn.SortType.DESCENDING;
+        }
+        pagedExpenses.sortBy(key, descending);
+        return true;
+    }
+
+    // Pushes went missing: fetch what the table lacks from nextSequence on, without reloading it.
+    private void catchUp() {
+        if (loadTask != null) {
+            resyncPending = true;
+            return;
+        }
+        if (!expensesLoaded) {
+            return;
+        }
+        expensesLoaded = false;
+        track(service.loadExpensesSince(currentUsername, nextSequence, PAGE_SIZE, expensesData::addAll), false);
+    }
+
+    // shows the load's progress and takes its result; fromStart when it fills an empty table
+    private void track(Task<Integer> task, boolean fromStart) {
+        loadTask = task;
+        loadProgress.progressProperty().bind(task.progressProperty());
+        loadStatusLabel.textProperty().bind(task.messageProperty());
+        loadProgress.setVisible(true);
+        cancelLoadButton.setVisible(true);
+        // slices grow every frame while rows stream in, an animation per frame would only lag behind
+        pieChart.setAnimated(false);
+
+        task.setOnSucceeded(e -> {
+            if (loadFinished(task)) {
+                expensesLoaded = true;
+                nextSequence = task.getValue();
+                loadStatusLabel.setText(String.format("%,d expenses", expensesData.size()));
+                applyHeldPushes();
             }
+        });
+        task.setOnFailed(e -> {
+            if (loadFinished(task)) {
+                if (fromStart) {
+                    expensesData.clear();
+                }
+                dropHeldPushes();
+                loadStatusLabel.setText("");
+                showAlert(AlertType.ERROR, "Error", 
+                    "Failed to load expenses", task.getException().getMessage());
+            }
+        });
+        task.setOnCancelled(e -> {
+            if (loadFinished(task)) {
+                dropHeldPushes();
+                loadStatusLabel.setText(String.format("Stopped after %,d expenses", expensesData.size()));
+            }
+        });
+    }
 
-            int count = Integer.parseInt(parts[1]);
-            List<Expense> expenses = new ArrayList<>();
+    // stops the running load, if any; the rows it already delivered stay in the table
+    private void cancelLoad() {
+        if (sizing != null) {
+            sizing.cancel();
+            sizing = null;
+        }
+        if (loadTask != null) {
+            loadTask.cancel();
+        }
+    }
 
-            for (int i = 0; i < count; i++) {
-                String json = connection.receiveResponse();
-                if (json != null) {
-                    Expense expense = ExpenseJson.fromJson(json);
-                    if (expense != null) {
-                        expenses.add(expense);
-                    }
+    // false if a newer load has taken over the table since
+    private boolean loadFinished(Task<Integer> task) {
+        if (loadTask != task) {
+            return false;
+        }
+        loadTask = null;
+        loadProgress.progressProperty().unbind();
+        loadStatusLabel.textProperty().unbind();
+        loadProgress.setVisible(false);
+        cancelLoadButton.setVisible(false);
+        pieChart.setAnimated(true);
+        return true;
+    }
+
+    // The server took a new expense. Rather than downloading the whole history again, it goes at the
+    // end of the table, where the server put it. The add was queued behind any load that was running,
+    // so by now that load has finished; if it was cancelled the table is partial and stays as it is.
+    // With pushes coming in, the expense is on its way as a push.
+    private void expenseAdded(Expense expense) {
+        if (pushes != null && pushes.isActive()) {
+            return;
+        }
+        if (pagedExpenses != null) {
+            // where it goes depends on the sort order, the server knows
+            pagedExpenses.refresh();
+            categoryTotals.add(expense);
+            return;
+        }
+        if (expensesLoaded) {
+            expensesData.add(expense);
+            nextSequence++;
+        }
+    }
+
+    // New expenses from the server, from this client or any other logged in as the same user. They
+    // go at the end of the table in sequence order; a gap or a resync means some were missed, and a
+    // catch-up fetches them. While a load is running they're held until it's done.
+    private void expensesPushed(List<ExpenseService.Push> batch) {
+        if (pagedExpenses != null) {
+            pagedExpenses.pushed(batch);
+            boolean resync = false;
+            for (ExpenseService.Push push : batch) {
+                if (push.isResync()) {
+                    resync = true;
+                } else {
+                    categoryTotals.add(push.getExpense());
                 }
             }
+            if (resync) {
+                showServerTotals(pagedExpenses);
+            }
+            return;
+        }
+        for (ExpenseService.Push push : batch) {
+            if (loadTask != null) {
+                if (push.isResync()) {
+                    resyncPending = true;
+                } else {
+                    heldPushes.add(push);
+                }
+            } else if (expensesLoaded && (push.isResync() || !appendPush(push))) {
+                catchUp();
+            }
+        }
+    }
 
-            expensesData.clear();
-            expensesData.addAll(expenses);
-            if (pieChart != null) {
-                updatePieChart(pieChart);
+    private void applyHeldPushes() {
+        List<ExpenseService.Push> held = new ArrayList<>(heldPushes);
+        boolean resync = resyncPending;
+        dropHeldPushes();
+        for (ExpenseService.Push push : held) {
+            if (!appendPush(push)) {
+                resync = true;
+                break;
             }
-        } catch (Exception e) {
-            expensesData.clear();
-            showAlert(AlertType.ERROR, "Error", 
-                "Failed to load expenses", e.getMessage());
         }
+        if (resync) {
+            catchUp();
+        }
+    }
+
+    // the table isn't complete and won't be appended to, so pushes held for it are no use
+    private void dropHeldPushes() {
+        heldPushes.clear();
+        resyncPending = false;
+    }
+
+    // false if the push is past the next expense the table needs, so that one was missed
+    private boolean appendPush(ExpenseService.Push push) {
+        if (push.getSequence() < nextSequence) {
+            // the load already brought it
+            return true;
+        }
+        if (push.getSequence() > nextSequence) {
+            return false;
+        }
+        expensesData.add(push.getExpense());
+        nextSequence++;
+        return true;
+    }
+
+    private void stopPushes() {
+        if (pushes != null) {
+            pushes.close();
+            pushes = null;
+        }
+        dropHeldPushes();
     }
 
     public static void main(String[] args) {
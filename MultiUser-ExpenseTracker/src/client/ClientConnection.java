@@ -1,9 +1,31 @@
 package client;
 
+import common.BinaryProtocol;
+import common.Expense;
+import common.ExpenseJson;
+import common.ExpenseProtocol;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
+
 import java.io.*;
 import java.net.Socket;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 public class ClientConnection {
+    // how hard we try when the server answers ERROR|BUSY, waiting 50ms, 100ms, 200ms ... in between
+    private static final int BUSY_RETRIES = 5;
+    private static final long BUSY_BACKOFF_MS = 50;
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    // requests sendPipelined/addExpenses have on the wire before waiting for the oldest answer
+    private static final int PIPELINE_WINDOW = 32;
+    // expenses per ADD_EXPENSES_BATCH request that addExpenses sends
+    public static final int BATCH_ROWS = 1000;
+
     private Socket socket;
     private BufferedReader input;
     private PrintWriter output;
@@ -11,45 +33,415 @@ public class ClientConnection {
     private int port;
     private boolean connected;
 
+    // binary protocol state, only used once the server agreed to it (see common.BinaryProtocol)
+    private final boolean preferBinary;
+    private boolean binary;
+    private InputStream frameInput;
+    private OutputStream frameOutput;
+    private BinaryProtocol.FrameReader frameReader;
+    private BinaryProtocol.FrameWriter frameWriter;
+
+    // -Dexpense.protocol=text keeps the connection on the text protocol
     public ClientConnection(String host, int port) {
+        this(host, port, !"text".equalsIgnoreCase(System.getProperty("expense.protocol", "binary")));
+    }
+
+    public ClientConnection(String host, int port, boolean preferBinary) {
         this.host = host;
         this.port = port;
+        this.preferBinary = preferBinary;
         this.connected = false;
     }
 
     public boolean connect() {
-        try {
-            socket = new Socket(host, port);
-            socket.setSoTimeout(30000);
-            input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            output = new PrintWriter(socket.getOutputStream(), true);
-            
-            String welcome = input.readLine();
-            if (welcome != null && welcome.startsWith("CONNECTION SUCCESSFUL")) {
-                connected = true;
-                return true;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                socket = new Socket(host, port);
+                socket.setSoTimeout(30000);
+                // we buffer and flush whole requests ourselves, Nagle would only hold back the tail of a
+                // big batch until the server's delayed ACK
+                socket.setTcpNoDelay(true);
+                input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                output = new PrintWriter(socket.getOutputStream(), true);
+
+                String welcome = input.readLine();
+                if (welcome != null && welcome.startsWith("CONNECTION SUCCESSFUL")) {
+                    connected = true;
+                    binary = false;
+                    if (preferBinary) {
+                        negotiateBinary();
+                    }
+                    return true;
+                }
+                closeQuietly();
+                // the server hit its connection limit, give it a moment and knock again
+                if (!isBusy(welcome) || attempt >= BUSY_RETRIES || !backOff(attempt)) {
+                    return false;
+                }
+            } catch (IOException e) {
+                System.err.println("Connection failed: " + e.getMessage());
+                disconnect();
+                return false;
             }
-            disconnect();
-            return false;
+        }
+    }
+
+    // Asks the server for the binary protocol. Servers that don't know it answer with an ERROR,
+    // and we simply stay on text.
+    private void negotiateBinary() {
+        String response = call(() -> exchangeLine(BinaryProtocol.NEGOTIATE_COMMAND));
+        if (!BinaryProtocol.NEGOTIATE_OK.equals(response)) {
+            System.out.println("Server doesn't speak the binary protocol, using text (" + response + ")");
+            return;
+        }
+        try {
+            // the server sends nothing after SUCCESS|BINARY until our first frame, so the text
+            // reader has nothing buffered that we'd lose here
+            frameInput = new BufferedInputStream(socket.getInputStream());
+            frameOutput = new BufferedOutputStream(socket.getOutputStream());
+            frameReader = new BinaryProtocol.FrameReader(MAX_FRAME_BYTES);
+            frameWriter = new BinaryProtocol.FrameWriter();
+            binary = true;
         } catch (IOException e) {
-            System.err.println("Connection failed: " + e.getMessage());
+            System.err.println("Switching to the binary protocol failed: " + e.getMessage());
             disconnect();
-            return false;
         }
     }
 
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Any text-protocol command. On a binary connection it travels inside a frame and the answer
+    // comes back a line per frame, so receiveResponse() works the same either way.
     public String sendCommand(String command) {
+        if (command == null || command.trim().isEmpty()) {
+            return "ERROR|Invalid command";
+        }
+        if (command.regionMatches(true, 0, "PROTOCOL|", 0, 9)) {
+            // the server would switch but we wouldn't, the protocol is picked in the constructor
+            return "ERROR|The protocol is negotiated when connecting";
+        }
+        return call(() -> {
+            if (binary) {
+                frameWriter.begin(BinaryProtocol.TEXT_COMMAND).writeString(command);
+                return exchangeText();
+            }
+            return exchangeLine(command);
+        });
+    }
+
+    // ADD_EXPENSE, answered with the server's SUCCESS or ERROR line
+    public String addExpense(String username, Expense expense) {
+        if (!binary) {
+            return sendCommand(ExpenseProtocol.toServerMessage(expense, username));
+        }
+        return call(() -> {
+            frameWriter.begin(BinaryProtocol.ADD_EXPENSE).writeString(username).writeExpense(expense);
+            return exchangeText();
+        });
+    }
+
+    // Adds a lot of expenses at once: ADD_EXPENSES_BATCH requests of BATCH_ROWS expenses each, sent
+    // pipelined. Answers come back one per batch, in order. Every batch is all or nothing on the server.
+    public List<String> addExpenses(String username, List<Expense> expenses) {
+        List<Send> batches = new ArrayList<>();
+        for (int start = 0; start < expenses.size(); start += BATCH_ROWS) {
+            List<Expense> batch = expenses.subList(start, Math.min(start + BATCH_ROWS, expenses.size()));
+            batches.add(() -> {
+                if (binary) {
+                    frameWriter.begin(BinaryProtocol.ADD_EXPENSES_BATCH).writeString(username).writeVarint(batch.size());
+                    for (Expense expense : batch) {
+                        frameWriter.writeExpense(expense);
+                    }
+                    frameWriter.writeTo(frameOutput);
+                } else {
+                    output.print(ExpenseProtocol.toBatchMessage(batch, username));
+                    output.print('\n');
+                }
+            });
+        }
+        return pipeline(batches);
+    }
+
+    // Sends the commands back to back instead of waiting for every answer, and returns the answers
+    // in the same order. Only for commands answered with a single line, like ADD_EXPENSE.
+    public List<String> sendPipelined(List<String> commands) {
+        List<Send> requests = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            requests.add(() -> {
+                if (binary) {
+                    frameWriter.begin(BinaryProtocol.TEXT_COMMAND).writeString(command).writeTo(frameOutput);
+                } else {
+                    output.print(command);
+                    output.print('\n');
+                }
+            });
+        }
+        return pipeline(requests);
+    }
+
+    // GET_EXPENSES. Each expense goes to the sink as soon as it has arrived, and the answer is the
+    // usual "SUCCESS|count|total" head (or an ERROR line, in which case the sink isn't called)
+    public String getExpenses(String username, ExpenseQuery query, Consumer<Expense> sink) {
+        if (!binary) {
+            return receiveExpenses(sendCommand(query.toCommand(username)), sink);
+        }
+        return receiveExpenseFrames(call(() -> {
+            frameWriter.begin(BinaryProtocol.GET_EXPENSES).writeString(username).writeQuery(query);
+            send();
+            return expensesHead();
+        }), sink);
+    }
+
+    // GET_EXPENSES_SINCE: the expenses with sequence numbers from `since` on, at most `limit` of them,
+    // in order. The answer is "SUCCESS|count|next", where next is the sequence number the server will
+    // give the next expense added, so a client that has everything below it is up to date.
+    public String getExpensesSince(String username, int since, int limit, Consumer<Expense> sink) {
+        if (!binary) {
+            String command = "GET_EXPENSES_SINCE|" + username + "|" + since
+                    + (limit != Integer.MAX_VALUE ? "|" + limit : "");
+            return receiveExpenses(sendCommand(command), sink);
+        }
+        return receiveExpenseFrames(call(() -> {
+            frameWriter.begin(BinaryProtocol.GET_EXPENSES_SINCE).writeString(username).writeVarint(since).writeVarint(limit);
+            send();
+            return expensesHead();
+        }), sink);
+    }
+
+    // the JSON lines following a text SUCCESS|count|... head
+    private String receiveExpenses(String head, Consumer<Expense> sink) {
+        int count = countOf(head);
+        for (int i = 0; i < count; i++) {
+            String json = receiveResponse();
+            if (json == null) {
+                return "ERROR|Connection lost: Server closed connection";
+            }
+            Expense expense = ExpenseJson.fromJson(json);
+            if (expense != null) {
+                sink.accept(expense);
+            }
+        }
+        return head;
+    }
+
+    // an EXPENSES frame as the text head it stands for, or the TEXT frame that came instead
+    private String expensesHead() throws IOException {
+        if (!readFrame(BinaryProtocol.EXPENSES)) {
+            return frameReader.readString();
+        }
+        return "SUCCESS|" + frameReader.readInt() + "|" + frameReader.readInt();
+    }
+
+    // the EXPENSE_CHUNK frames following an EXPENSES frame
+    private String receiveExpenseFrames(String head, Consumer<Expense> sink) {
+        int count = countOf(head);
+        try {
+            for (int received = 0; received < count; ) {
+                if (!readFrame(BinaryProtocol.EXPENSE_CHUNK)) {
+                    throw new IOException("Unexpected frame in the middle of an answer");
+                }
+                int rows = frameReader.readInt();
+                for (int i = 0; i < rows; i++) {
+                    sink.accept(frameReader.readExpense());
+                }
+                received += rows;
+            }
+            return head;
+        } catch (IOException | RuntimeException e) {
+            connected = false;
+            return "ERROR|Connection lost: " + e.getMessage();
+        }
+    }
+
+    // SUBSCRIBE: from now on the server pushes the user's new expenses down this connection, one
+    // "PUSH|sequence|json" line each (read them with receiveResponse), and a "RESYNC|..." line if it
+    // had to drop some. The connection then only takes UNSUBSCRIBE and disconnect, and it has to be a
+    // text one. The answer is "SUCCESS|Subscribed|next", next being the first sequence number pushed.
+    public String subscribe(String username) {
+        String response = sendCommand("SUBSCRIBE|" + username);
+        if (response != null && response.startsWith("SUCCESS")) {
+            try {
+                // pushes come whenever somebody adds an expense, a quiet half minute is no error
+                socket.setSoTimeout(0);
+            } catch (IOException e) {
+                connected = false;
+                return "ERROR|Connection lost: " + e.getMessage();
+            }
+        }
+        return response;
+    }
+
+    // GET_SUMMARY, same idea as getExpenses: rows go to the sink, the answer is "SUCCESS|groups"
+    public String getSummary(String username, ExpenseSummary.GroupBy groupBy, LocalDate from, LocalDate to,
+                             Consumer<ExpenseSummary> sink) {
+        if (!binary) {
+            String head = sendCommand(ExpenseSummary.toCommand(username, groupBy, from, to));
+            int count = countOf(head);
+            for (int i = 0; i < count; i++) {
+                String line = receiveResponse();
+                if (line == null) {
+                    return "ERROR|Connection lost: Server closed connection";
+                }
+                ExpenseSummary row = ExpenseSummary.fromLine(line);
+                if (row != null) {
+                    sink.accept(row);
+                }
+            }
+            return head;
+        }
+
+        return call(() -> {
+            frameWriter.begin(BinaryProtocol.GET_SUMMARY).writeString(username).writeByte(groupBy.ordinal())
+                    .writeDate(from).writeDate(to);
+            send();
+            if (!readFrame(BinaryProtocol.SUMMARY)) {
+                return frameReader.readString();
+            }
+            int groups = frameReader.readInt();
+            for (int i = 0; i < groups; i++) {
+                sink.accept(new ExpenseSummary(frameReader.readString(), frameReader.readAmount(), frameReader.readInt()));
+            }
+            return "SUCCESS|" + groups;
+        });
+    }
+
+    // how many lines or rows follow a SUCCESS|count[...] head, 0 for anything else
+    private static int countOf(String head) {
+        if (head == null || !head.startsWith("SUCCESS|")) {
+            return 0;
+        }
+        String[] parts = head.split("\\|");
+        try {
+            return parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private interface Exchange {
+        String run() throws IOException;
+    }
+
+    // writes one request without flushing it
+    private interface Send {
+        void run() throws IOException;
+    }
+
+    // Keeps up to PIPELINE_WINDOW requests in flight. The server answers a connection's requests in
+    // the order they arrived, so the n-th answer belongs to the n-th request. The window gets topped up
+    // with a single flush once half of it has been answered.
+    //
+    // BUSY means the server never ran the request. Once one comes back nothing new is sent: the
+    // requests still in flight are answered first, then the BUSY ones go again in order, one at a time
+    // with backoff, and only then does sending go on, one request at a time for the rest of the call.
+    // So a batch that was turned away is stored before every batch sent after it; only the ones that
+    // were already in flight can have been run in the meantime, and that happens at most once a call.
+    // If one stays BUSY, the requests after it aren't sent at all and get the same answer.
+    private List<String> pipeline(List<Send> requests) {
+        String[] answers = new String[requests.size()];
         if (!connected) {
-            return "ERROR|Not connected to server";
+            Arrays.fill(answers, "ERROR|Not connected to server");
+            return Arrays.asList(answers);
         }
 
-        if (command == null || command.trim().isEmpty()) {
-            return "ERROR|Invalid command";
+        int sent = 0;
+        int received = 0;
+        int window = PIPELINE_WINDOW;
+        // the first request answered BUSY since the window was last drained, -1 if none was
+        int busy = -1;
+        try {
+            while (received < requests.size()) {
+                if (busy < 0 && sent < requests.size() && sent - received <= window / 2) {
+                    while (sent < requests.size() && sent - received < window) {
+                        requests.get(sent++).run();
+                    }
+                    flush();
+                }
+                String answer = receiveLine();
+                if (answer == null) {
+                    throw new EOFException("Server closed connection");
+                }
+                if (busy < 0 && isBusy(answer)) {
+                    busy = received;
+                }
+                answers[received++] = answer;
+
+                if (busy >= 0 && received == sent) {
+                    String failed = retryBusy(requests, answers, busy, sent);
+                    if (failed != null) {
+                        Arrays.fill(answers, sent, answers.length, failed);
+                        break;
+                    }
+                    busy = -1;
+                    window = 1;
+                }
+            }
+        } catch (java.net.SocketTimeoutException e) {
+            connected = false;
+            Arrays.fill(answers, received, answers.length, "ERROR|Connection timeout");
+        } catch (IOException | RuntimeException e) {
+            connected = false;
+            Arrays.fill(answers, received, answers.length, "ERROR|Connection lost: " + e.getMessage());
         }
+        return Arrays.asList(answers);
+    }
+
+    // Sends the requests in [from, to) that were answered BUSY again, in order. Returns null once they
+    // have all been answered, or the answer of the one that is still BUSY or lost the connection.
+    private String retryBusy(List<Send> requests, String[] answers, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (isBusy(answers[i])) {
+                Send request = requests.get(i);
+                answers[i] = call(() -> {
+                    request.run();
+                    flush();
+                    return receiveLine();
+                });
+                if (isBusy(answers[i]) || !connected) {
+                    return answers[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    // BUSY means the server never ran the command, so sending it again is always safe
+    private String call(Exchange exchange) {
+        String response = callOnce(exchange);
+        for (int attempt = 0; attempt < BUSY_RETRIES && isBusy(response); attempt++) {
+            if (!backOff(attempt)) {
+                break;
+            }
+            response = callOnce(exchange);
+        }
+        return response;
+    }
 
+    public static boolean isBusy(String response) {
+        return response != null && response.startsWith("ERROR|BUSY");
+    }
+
+    private boolean backOff(int attempt) {
+        long delay = BUSY_BACKOFF_MS << attempt;
         try {
-            output.println(command);
-            String response = input.readLine();
+            // a bit of jitter so a crowd of rejected clients doesn't come back all at once
+            Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private String callOnce(Exchange exchange) {
+        if (!connected) {
+            return "ERROR|Not connected to server";
+        }
+
+        try {
+            String response = exchange.run();
             if (response == null) {
                 connected = false;
                 return "ERROR|Connection lost: Server closed connection";
@@ -58,18 +450,75 @@ public class ClientConnection {
         } catch (java.net.SocketTimeoutException e) {
             connected = false;
             return "ERROR|Connection timeout";
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             connected = false;
             return "ERROR|Connection lost: " + e.getMessage();
         }
     }
 
+    private String exchangeLine(String command) throws IOException {
+        output.println(command);
+        return input.readLine();
+    }
+
+    // sends the frame that's in frameWriter and expects a TEXT frame back
+    private String exchangeText() throws IOException {
+        send();
+        return receiveLine();
+    }
+
+    private void send() throws IOException {
+        frameWriter.writeTo(frameOutput);
+        frameOutput.flush();
+    }
+
+    private void flush() throws IOException {
+        if (binary) {
+            frameOutput.flush();
+        } else {
+            output.flush();
+            if (output.checkError()) {
+                throw new IOException("Could not write to server");
+            }
+        }
+    }
+
+    // the next one-line answer, null once the server has closed the connection
+    private String receiveLine() throws IOException {
+        if (binary) {
+            if (!readFrame(BinaryProtocol.TEXT)) {
+                throw new IOException("Unexpected frame from server");
+            }
+            return frameReader.readString();
+        }
+        return input.readLine();
+    }
+
+    // Reads the next frame. True if it has the expected opcode, false if it is a TEXT frame instead
+    // (an ERROR or BUSY line, ready to be read with readString)
+    private boolean readFrame(int expected) throws IOException {
+        if (!frameReader.readFrom(frameInput)) {
+            throw new EOFException("Server closed connection");
+        }
+        int opcode = frameReader.readByte();
+        if (opcode == expected) {
+            return true;
+        }
+        if (opcode == BinaryProtocol.TEXT) {
+            return false;
+        }
+        throw new IOException("Unexpected frame from server: " + opcode);
+    }
+
     public String receiveResponse() {
         if (!connected) {
             return null;
         }
 
         try {
+            if (binary) {
+                return readFrame(BinaryProtocol.TEXT) ? frameReader.readString() : null;
+            }
             return input.readLine();
         } catch (IOException e) {
             connected = false;
@@ -77,9 +526,28 @@ public class ClientConnection {
         }
     }
 
+    private void closeQuietly() {
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            // nothing useful to do here
+        }
+        connected = false;
+    }
+
+    // Closes the socket without a QUIT, and can be called from another thread: a read blocked on this
+    // connection, like a receiveResponse waiting for pushes, returns null. disconnect() still has to
+    // be called by the reading thread afterwards to let go of the streams.
+    public void abort() {
+        closeQuietly();
+    }
+
     public void disconnect() {
         try {
-            if (output != null) {
+            if (binary && connected) {
+                frameWriter.begin(BinaryProtocol.QUIT);
+                send();
+            } else if (output != null) {
                 output.println("QUIT");
             }
             if (input != null) input.close();
@@ -1,10 +1,11 @@
 package client;
 
 import common.Expense;
-import common.ExpenseJson;
-import common.ExpenseProtocol;
+import common.ExpenseQuery;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 // This test script is intended to demo the client-server interaction and the functionality of the expense tracke.
@@ -33,7 +34,8 @@ public class ClientTest {
             System.out.println("1. Set username");
             System.out.println("2. Add expense");
             System.out.println("3. Get expenses");
-            System.out.println("4. Quit");
+            System.out.println("4. Search expenses");
+            System.out.println("5. Quit");
             System.out.print("Choose option: ");
 
             String choice = scanner.nextLine().trim();
@@ -58,10 +60,18 @@ public class ClientTest {
                         System.out.println("Please set username first!\n");
                         break;
                     }
-                    getExpenses(connection, username);
+                    getExpenses(connection, username, new ExpenseQuery());
                     break;
 
                 case "4":
+                    if (username.isEmpty()) {
+                        System.out.println("Please set username first!\n");
+                        break;
+                    }
+                    searchExpenses(connection, username, scanner);
+                    break;
+
+                case "5":
                     connection.disconnect();
                     System.out.println("Goodbye!");
                     scanner.close();
@@ -88,9 +98,7 @@ public class ClientTest {
             String note = scanner.nextLine().trim();
 
             Expense expense = new Expense(amount, category, date, note);
-            String command = ExpenseProtocol.toServerMessage(expense, username);
-            
-            String response = connection.sendCommand(command);
+            String response = connection.addExpense(username, expense);
             System.out.println("Server response: " + response + "\n");
 
         } catch (Exception e) {
@@ -98,36 +106,80 @@ public class ClientTest {
         }
     }
 
-    private static void getExpenses(ClientConnection connection, String username) {
-        String command = "GET_EXPENSES|" + username;
-        String response = connection.sendCommand(command);
+    // every filter is optional, just press enter to skip it
+    private static void searchExpenses(ClientConnection connection, String username, Scanner scanner) {
+        try {
+            ExpenseQuery query = new ExpenseQuery();
+
+            System.out.print("From date (YYYY-MM-DD): ");
+            String from = scanner.nextLine().trim();
+            System.out.print("To date (YYYY-MM-DD): ");
+            String to = scanner.nextLine().trim();
+            query.dateRange(from.isEmpty() ? null : LocalDate.parse(from), to.isEmpty() ? null : LocalDate.parse(to));
+
+            System.out.print("Category: ");
+            String category = scanner.nextLine().trim();
+            query.category(category.isEmpty() ? null : category);
+
+            System.out.print("Min amount: ");
+            String min = scanner.nextLine().trim();
+            System.out.print("Max amount: ");
+            String max = scanner.nextLine().trim();
+            query.amountRange(min.isEmpty() ? null : Double.valueOf(min), max.isEmpty() ? null : Double.valueOf(max));
+
+            System.out.print("Page size (default 20): ");
+            String pageSize = scanner.nextLine().trim();
+            int limit = pageSize.isEmpty() ? 20 : Integer.parseInt(pageSize);
+
+            // keep showing pages until the user has seen enough
+            int offset = 0;
+            while (true) {
+                int total = getExpenses(connection, username, query.page(offset, limit));
+                offset += limit;
+                if (total < 0 || offset >= total) {
+                    break;
+                }
+                System.out.print("Showing " + offset + " of " + total + ". Next page? (y/n): ");
+                if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                    System.out.println();
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Error: " + e.getMessage() + "\n");
+        }
+    }
+
+    // prints one GET_EXPENSES response and returns how many expenses matched overall (-1 on error)
+    private static int getExpenses(ClientConnection connection, String username, ExpenseQuery query) {
+        List<Expense> expenses = new ArrayList<>();
+        String response = connection.getExpenses(username, query, expenses::add);
         
         if (response == null) {
             System.out.println("No response from server\n");
-            return;
+            return -1;
         }
 
         String[] parts = response.split("\\|");
         if (parts.length < 2 || !parts[0].equals("SUCCESS")) {
             System.out.println("Error: " + response + "\n");
-            return;
+            return -1;
         }
 
         try {
             int count = Integer.parseInt(parts[1]);
-            System.out.println("Found " + count + " expense(s):");
+            int total = parts.length > 2 ? Integer.parseInt(parts[2]) : count;
+            System.out.println("Found " + total + " expense(s), showing " + count + ":");
             
-            for (int i = 0; i < count; i++) {
-                String json = connection.receiveResponse();
-                if (json != null) {
-                    Expense expense = ExpenseJson.fromJson(json);
-                    System.out.println("  - $" + expense.getAmount() + " | " + 
-                                     expense.getCategory() + " | " + expense.getDate());
-                }
+            for (Expense expense : expenses) {
+                System.out.println("  - $" + expense.getAmount() + " | " + 
+                                 expense.getCategory() + " | " + expense.getDate());
             }
             System.out.println();
+            return total;
         } catch (Exception e) {
             System.out.println("Error parsing response: " + e.getMessage() + "\n");
+            return -1;
         }
     }
 }
@@ -0,0 +1,113 @@
+package client;
+
+import common.Expense;
+import common.ExpenseJson;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// The client's copy of each user's history on disk, so opening the expense screen again only has to
+// download what was added since (GET_EXPENSES_SINCE). One file per server and user, one JSON line per
+// expense in the server's order. Since the server numbers a user's expenses 0, 1, 2, ..., the number
+// of lines is also the sequence number to ask for next; no other bookkeeping is kept.
+//
+// The file only ever grows by appending, so a client that dies mid-write leaves a torn last line at
+// worst, which read() drops again. Whether the copy still matches the server is up to the caller to
+// check (ExpenseService compares the last cached expense with the server's).
+//
+// -Dexpense.client.cache=<directory> moves it (default ~/.expense-tracker/cache), =off turns it off.
+public final class ExpenseCache {
+    private final Path directory;
+
+    private ExpenseCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // null when caching is turned off
+    public static ExpenseCache forServer(String host, int port) {
+        String setting = System.getProperty("expense.client.cache",
+                Paths.get(System.getProperty("user.home"), ".expense-tracker", "cache").toString());
+        if (setting.trim().isEmpty() || setting.equalsIgnoreCase("off")) {
+            return null;
+        }
+        return new ExpenseCache(Paths.get(setting, encode(host + "_" + port)));
+    }
+
+    // the cached expenses in sequence order, empty if there are none
+    List<Expense> read(String username) throws IOException {
+        Path file = file(username);
+        List<Expense> expenses = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return expenses;
+        }
+        boolean torn = false;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Expense expense = parse(line);
+                if (expense == null) {
+                    torn = true;
+                    break;
+                }
+                expenses.add(expense);
+            }
+        }
+        if (torn) {
+            // keep what was good, the rest is downloaded again
+            rewrite(username, expenses);
+        }
+        return expenses;
+    }
+
+    // for appending the expenses that come next, in order
+    BufferedWriter appender(String username) throws IOException {
+        Files.createDirectories(directory);
+        return Files.newBufferedWriter(file(username), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    static void append(BufferedWriter writer, Expense expense) throws IOException {
+        writer.write(ExpenseJson.toJson(expense));
+        writer.newLine();
+    }
+
+    void discard(String username) throws IOException {
+        Files.deleteIfExists(file(username));
+    }
+
+    private void rewrite(String username, List<Expense> expenses) throws IOException {
+        Path temp = file(username).resolveSibling(file(username).getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Expense expense : expenses) {
+                append(writer, expense);
+            }
+        }
+        Files.move(temp, file(username), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path file(String username) {
+        return directory.resolve(encode(username) + ".jsonl");
+    }
+
+    private static Expense parse(String line) {
+        try {
+            return ExpenseJson.fromJson(line);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String encode(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8);
+    }
+}
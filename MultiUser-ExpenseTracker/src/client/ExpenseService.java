@@ -0,0 +1,426 @@
+package client;
+
+import common.Expense;
+import common.ExpenseJson;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+// The client's data layer. Every call to the server runs on one background thread, in the order the
+// UI asked for them: ClientConnection isn't thread-safe, and the server answers a connection's
+// requests in order anyway. The JavaFX thread never waits on the network.
+//
+// Each call returns a javafx.concurrent.Task that is already queued. Its handlers (setOnSucceeded,
+// setOnFailed, ...) run on the FX thread, and cancel() stops a long load after the page it's reading.
+public class ExpenseService {
+    private final ClientConnection connection;
+    // null when the on-disk cache is turned off
+    private final ExpenseCache cache;
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "client-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ExpenseService(ClientConnection connection, ExpenseCache cache) {
+        this.connection = connection;
+        this.cache = cache;
+    }
+
+    public Task<Boolean> connect() {
+        return submit(connection::connect);
+    }
+
+    public Task<Void> disconnect() {
+        return submit(() -> {
+            connection.disconnect();
+            return null;
+        });
+    }
+
+    // the server's SUCCESS or ERROR line
+    public Task<String> addExpense(String username, Expense expense) {
+        return submit(() -> {
+            String response = connection.addExpense(username, expense);
+            if (response == null) {
+                throw new IOException("Lost the connection to the server");
+            }
+            return response;
+        });
+    }
+
+    // one row per category, from the server's running totals
+    public Task<List<ExpenseSummary>> categoryTotals(String username) {
+        return submit(() -> {
+            List<ExpenseSummary> rows = new ArrayList<>();
+            String response = connection.getSummary(username, ExpenseSummary.GroupBy.CATEGORY, null, null, rows::add);
+            check(response);
+            return rows;
+        });
+    }
+
+    // how many expenses the user has: the sequence number the next one will get
+    public Task<Integer> historySize(String username) {
+        return submit(() -> {
+            String[] head = check(connection.getExpensesSince(username, Integer.MAX_VALUE, 0, expense -> { }));
+            return Integer.parseInt(head[2]);
+        });
+    }
+
+    // one page of a GET_EXPENSES query, see PagedExpenseList
+    public Task<Page> page(String username, ExpenseQuery query) {
+        return submit(() -> {
+            List<Expense> rows = new ArrayList<>();
+            String[] head = check(connection.getExpenses(username, query, rows::add));
+            return new Page(rows, Integer.parseInt(head[2]));
+        });
+    }
+
+    public static final class Page {
+        private final List<Expense> rows;
+        private final int total;
+
+        private Page(List<Expense> rows, int total) {
+            this.rows = rows;
+            this.total = total;
+        }
+
+        public List<Expense> getRows() {
+            return rows;
+        }
+
+        // expenses matching the query overall
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    // The user's whole history, synced through the on-disk cache: what's cached is shown first and
+    // only expenses added since are downloaded (GET_EXPENSES_SINCE), a page at a time, and appended
+    // to the cache. Expenses are handed to `batches` on the FX thread as they arrive, a batch per FX
+    // pulse at most. Progress is expenses shown out of the total, and the task's value is the sequence
+    // number after the last expense shown (so, how many were shown). After cancel() no more batches
+    // are delivered; the cache keeps what had arrived.
+    public Task<Integer> loadExpenses(String username, int pageSize, Consumer<List<Expense>> batches) {
+        Task<Integer> task = new PagedLoad(batches) {
+            @Override
+            protected Integer call() throws Exception {
+                List<Expense> cached = readCache(username);
+                int next = 0;
+
+                if (!cached.isEmpty()) {
+                    // ask for the last cached expense again: if the server has something else under
+                    // that sequence number (or nothing), its data was replaced and the copy is useless
+                    List<Expense> overlap = new ArrayList<>(1);
+                    String[] head = check(connection.getExpensesSince(username, cached.size() - 1, 1, overlap::add));
+                    if (overlap.size() == 1 && sameExpense(overlap.get(0), cached.get(cached.size() - 1))) {
+                        next = cached.size();
+                        batcher.addAll(cached);
+                        updateProgress(next, Integer.parseInt(head[2]));
+                    } else {
+                        cache.discard(username);
+                    }
+                }
+                return fetch(username, next, pageSize, next, openCache(username));
+            }
+        };
+        io.execute(task);
+        return task;
+    }
+
+    // The expenses from sequence number `since` on, delivered like loadExpenses delivers them. This is
+    // the catch-up after pushes were missed (see subscribe); it leaves the cache alone, which only ever
+    // grows at its end.
+    public Task<Integer> loadExpensesSince(String username, int since, int pageSize, Consumer<List<Expense>> batches) {
+        Task<Integer> task = new PagedLoad(batches) {
+            @Override
+            protected Integer call() throws Exception {
+                return fetch(username, since, pageSize, 0, null);
+            }
+        };
+        io.execute(task);
+        return task;
+    }
+
+    private abstract class PagedLoad extends Task<Integer> {
+        final FxBatcher<Expense> batcher;
+
+        PagedLoad(Consumer<List<Expense>> batches) {
+            batcher = new FxBatcher<>(batches, this::isCancelled);
+        }
+
+        // pages through GET_EXPENSES_SINCE from `next` to the end, returns the sequence number it got to
+        int fetch(String username, int next, int pageSize, int fromCache, BufferedWriter cacheOut) throws IOException {
+            try {
+                int total = Integer.MAX_VALUE;
+                while (next < total && !isCancelled()) {
+                    List<Expense> page = new ArrayList<>(pageSize);
+                    String[] head = check(connection.getExpensesSince(username, next, pageSize, page::add));
+
+                    int count = Integer.parseInt(head[1]);
+                    // asked again for every page, so expenses added meanwhile are picked up too
+                    total = Integer.parseInt(head[2]);
+                    if (count == 0) {
+                        break;
+                    }
+                    batcher.addAll(page);
+                    cacheOut = writeCache(cacheOut, page);
+                    next += count;
+                    updateProgress(next, total);
+                    String message = String.format("Loaded %,d of %,d expenses", next, total);
+                    updateMessage(fromCache > 0
+                            ? message + String.format(" (%,d from the local cache)", fromCache) : message);
+                }
+            } finally {
+                closeQuietly(cacheOut);
+            }
+            return next;
+        }
+    }
+
+    // Listens for the user's new expenses on a connection of its own, since a subscribed connection
+    // can't carry other requests; it's connected and subscribed on a thread of its own too. Pushes are
+    // handed to `pushes` on the FX thread in the order they came, a batch per FX pulse at most, until
+    // the subscription is closed or the connection drops.
+    public PushSubscription subscribe(ClientConnection pushConnection, String username, Consumer<List<Push>> pushes) {
+        PushSubscription subscription = new PushSubscription(pushConnection);
+        FxBatcher<Push> batcher = new FxBatcher<>(pushes, subscription::isClosed);
+        Thread thread = new Thread(() -> subscription.listen(username, batcher), "client-push");
+        thread.setDaemon(true);
+        thread.start();
+        return subscription;
+    }
+
+    // One pushed line: an added expense with its sequence number, or a resync, meaning the server
+    // dropped some pushes and the client should catch up with loadExpensesSince.
+    public static final class Push {
+        private final int sequence;
+        private final Expense expense;
+
+        private Push(int sequence, Expense expense) {
+            this.sequence = sequence;
+            this.expense = expense;
+        }
+
+        // PUSH|sequence|json or RESYNC|message, null for anything else
+        static Push parse(String line) {
+            if (line.startsWith("RESYNC")) {
+                return new Push(-1, null);
+            }
+            String[] parts = line.split("\\|", 3);
+            if (parts.length < 3 || !parts[0].equals("PUSH")) {
+                return null;
+            }
+            try {
+                return new Push(Integer.parseInt(parts[1]), ExpenseJson.fromJson(parts[2]));
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        public boolean isResync() {
+            return expense == null;
+        }
+
+        public int getSequence() {
+            return sequence;
+        }
+
+        public Expense getExpense() {
+            return expense;
+        }
+    }
+
+    public static final class PushSubscription {
+        private final ClientConnection connection;
+        private volatile boolean active;
+        private volatile boolean closed;
+
+        private PushSubscription(ClientConnection connection) {
+            this.connection = connection;
+        }
+
+        private void listen(String username, FxBatcher<Push> batcher) {
+            if (!connection.connect()) {
+                return;
+            }
+            String answer = connection.subscribe(username);
+            if (closed || answer == null || !answer.startsWith("SUCCESS")) {
+                // a server without SUBSCRIBE just means no live updates
+                connection.disconnect();
+                return;
+            }
+            active = true;
+            String line;
+            while (!closed && (line = connection.receiveResponse()) != null) {
+                Push push = Push.parse(line);
+                if (push != null) {
+                    batcher.add(push);
+                }
+            }
+            active = false;
+            connection.disconnect();
+        }
+
+        // true while pushes are coming in
+        public boolean isActive() {
+            return active && !closed;
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        // closing the socket is what ends the listening thread's read
+        public void close() {
+            closed = true;
+            connection.abort();
+        }
+    }
+
+    // the cache is only ever a shortcut: if it can't be read it's as if there was none
+    private List<Expense> readCache(String username) {
+        if (cache == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return cache.read(username);
+        } catch (IOException e) {
+            System.err.println("Could not read the expense cache: " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private BufferedWriter openCache(String username) {
+        if (cache == null) {
+            return null;
+        }
+        try {
+            return cache.appender(username);
+        } catch (IOException e) {
+            System.err.println("Could not write the expense cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Appends one page. If that fails the cache stops growing for this load; at worst it ends in a
+    // torn line, which the next read drops.
+    private static BufferedWriter writeCache(BufferedWriter out, List<Expense> page) {
+        if (out == null) {
+            return null;
+        }
+        try {
+            for (Expense expense : page) {
+                ExpenseCache.append(out, expense);
+            }
+            out.flush();
+            return out;
+        } catch (IOException e) {
+            System.err.println("Could not write the expense cache: " + e.getMessage());
+            closeQuietly(out);
+            return null;
+        }
+    }
+
+    private static void closeQuietly(BufferedWriter out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing left to do about it, the next read drops a torn line
+            }
+        }
+    }
+
+    private static boolean sameExpense(Expense a, Expense b) {
+        return ExpenseJson.toJson(a).equals(ExpenseJson.toJson(b));
+    }
+
+    public void shutdown() {
+        io.shutdownNow();
+        connection.disconnect();
+    }
+
+    private <T> Task<T> submit(Callable<T> work) {
+        Task<T> task = new Task<>() {
+            @Override
+            protected T call() throws Exception {
+                return work.call();
+            }
+        };
+        io.execute(task);
+        return task;
+    }
+
+    // the parts of a "SUCCESS|count[|total]" head; anything else fails the task with the server's answer
+    private static String[] check(String response) throws IOException {
+        if (response == null) {
+            throw new IOException("Lost the connection to the server");
+        }
+        if (!response.startsWith("SUCCESS")) {
+            throw new IOException(response);
+        }
+        String[] parts = response.split("\\|");
+        if (parts.length < 2) {
+            throw new IOException("Unexpected answer: " + response);
+        }
+        return parts;
+    }
+
+    // Collects items on the I/O thread and hands whatever has piled up to the FX thread with a single
+    // runLater. However fast rows arrive, the FX thread sees one list update per pulse, not one per row.
+    private static final class FxBatcher<T> {
+        private final Consumer<List<T>> sink;
+        private final BooleanSupplier cancelled;
+        private List<T> pending = new ArrayList<>();
+        private boolean scheduled;
+
+        FxBatcher(Consumer<List<T>> sink, BooleanSupplier cancelled) {
+            this.sink = sink;
+            this.cancelled = cancelled;
+        }
+
+        synchronized void add(T item) {
+            pending.add(item);
+            schedule();
+        }
+
+        synchronized void addAll(List<T> items) {
+            pending.addAll(items);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!scheduled && !pending.isEmpty()) {
+                scheduled = true;
+                Platform.runLater(this::flush);
+            }
+        }
+
+        private void flush() {
+            List<T> batch;
+            synchronized (this) {
+                batch = pending;
+                pending = new ArrayList<>();
+                scheduled = false;
+            }
+            // cancel() is called on the FX thread, so this sees it before any later batch
+            if (!cancelled.getAsBoolean()) {
+                sink.accept(batch);
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package client;
+
+import common.Expense;
+import common.ExpenseQuery;
+import common.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator for capacity planning: a crowd of simulated users, each on its own
+// connection (and virtual thread), doing a mix of ADD_EXPENSE and GET_EXPENSES against a running
+// server. Prints and writes a report with p50/p90/p99/p99.9 latencies per command and the
+// throughput and latency for every second of the run.
+//
+// The load is open loop. Every user sends at random (Poisson) moments that are planned up front,
+// together adding up to the target rate, and a request's latency is counted from the moment it was
+// planned, not from when it finally went out. When the server stalls, the requests piling up behind
+// the stall are reported with their full wait, instead of the users politely slowing down with the
+// server and hiding it (coordinated omission). A user never has more than one request on the wire,
+// so a user that falls behind sends its late requests back to back until it has caught up.
+//
+// Usage: java client.LoadGenerator [name=value ...]
+//   users=1000        simulated users, one connection each
+//   rate=2000         requests per second, over all users
+//   seconds=60        measured duration
+//   warmup=10         seconds run before measuring, left out of the percentiles
+//   addPercent=80     share of ADD_EXPENSE, the rest is GET_EXPENSES
+//   pageSize=50       expenses per GET_EXPENSES page
+//   history=100       expenses every user gets before the run, so reads have something to page
+//   protocol=binary   binary or text
+//   host=localhost port=5000 report=load-report.txt
+public class LoadGenerator {
+    private static final String[] CATEGORIES = {"Food", "Transport", "Entertainment", "Shopping",
+            "Bills", "Healthcare", "Education", "Other"};
+    private static final LocalDate START = LocalDate.of(2024, 1, 1);
+    // how long after the planned end requests still in flight are waited for
+    private static final int DRAIN_SECONDS = 30;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("users", "1000");
+        DEFAULTS.put("rate", "2000");
+        DEFAULTS.put("seconds", "60");
+        DEFAULTS.put("warmup", "10");
+        DEFAULTS.put("addPercent", "80");
+        DEFAULTS.put("pageSize", "50");
+        DEFAULTS.put("history", "100");
+        DEFAULTS.put("protocol", "binary");
+        DEFAULTS.put("host", "localhost");
+        DEFAULTS.put("port", "5000");
+        DEFAULTS.put("report", "load-report.txt");
+    }
+
+    private final Map<String, String> options;
+    private final int users;
+    private final double rate;
+    private final int seconds;
+    private final int warmup;
+    private final int addPercent;
+    private final int pageSize;
+    private final int history;
+
+    // latencies in microseconds, after the warmup only
+    private final LatencyHistogram addLatency = new LatencyHistogram();
+    private final LatencyHistogram getLatency = new LatencyHistogram();
+    private final AtomicLong addErrors = new AtomicLong();
+    private final AtomicLong getErrors = new AtomicLong();
+    // per second of the run, by completion time, warmup included
+    private final LatencyHistogram[] secondLatency;
+    private final AtomicLongArray secondErrors;
+    // how far behind its plan the furthest user was when it sent its last request
+    private final AtomicLong maxLagNanos = new AtomicLong();
+    private final AtomicInteger lostConnections = new AtomicInteger();
+
+    private long startNanos;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        users = Integer.parseInt(options.get("users"));
+        rate = Double.parseDouble(options.get("rate"));
+        seconds = Integer.parseInt(options.get("seconds"));
+        warmup = Integer.parseInt(options.get("warmup"));
+        addPercent = Integer.parseInt(options.get("addPercent"));
+        pageSize = Integer.parseInt(options.get("pageSize"));
+        history = Integer.parseInt(options.get("history"));
+
+        secondLatency = new LatencyHistogram[warmup + seconds + DRAIN_SECONDS];
+        for (int i = 0; i < secondLatency.length; i++) {
+            secondLatency[i] = new LatencyHistogram();
+        }
+        secondErrors = new AtomicLongArray(secondLatency.length);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !DEFAULTS.containsKey(arg.substring(0, equals))) {
+                System.out.println("Usage: java client.LoadGenerator [name=value ...], names: " + DEFAULTS.keySet());
+                return;
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private void run() throws InterruptedException, IOException {
+        List<ClientConnection> connections = connectAll();
+        if (connections == null) {
+            return;
+        }
+
+        System.out.printf("Running %d users at %.0f requests/s: %d s warmup, %d s measured%n",
+                users, rate, warmup, seconds);
+        // a little head start, so the first planned requests aren't already late
+        startNanos = System.nanoTime() + NANOS_PER_SECOND / 10;
+        List<Thread> threads = new ArrayList<>(users);
+        for (int user = 0; user < users; user++) {
+            ClientConnection connection = connections.get(user);
+            String username = username(user);
+            SplittableRandom random = new SplittableRandom(user);
+            threads.add(Thread.ofVirtual().name("load-" + user).start(() -> runUser(connection, username, random)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (ClientConnection connection : connections) {
+            connection.disconnect();
+        }
+
+        String report = report();
+        System.out.print(report);
+        Files.writeString(Paths.get(options.get("report")), report, StandardCharsets.UTF_8);
+        System.out.println("Report written to " + options.get("report"));
+    }
+
+    // Opens every user's connection, at most a hundred handshakes at a time, and gives each user
+    // its history. Null if any of them couldn't connect.
+    private List<ClientConnection> connectAll() throws InterruptedException {
+        boolean binary = options.get("protocol").equals("binary");
+        String host = options.get("host");
+        int port = Integer.parseInt(options.get("port"));
+        ClientConnection[] connections = new ClientConnection[users];
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger next = new AtomicInteger();
+
+        List<Thread> connectors = new ArrayList<>();
+        for (int c = 0; c < Math.min(100, users); c++) {
+            connectors.add(Thread.ofVirtual().start(() -> {
+                int user;
+                while ((user = next.getAndIncrement()) < users) {
+                    ClientConnection connection = new ClientConnection(host, port, binary);
+                    if (!connection.connect() || !preload(connection, username(user), user)) {
+                        failed.incrementAndGet();
+                    }
+                    connections[user] = connection;
+                }
+            }));
+        }
+        for (Thread connector : connectors) {
+            connector.join();
+        }
+
+        if (failed.get() > 0) {
+            System.out.println(failed.get() + " of " + users + " users could not connect or load their history, giving up");
+            for (ClientConnection connection : connections) {
+                connection.disconnect();
+            }
+            return null;
+        }
+        System.out.println("Connected " + users + " users to " + host + ":" + port
+                + (connections.length > 0 && connections[0].isBinary() ? " (binary)" : " (text)"));
+        return List.of(connections);
+    }
+
+    private boolean preload(ClientConnection connection, String username, int user) {
+        if (history == 0) {
+            return true;
+        }
+        SplittableRandom random = new SplittableRandom(-1 - user);
+        List<Expense> expenses = new ArrayList<>(history);
+        for (int i = 0; i < history; i++) {
+            expenses.add(randomExpense(random));
+        }
+        for (String answer : connection.addExpenses(username, expenses)) {
+            if (!answer.startsWith("SUCCESS")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runUser(ClientConnection connection, String username, SplittableRandom random) {
+        // every user sends at rate / users on average, with exponential gaps in between
+        double meanGapNanos = NANOS_PER_SECOND * users / rate;
+        long measureFrom = startNanos + warmup * NANOS_PER_SECOND;
+        long end = measureFrom + seconds * NANOS_PER_SECOND;
+        ExpenseQuery page = new ExpenseQuery().page(0, pageSize);
+        int[] received = new int[1];
+
+        long planned = startNanos + gap(random, meanGapNanos);
+        long lag = 0;
+        while (planned < end) {
+            long now;
+            while ((now = System.nanoTime()) < planned) {
+                LockSupport.parkNanos(planned - now);
+            }
+            lag = now - planned;
+
+            boolean add = random.nextInt(100) < addPercent;
+            String answer = add
+                    ? connection.addExpense(username, randomExpense(random))
+                    : connection.getExpenses(username, page, expense -> received[0]++);
+            long done = System.nanoTime();
+            record(planned, done, add, answer == null || answer.startsWith("ERROR"), planned >= measureFrom);
+
+            if (!connection.isConnected()) {
+                lostConnections.incrementAndGet();
+                break;
+            }
+            planned += gap(random, meanGapNanos);
+        }
+        maxLagNanos.accumulateAndGet(lag, Math::max);
+    }
+
+    private static long gap(SplittableRandom random, double meanGapNanos) {
+        return (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+    }
+
+    private void record(long planned, long done, boolean add, boolean error, boolean measured) {
+        long micros = (done - planned) / 1000;
+        int second = (int) ((done - startNanos) / NANOS_PER_SECOND);
+        if (second >= 0 && second < secondLatency.length) {
+            if (error) {
+                secondErrors.incrementAndGet(second);
+            } else {
+                secondLatency[second].record(micros);
+            }
+        }
+        if (!measured) {
+            return;
+        }
+        // errors are counted but kept out of the percentiles, a fast ERROR|BUSY would only flatter them
+        if (error) {
+            (add ? addErrors : getErrors).incrementAndGet();
+        } else {
+            (add ? addLatency : getLatency).record(micros);
+        }
+    }
+
+    private String report() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.printf("%nLoad test %s against %s:%s (%s)%n", LocalDateTime.now().withNano(0), options.get("host"),
+                options.get("port"), options.get("protocol"));
+        out.printf("%d users, %.0f requests/s planned, %d%% ADD_EXPENSE, %d s measured after %d s warmup%n%n",
+                users, rate, addPercent, seconds, warmup);
+
+        out.println("command      |   count | errors |   req/s |  mean ms |   p50 ms |   p90 ms |   p99 ms | p99.9 ms |   max ms");
+        LatencyHistogram all = new LatencyHistogram();
+        all.add(addLatency);
+        all.add(getLatency);
+        summaryRow(out, "ADD_EXPENSE", addLatency, addErrors.get());
+        summaryRow(out, "GET_EXPENSES", getLatency, getErrors.get());
+        summaryRow(out, "all", all, addErrors.get() + getErrors.get());
+
+        double lagMs = maxLagNanos.get() / 1e6;
+        out.printf("%nFurthest a user was behind its plan at the end: %.1f ms%n", lagMs);
+        if (lagMs > 1000) {
+            out.println("The server did not keep up with the planned rate, the percentiles include the backlog.");
+        }
+        if (lostConnections.get() > 0) {
+            out.println(lostConnections.get() + " users lost their connection and stopped early.");
+        }
+
+        out.println();
+        out.println("second | completed | errors |   p50 ms |   p99 ms |   max ms");
+        int last = secondLatency.length - 1;
+        while (last >= warmup + seconds && secondLatency[last].getCount() == 0 && secondErrors.get(last) == 0) {
+            last--;
+        }
+        for (int second = 0; second <= last; second++) {
+            LatencyHistogram latency = secondLatency[second];
+            String phase = second < warmup ? " warmup" : second >= warmup + seconds ? " drain" : "";
+            out.printf("%6d | %9d | %6d | %8.2f | %8.2f | %8.2f%s%n", second, latency.getCount(), secondErrors.get(second),
+                    latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+                    latency.getMax() / 1000.0, phase);
+        }
+        out.flush();
+        return text.toString();
+    }
+
+    private void summaryRow(PrintWriter out, String name, LatencyHistogram latency, long errors) {
+        out.printf("%-12s | %7d | %6d | %7.0f | %8.2f | %8.2f | %8.2f | %8.2f | %8.2f | %8.2f%n", name,
+                latency.getCount(), errors, (latency.getCount() + errors) / (double) seconds,
+                latency.getMean() / 1000, latency.getValueAtPercentile(50) / 1000.0,
+                latency.getValueAtPercentile(90) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+                latency.getValueAtPercentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+    }
+
+    private static String username(int user) {
+        return "load" + user;
+    }
+
+    private static Expense randomExpense(SplittableRandom random) {
+        return new Expense(1 + random.nextInt(50_000) / 100.0, CATEGORIES[random.nextInt(CATEGORIES.length)],
+                START.plusDays(random.nextInt(365)), "load test");
+    }
+}
@@ -0,0 +1,210 @@
+package client;
+
+import common.Expense;
+import common.ExpenseQuery;
+
+import javafx.collections.ObservableListBase;
+import javafx.concurrent.Task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The expense table's items for a history too big to download. size() is how many expenses the
+// server has, but only a few pages of them are in memory: get(i) returns the expense if its page is
+// here, and otherwise null (a blank row) while the page is fetched. When it arrives its rows are
+// announced as replaced and the table draws them. TableView only asks for the rows it shows, so
+// scrolling through a million expenses fetches the pages it passes, keeps the most recently used
+// maxPages of them and never holds more than maxPages * pageSize expenses.
+//
+// The pages next to every page that's shown are fetched too, so scrolling on usually finds the next
+// page already here. A fast scroll leaves requests for pages long gone behind; only the latest
+// maxPages requests are kept, older ones are cancelled before they reach the server.
+//
+// Sorting happens on the server (ExpenseQuery.sortBy), and a new sort order drops every page, since
+// every position changes. Pages dropped to stay within maxPages aren't announced: they're the ones
+// shown longest ago, and a row scrolled back to is simply fetched again.
+//
+// Like any list a TableView shows, it's only touched on the FX thread.
+final class PagedExpenseList extends ObservableListBase<Expense> {
+    private final ExpenseService service;
+    private final String username;
+    private final int pageSize;
+    private final int maxPages;
+    // page number -> its rows, least recently used first
+    private final LinkedHashMap<Integer, List<Expense>> pages = new LinkedHashMap<>(16, 0.75f, true);
+    // page number -> the request fetching it, oldest first
+    private final LinkedHashMap<Integer, Task<ExpenseService.Page>> requests = new LinkedHashMap<>();
+    private ExpenseQuery.SortKey sortKey;
+    private boolean descending;
+    private int size;
+
+    PagedExpenseList(ExpenseService service, String username, int size, int pageSize, int maxPages) {
+        this.service = service;
+        this.username = username;
+        this.size = size;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Expense get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + size);
+        }
+        int page = index / pageSize;
+        int offset = index - page * pageSize;
+        List<Expense> rows = pages.get(page);
+        if (rows != null && offset >= rows.size()) {
+            // the page was fetched when the history was shorter, and the rows added since weren't pushed
+            pages.remove(page);
+            rows = null;
+        }
+        fetch(page);
+        fetch(page + 1);
+        fetch(page - 1);
+        return rows != null ? rows.get(offset) : null;
+    }
+
+    // null sorts by when the expenses were added
+    void sortBy(ExpenseQuery.SortKey sortKey, boolean descending) {
+        if (sortKey == this.sortKey && descending == this.descending) {
+            return;
+        }
+        this.sortKey = sortKey;
+        this.descending = descending;
+        refresh();
+    }
+
+    // Drops every page, the rows shown are fetched again. For when the history changed in a way the
+    // list can't follow by itself.
+    void refresh() {
+        for (Task<ExpenseService.Page> request : requests.values()) {
+            request.cancel();
+        }
+        requests.clear();
+
+        Map<Integer, List<Expense>> dropped = new LinkedHashMap<>(pages);
+        pages.clear();
+        beginChange();
+        for (Map.Entry<Integer, List<Expense>> page : dropped.entrySet()) {
+            int from = page.getKey() * pageSize;
+            int to = Math.min(from + page.getValue().size(), size);
+            if (from < to) {
+                nextReplace(from, to, page.getValue().subList(0, to - from));
+            }
+        }
+        endChange();
+    }
+
+    // the table has moved on to other items, stop fetching
+    void close() {
+        for (Task<ExpenseService.Page> request : requests.values()) {
+            request.cancel();
+        }
+        requests.clear();
+        pages.clear();
+    }
+
+    // Pushed expenses. In the order they were added, they go at the end: the list grows, and the last
+    // page takes them if it's here. In any other order they could land anywhere, so every page is
+    // fetched again; the same goes for a resync, since pushes went missing.
+    void pushed(List<ExpenseService.Push> pushes) {
+        boolean resync = false;
+        int end = size;
+        for (ExpenseService.Push push : pushes) {
+            if (push.isResync()) {
+                resync = true;
+            } else {
+                end = Math.max(end, push.getSequence() + 1);
+            }
+        }
+
+        if (resync || sortKey != null || descending) {
+            resize(end);
+            refresh();
+            return;
+        }
+        for (ExpenseService.Push push : pushes) {
+            if (push.isResync()) {
+                continue;
+            }
+            int page = push.getSequence() / pageSize;
+            List<Expense> rows = pages.get(page);
+            if (rows != null && push.getSequence() == page * pageSize + rows.size()) {
+                rows.add(push.getExpense());
+            }
+        }
+        resize(end);
+    }
+
+    private void fetch(int page) {
+        if (page < 0 || (long) page * pageSize >= size || pages.containsKey(page) || requests.containsKey(page)) {
+            return;
+        }
+        ExpenseQuery query = new ExpenseQuery().sortBy(sortKey, descending).page(page * pageSize, pageSize);
+        Task<ExpenseService.Page> request = service.page(username, query);
+        requests.put(page, request);
+        request.setOnSucceeded(e -> loaded(page, request));
+        // the rows stay blank, the next time the table asks for them they're asked for again
+        request.setOnFailed(e -> requests.remove(page, request));
+
+        while (requests.size() > maxPages) {
+            Iterator<Task<ExpenseService.Page>> oldest = requests.values().iterator();
+            oldest.next().cancel();
+            oldest.remove();
+        }
+    }
+
+    private void loaded(int page, Task<ExpenseService.Page> request) {
+        if (requests.get(page) != request) {
+            // asked for before a new sort order or a refresh
+            return;
+        }
+        requests.remove(page);
+        ExpenseService.Page result = request.getValue();
+        resize(result.getTotal());
+
+        int from = page * pageSize;
+        int to = Math.min(from + result.getRows().size(), size);
+        if (from >= to) {
+            return;
+        }
+        // a list of its own, pushes may add to it
+        pages.put(page, new ArrayList<>(result.getRows()));
+        while (pages.size() > maxPages) {
+            Iterator<Integer> eldest = pages.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        beginChange();
+        // blank before
+        nextReplace(from, to, Collections.nCopies(to - from, null));
+        endChange();
+    }
+
+    private void resize(int newSize) {
+        if (newSize == size) {
+            return;
+        }
+        int oldSize = size;
+        size = newSize;
+        beginChange();
+        if (newSize > oldSize) {
+            nextAdd(oldSize, newSize);
+        } else {
+            // only if the server's data was replaced, start over
+            pages.clear();
+            nextRemove(newSize, Collections.nCopies(oldSize - newSize, null));
+        }
+        endChange();
+    }
+}
@@ -0,0 +1,236 @@
+package client;
+
+import common.BinaryProtocol;
+import common.Expense;
+import common.ExpenseJson;
+import common.ExpenseProtocol;
+import common.ExpenseQuery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Text protocol vs binary protocol, two ways:
+//   codec  encodes and decodes the same ADD_EXPENSE requests and GET_EXPENSES answers in memory
+//          and reports bytes on the wire and throughput. The bytes are exactly what the socket sees.
+//   live   runs the same adds (one request per expense, then pipelined ADD_EXPENSES_BATCH requests)
+//          and a full fetch against a running server once per protocol
+//
+// Usage: java client.ProtocolBenchmark [rows]
+//        java client.ProtocolBenchmark live [rows] [host] [port]
+public class ProtocolBenchmark {
+    private static final String[] CATEGORIES = {"Food", "Transport", "Entertainment", "Shopping",
+            "Bills", "Healthcare", "Education", "Other"};
+    private static final LocalDate START = LocalDate.of(2020, 1, 1);
+    private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_LOCAL_DATE;
+    private static final int CHUNK_ROWS = 256;
+
+    public static void main(String[] args) throws IOException {
+        boolean live = args.length > 0 && args[0].equals("live");
+        int first = live ? 1 : 0;
+        int rows = args.length > first ? Integer.parseInt(args[first]) : (live ? 20_000 : 200_000);
+
+        List<Expense> expenses = generate(rows);
+        if (live) {
+            String host = args.length > 2 ? args[2] : "localhost";
+            int port = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+            runLive(expenses, host, port);
+        } else {
+            runCodec(expenses);
+        }
+    }
+
+    private static List<Expense> generate(int rows) {
+        Random random = new Random(42);
+        List<Expense> expenses = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            expenses.add(new Expense(1 + random.nextInt(50_000) / 100.0, CATEGORIES[random.nextInt(CATEGORIES.length)],
+                    START.plusDays(random.nextInt(5 * 365)), "note " + i));
+        }
+        return expenses;
+    }
+
+    private static void runCodec(List<Expense> expenses) throws IOException {
+        System.out.printf("%,d expenses, encode + decode, best of 5 rounds%n%n", expenses.size());
+        System.out.println("payload               | protocol |  bytes/row |   total MB |  rows/s (M)");
+
+        long textAdd = 0, binaryAdd = 0, textGet = 0, binaryGet = 0;
+        long textAddBytes = 0, binaryAddBytes = 0, textGetBytes = 0, binaryGetBytes = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            textAddBytes = textAddRequests(expenses);
+            textAdd = best(textAdd, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            binaryAddBytes = binaryAddRequests(expenses);
+            binaryAdd = best(binaryAdd, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            textGetBytes = textGetAnswer(expenses);
+            textGet = best(textGet, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            binaryGetBytes = binaryGetAnswer(expenses);
+            binaryGet = best(binaryGet, System.nanoTime() - start);
+        }
+
+        report("ADD_EXPENSE requests", "text", textAddBytes, textAdd, expenses.size());
+        report("ADD_EXPENSE requests", "binary", binaryAddBytes, binaryAdd, expenses.size());
+        report("GET_EXPENSES answer", "text", textGetBytes, textGet, expenses.size());
+        report("GET_EXPENSES answer", "binary", binaryGetBytes, binaryGet, expenses.size());
+    }
+
+    private static long best(long best, long nanos) {
+        return best == 0 ? nanos : Math.min(best, nanos);
+    }
+
+    private static void report(String payload, String protocol, long bytes, long nanos, int rows) {
+        System.out.printf("%-21s | %-8s | %10.1f | %10.2f | %11.2f%n", payload, protocol,
+                (double) bytes / rows, bytes / (1024.0 * 1024.0), rows / (nanos / 1e9) / 1e6);
+    }
+
+    // what Client builds and ClientHandler takes apart for every ADD_EXPENSE line
+    private static long textAddRequests(List<Expense> expenses) {
+        long bytes = 0;
+        double checksum = 0;
+        for (Expense expense : expenses) {
+            byte[] line = (ExpenseProtocol.toServerMessage(expense, "alice") + "\n").getBytes(StandardCharsets.UTF_8);
+            bytes += line.length;
+
+            String message = new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+            String[] parts = message.split("\\|");
+            checksum += Double.parseDouble(parts[2]) + LocalDate.parse(parts[4], dateFormatter).getDayOfMonth()
+                    + parts[3].length() + parts[5].length();
+        }
+        consume(checksum);
+        return bytes;
+    }
+
+    private static long binaryAddRequests(List<Expense> expenses) throws IOException {
+        BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter();
+        BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(Integer.MAX_VALUE);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        long bytes = 0;
+        double checksum = 0;
+        for (Expense expense : expenses) {
+            wire.reset();
+            writer.begin(BinaryProtocol.ADD_EXPENSE).writeString("alice").writeExpense(expense).writeTo(wire);
+            bytes += wire.size();
+
+            reader.readFrom(new ByteArrayInputStream(wire.toByteArray()));
+            reader.readByte();
+            reader.readString();
+            Expense decoded = reader.readExpense();
+            checksum += decoded.getAmount() + decoded.getDate().getDayOfMonth()
+                    + decoded.getCategory().length() + decoded.getNote().length();
+        }
+        consume(checksum);
+        return bytes;
+    }
+
+    // a JSON line per expense, the way the server streams GET_EXPENSES and the client parses it
+    private static long textGetAnswer(List<Expense> expenses) {
+        StringBuilder chunk = new StringBuilder();
+        long bytes = 0;
+        double checksum = 0;
+        for (int start = 0; start < expenses.size(); start += CHUNK_ROWS) {
+            chunk.setLength(0);
+            for (Expense expense : expenses.subList(start, Math.min(start + CHUNK_ROWS, expenses.size()))) {
+                ExpenseJson.appendJson(expense, chunk);
+                chunk.append('\n');
+            }
+            byte[] wire = chunk.toString().getBytes(StandardCharsets.UTF_8);
+            bytes += wire.length;
+
+            for (String line : new String(wire, StandardCharsets.UTF_8).split("\n")) {
+                checksum += ExpenseJson.fromJson(line).getAmount();
+            }
+        }
+        consume(checksum);
+        return bytes;
+    }
+
+    private static long binaryGetAnswer(List<Expense> expenses) throws IOException {
+        BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter();
+        BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(Integer.MAX_VALUE);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        long bytes = 0;
+        double checksum = 0;
+        for (int start = 0; start < expenses.size(); start += CHUNK_ROWS) {
+            List<Expense> rows = expenses.subList(start, Math.min(start + CHUNK_ROWS, expenses.size()));
+            wire.reset();
+            writer.begin(BinaryProtocol.EXPENSE_CHUNK).writeVarint(rows.size());
+            for (Expense expense : rows) {
+                writer.writeExpense(expense);
+            }
+            writer.writeTo(wire);
+            bytes += wire.size();
+
+            reader.readFrom(new ByteArrayInputStream(wire.toByteArray()));
+            reader.readByte();
+            int count = reader.readInt();
+            for (int i = 0; i < count; i++) {
+                checksum += reader.readExpense().getAmount();
+            }
+        }
+        consume(checksum);
+        return bytes;
+    }
+
+    private static void consume(double checksum) {
+        if (checksum == 42.4242) {
+            System.out.println();
+        }
+    }
+
+    private static void runLive(List<Expense> expenses, String host, int port) {
+        System.out.printf("%,d expenses against %s:%d%n%n", expenses.size(), host, port);
+        System.out.println("protocol |    adds/s | batched adds/s | fetch rows/s");
+        for (boolean binary : new boolean[]{false, true}) {
+            ClientConnection connection = new ClientConnection(host, port, binary);
+            if (!connection.connect()) {
+                System.out.println("Could not connect to " + host + ":" + port);
+                return;
+            }
+            String username = "bench_" + (binary ? "binary" : "text") + "_" + System.currentTimeMillis();
+
+            long start = System.nanoTime();
+            for (Expense expense : expenses) {
+                String response = connection.addExpense(username, expense);
+                if (!response.startsWith("SUCCESS")) {
+                    System.out.println("Add failed: " + response);
+                    return;
+                }
+            }
+            double addSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (String response : connection.addExpenses(username + "_batched", expenses)) {
+                if (!response.startsWith("SUCCESS")) {
+                    System.out.println("Batch failed: " + response);
+                    return;
+                }
+            }
+            double batchSeconds = (System.nanoTime() - start) / 1e9;
+
+            int[] received = new int[1];
+            start = System.nanoTime();
+            String head = connection.getExpenses(username, new ExpenseQuery(), expense -> received[0]++);
+            double fetchSeconds = (System.nanoTime() - start) / 1e9;
+            connection.disconnect();
+
+            if (received[0] != expenses.size()) {
+                System.out.println("Fetch returned " + received[0] + " rows: " + head);
+                return;
+            }
+            System.out.printf("%-8s | %9.0f | %14.0f | %12.0f%n", connection.isBinary() ? "binary" : "text",
+                    expenses.size() / addSeconds, expenses.size() / batchSeconds, expenses.size() / fetchSeconds);
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary framing, the alternative to the pipe-delimited text protocol. A client asks for it
+// right after the welcome banner by sending "PROTOCOL|BINARY" and waiting for "SUCCESS|BINARY"; from
+// then on both sides only exchange frames. Servers that don't know the command answer with an ERROR
+// and the client simply keeps talking text.
+//
+// Frame: varint payload length, then the payload, which starts with an opcode byte.
+//
+//   client -> server                               server -> client
+//   0x01 ADD_EXPENSE   username, expense           0x10 TEXT          line
+//   0x02 GET_EXPENSES  username, query             0x11 EXPENSES      varint count, varint total
+//   0x03 GET_SUMMARY   username, groupBy byte,     0x12 EXPENSE_CHUNK varint n, n expenses
+//                      date from, date to          0x13 SUMMARY       varint n, n x (string key,
+//   0x04 QUIT                                                         amount total, varint count)
+//   0x05 ADD_EXPENSES_BATCH  username, varint n, n expenses
+//   0x06 GET_EXPENSES_SINCE  username, varint sequence, varint limit
+//   0x0F TEXT          any text-protocol command
+//
+// Every answer that isn't a list (SUCCESS/ERROR/BUSY messages) is a TEXT frame holding exactly the
+// line the text protocol would send. EXPENSES is followed by EXPENSE_CHUNK frames until count expenses
+// have arrived; for GET_EXPENSES_SINCE the total is the sequence number the next added expense will
+// get. A TEXT request is answered with one TEXT frame per line of the text answer.
+//
+// Fields:
+//   varint    unsigned LEB128
+//   string    varint (UTF-8 length + 1), then the bytes. 0 means null
+//   amount    varint (zigzag(cents) << 1) when the amount is an exact number of cents, otherwise
+//             varint 1 followed by the 8-byte IEEE double. Decodes to the very same double either way
+//   date      varint 0 for null, otherwise zigzag(epoch day) + 1
+//   category  varint 0 for null, 1 for a new name (string follows, it gets the next id),
+//             id + 2 for a name sent before. Each direction of a connection has its own dictionary
+//   expense   amount, category, date, string note
+//   query     flags byte (1 from, 2 to, 4 category, 8 min, 16 max, 32 sorted), the fields that are
+//             set in that order (min/max as 8-byte doubles, sorted as a byte: 1 + the SortKey ordinal,
+//             + 128 for descending), then varint offset, varint limit
+public final class BinaryProtocol {
+    public static final String NEGOTIATE_COMMAND = "PROTOCOL|BINARY";
+    public static final String NEGOTIATE_OK = "SUCCESS|BINARY";
+
+    public static final int ADD_EXPENSE = 0x01;
+    public static final int GET_EXPENSES = 0x02;
+    public static final int GET_SUMMARY = 0x03;
+    public static final int QUIT = 0x04;
+    public static final int ADD_EXPENSES_BATCH = 0x05;
+    public static final int GET_EXPENSES_SINCE = 0x06;
+    public static final int TEXT_COMMAND = 0x0F;
+
+    public static final int TEXT = 0x10;
+    public static final int EXPENSES = 0x11;
+    public static final int EXPENSE_CHUNK = 0x12;
+    public static final int SUMMARY = 0x13;
+
+    // names past this many are still sent, just spelled out every time
+    private static final int MAX_DICTIONARY_SIZE = 1024;
+
+    private static final int QUERY_FROM = 1;
+    private static final int QUERY_TO = 2;
+    private static final int QUERY_CATEGORY = 4;
+    private static final int QUERY_MIN = 8;
+    private static final int QUERY_MAX = 16;
+    private static final int QUERY_SORTED = 32;
+    private static final int SORT_DESCENDING = 128;
+
+    private BinaryProtocol() {
+    }
+
+    // Builds one frame at a time into a reusable buffer. Keep one per connection and direction,
+    // the category dictionary lives as long as the connection.
+    public static final class FrameWriter {
+        private final Map<String, Integer> categoryIds = new HashMap<>();
+        private byte[] buffer = new byte[256];
+        private int length;
+
+        public FrameWriter begin(int opcode) {
+            length = 0;
+            return writeByte(opcode);
+        }
+
+        public FrameWriter writeByte(int value) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) value;
+            return this;
+        }
+
+        public FrameWriter writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+            return this;
+        }
+
+        public FrameWriter writeDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (bits >>> shift);
+            }
+            return this;
+        }
+
+        public FrameWriter writeString(String value) {
+            if (value == null) {
+                return writeVarint(0);
+            }
+            // almost everything we send is ASCII, which is its own UTF-8
+            int chars = value.length();
+            boolean ascii = true;
+            for (int i = 0; i < chars && ascii; i++) {
+                ascii = value.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                writeVarint(chars + 1L);
+                ensureCapacity(chars);
+                for (int i = 0; i < chars; i++) {
+                    buffer[length++] = (byte) value.charAt(i);
+                }
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length + 1L);
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                length += bytes.length;
+            }
+            return this;
+        }
+
+        public FrameWriter writeAmount(double amount) {
+            long cents = Math.round(amount * 100);
+            if (Math.abs(cents) < (1L << 52) && Double.compare(cents / 100.0, amount) == 0) {
+                return writeVarint(zigzag(cents) << 1);
+            }
+            return writeVarint(1).writeDouble(amount);
+        }
+
+        public FrameWriter writeDate(LocalDate date) {
+            return writeVarint(date == null ? 0 : zigzag(date.toEpochDay()) + 1);
+        }
+
+        public FrameWriter writeCategory(String category) {
+            if (category == null) {
+                return writeVarint(0);
+            }
+            Integer id = categoryIds.get(category);
+            if (id != null) {
+                return writeVarint(id + 2L);
+            }
+            if (categoryIds.size() < MAX_DICTIONARY_SIZE) {
+                categoryIds.put(category, categoryIds.size());
+            }
+            return writeVarint(1).writeString(category);
+        }
+
+        public FrameWriter writeExpense(Expense expense) {
+            return writeAmount(expense.getAmount())
+                    .writeCategory(expense.getCategory())
+                    .writeDate(expense.getDate())
+                    .writeString(expense.getNote());
+        }
+
+        public FrameWriter writeQuery(ExpenseQuery query) {
+            int flags = (query.getFrom() != null ? QUERY_FROM : 0)
+                    | (query.getTo() != null ? QUERY_TO : 0)
+                    | (query.getCategory() != null ? QUERY_CATEGORY : 0)
+                    | (query.getMinAmount() != null ? QUERY_MIN : 0)
+                    | (query.getMaxAmount() != null ? QUERY_MAX : 0)
+                    | (query.getSortKey() != null || query.isDescending() ? QUERY_SORTED : 0);
+            writeByte(flags);
+            if (query.getFrom() != null) writeDate(query.getFrom());
+            if (query.getTo() != null) writeDate(query.getTo());
+            if (query.getCategory() != null) writeString(query.getCategory());
+            if (query.getMinAmount() != null) writeDouble(query.getMinAmount());
+            if (query.getMaxAmount() != null) writeDouble(query.getMaxAmount());
+            if ((flags & QUERY_SORTED) != 0) {
+                int key = query.getSortKey() != null ? query.getSortKey().ordinal() + 1 : 0;
+                writeByte(key | (query.isDescending() ? SORT_DESCENDING : 0));
+            }
+            return writeVarint(query.getOffset()).writeVarint(query.getLimit());
+        }
+
+        // bytes the finished frame takes on the wire, length prefix included
+        public int frameSize() {
+            return varintSize(length) + length;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            int value = length;
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+            out.write(buffer, 0, length);
+        }
+
+        // the finished frame as its own array, length prefix included
+        public byte[] toFrame() {
+            byte[] frame = new byte[frameSize()];
+            int position = 0;
+            int value = length;
+            while ((value & ~0x7F) != 0) {
+                frame[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            frame[position++] = (byte) value;
+            System.arraycopy(buffer, 0, frame, position, length);
+            return frame;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+    }
+
+    // Reads the fields of one frame at a time. Keep one per connection and direction, like FrameWriter.
+    public static final class FrameReader {
+        private final List<String> categories = new ArrayList<>();
+        private final int maxFrameBytes;
+        private byte[] frame = new byte[256];
+        private int position;
+        private int limit;
+
+        public FrameReader(int maxFrameBytes) {
+            this.maxFrameBytes = maxFrameBytes;
+        }
+
+        // reads the next frame off the stream, false at a clean end of stream
+        public boolean readFrom(InputStream in) throws IOException {
+            int size = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    if (shift == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Connection closed inside a frame header");
+                }
+                if (shift > 28) {
+                    throw new IOException("Malformed frame length");
+                }
+                size |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (size < 1 || size > maxFrameBytes) {
+                throw new IOException("Frame of " + size + " bytes is out of bounds");
+            }
+
+            if (frame.length < size) {
+                frame = new byte[Math.max(size, frame.length * 2)];
+            }
+            int read = 0;
+            while (read < size) {
+                int n = in.read(frame, read, size - read);
+                if (n < 0) {
+                    throw new EOFException("Connection closed inside a frame");
+                }
+                read += n;
+            }
+            position = 0;
+            limit = size;
+            return true;
+        }
+
+        // reads from a payload that was framed by someone else (the NIO engine cuts frames itself)
+        public void wrap(byte[] payload, int length) {
+            this.frame = payload;
+            this.position = 0;
+            this.limit = length;
+        }
+
+        public int readByte() {
+            if (position >= limit) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+            return frame[position++] & 0xFF;
+        }
+
+        public long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        public int readInt() {
+            long value = readVarint();
+            if (value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Value out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        public double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        public String readString() {
+            int size = readInt();
+            if (size == 0) {
+                return null;
+            }
+            size--;
+            if (size > limit - position) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+            String value = new String(frame, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+
+        public double readAmount() {
+            long value = readVarint();
+            if ((value & 1) == 0) {
+                return unzigzag(value >>> 1) / 100.0;
+            }
+            return readDouble();
+        }
+
+        public LocalDate readDate() {
+            long value = readVarint();
+            return value == 0 ? null : LocalDate.ofEpochDay(unzigzag(value - 1));
+        }
+
+        public String readCategory() {
+            long value = readVarint();
+            if (value == 0) {
+                return null;
+            }
+            if (value == 1) {
+                String category = readString();
+                if (categories.size() < MAX_DICTIONARY_SIZE) {
+                    categories.add(category);
+                }
+                return category;
+            }
+            long id = value - 2;
+            if (id >= categories.size()) {
+                throw new IllegalArgumentException("Unknown category id " + id);
+            }
+            return categories.get((int) id);
+        }
+
+        public Expense readExpense() {
+            double amount = readAmount();
+            String category = readCategory();
+            LocalDate date = readDate();
+            String note = readString();
+            return new Expense(amount, category, date, note);
+        }
+
+        public ExpenseQuery readQuery() {
+            int flags = readByte();
+            LocalDate from = (flags & QUERY_FROM) != 0 ? readDate() : null;
+            LocalDate to = (flags & QUERY_TO) != 0 ? readDate() : null;
+            String category = (flags & QUERY_CATEGORY) != 0 ? readString() : null;
+            Double min = (flags & QUERY_MIN) != 0 ? readDouble() : null;
+            Double max = (flags & QUERY_MAX) != 0 ? readDouble() : null;
+            ExpenseQuery query = new ExpenseQuery().dateRange(from, to).category(category).amountRange(min, max);
+            if ((flags & QUERY_SORTED) != 0) {
+                int sort = readByte();
+                int key = (sort & ~SORT_DESCENDING) - 1;
+                if (key >= ExpenseQuery.SortKey.values().length) {
+                    throw new IllegalArgumentException("Unknown sort: " + key);
+                }
+                query.sortBy(key < 0 ? null : ExpenseQuery.SortKey.values()[key], (sort & SORT_DESCENDING) != 0);
+            }
+            return query.page(readInt(), readInt());
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
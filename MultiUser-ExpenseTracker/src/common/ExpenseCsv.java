@@ -0,0 +1,154 @@
+package common;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Expenses as CSV, for importing bank exports and exporting a user's history. We write
+// "amount,category,date,note" and quote fields the way RFC 4180 says (double quotes, "" inside
+// them). When reading, a header row may list those columns in any order, with any extra columns
+// in between. Without a header, the columns are expected in our order.
+public class ExpenseCsv {
+    public static final String HEADER = "amount,category,date,note";
+
+    private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    // which field holds which value
+    public static final class Layout {
+        public static final Layout DEFAULT = new Layout(0, 1, 2, 3);
+
+        private final int amount;
+        private final int category;
+        private final int date;
+        private final int note; // -1 when the file has no notes
+
+        private Layout(int amount, int category, int date, int note) {
+            this.amount = amount;
+            this.category = category;
+            this.date = date;
+            this.note = note;
+        }
+
+        // The layout a header row describes, or null if the row isn't a header (so it's data)
+        public static Layout fromHeader(String[] fields) {
+            int amount = -1, category = -1, date = -1, note = -1;
+            for (int i = 0; i < fields.length; i++) {
+                switch (fields[i].trim().toLowerCase(Locale.ROOT)) {
+                    case "amount": amount = i; break;
+                    case "category": category = i; break;
+                    case "date": date = i; break;
+                    case "note": note = i; break;
+                    default: break;
+                }
+            }
+            if (amount < 0 || category < 0 || date < 0) {
+                return null;
+            }
+            return new Layout(amount, category, date, note);
+        }
+
+        // fields a record needs at least, a trailing note may be left off
+        private int required() {
+            return Math.max(amount, Math.max(category, date)) + 1;
+        }
+    }
+
+    public static void appendCsv(Expense expense, Appendable out) throws IOException {
+        out.append(Double.toString(expense.getAmount())).append(',');
+        appendField(expense.getCategory(), out);
+        out.append(',').append(expense.getDate().format(dateFormatter)).append(',');
+        appendField(expense.getNote(), out);
+    }
+
+    private static void appendField(String value, Appendable out) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+
+    // True when the record doesn't end inside a quoted field. A quoted field can span lines, so a
+    // record is read line by line until this holds.
+    public static boolean isComplete(CharSequence record) {
+        int quotes = 0;
+        for (int i = 0; i < record.length(); i++) {
+            if (record.charAt(i) == '"') {
+                quotes++;
+            }
+        }
+        return quotes % 2 == 0;
+    }
+
+    public static String[] parseRecord(String record) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    // Builds the expense a record describes. Fields that don't parse throw an IllegalArgumentException
+    // with the same message the server answers for a bad ADD_EXPENSE
+    public static Expense fromFields(String[] fields, Layout layout) {
+        if (fields.length < layout.required()) {
+            throw new IllegalArgumentException("Expected at least " + layout.required() + " fields but found " + fields.length);
+        }
+
+        double amount;
+        try {
+            amount = Double.parseDouble(fields[layout.amount].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid amount format");
+        }
+
+        LocalDate date;
+        try {
+            date = LocalDate.parse(fields[layout.date].trim(), dateFormatter);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid date format. Use YYYY-MM-DD");
+        }
+
+        String note = layout.note >= 0 && layout.note < fields.length ? fields[layout.note] : "";
+        return new Expense(amount, fields[layout.category].trim(), date, note);
+    }
+}
@@ -2,6 +2,7 @@ package common;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import com.google.gson.TypeAdapter;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
@@ -9,6 +10,8 @@ import com.google.gson.stream.JsonWriter;
 import java.io.IOException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
 
 public class ExpenseJson {
     //? Why "Gson"? We went with this because storing in JSON is easier but a pain to deal with in Java. Gson is a library that makes it easier to serialize and deserialize JSON in Java. 
@@ -17,14 +20,83 @@ public class ExpenseJson {
             .registerTypeAdapter(LocalDate.class, new LocalDateAdapter())
             .create();
 
+    // Single expenses go through ExpenseCodec, which writes and reads the same JSON as Gson without
+    // reflection. Anything the codec isn't sure about falls back to Gson, so the format and the
+    // errors stay exactly what they were.
     public static String toJson(Expense expense) {
-        return gson.toJson(expense);
+        if (expense == null || !ExpenseCodec.canWrite(expense)) {
+            return toJsonReflective(expense);
+        }
+        StringBuilder json = new StringBuilder(96);
+        appendJson(expense, json);
+        return json.toString();
+    }
+
+    // same as toJson, but straight into a buffer or stream instead of a new String per expense
+    public static void appendJson(Expense expense, Appendable out) {
+        if (expense == null || !ExpenseCodec.canWrite(expense)) {
+            gson.toJson(expense, Expense.class, out);
+            return;
+        }
+        try {
+            ExpenseCodec.write(expense, out);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
     }
 
     public static Expense fromJson(String json) {
+        if (json != null) {
+            Expense expense = ExpenseCodec.read(json);
+            if (expense != null) {
+                return expense;
+            }
+        }
+        return fromJsonReflective(json);
+    }
+
+    // the plain Gson versions, for the fallback and to compare the codec against
+    static String toJsonReflective(Expense expense) {
+        return gson.toJson(expense);
+    }
+
+    static Expense fromJsonReflective(String json) {
         return gson.fromJson(json, Expense.class);
     }
 
+    // A whole batch as one JSON array, the way ADD_EXPENSES_BATCH carries it on a single line. Each
+    // element goes through ExpenseCodec like a single expense; if one of them can't, the whole array
+    // goes to Gson, so the output and the errors are the same as before.
+    public static String toJsonArray(List<Expense> expenses) {
+        if (expenses == null) {
+            return gson.toJson(expenses);
+        }
+        for (Expense expense : expenses) {
+            if (expense == null || !ExpenseCodec.canWrite(expense)) {
+                return gson.toJson(expenses);
+            }
+        }
+        StringBuilder json = new StringBuilder(expenses.size() * 96 + 2).append('[');
+        for (int i = 0; i < expenses.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendJson(expenses.get(i), json);
+        }
+        return json.append(']').toString();
+    }
+
+    public static List<Expense> fromJsonArray(String json) {
+        if (json != null) {
+            List<Expense> expenses = ExpenseCodec.readArray(json);
+            if (expenses != null) {
+                return expenses;
+            }
+        }
+        Expense[] expenses = gson.fromJson(json, Expense[].class);
+        return expenses == null ? null : Arrays.asList(expenses);
+    }
+
     // And this too! 🙏
     private static class LocalDateAdapter extends TypeAdapter<LocalDate> {
         private static final DateTimeFormatter formatter = DateTimeFormatter.ISO_LOCAL_DATE;
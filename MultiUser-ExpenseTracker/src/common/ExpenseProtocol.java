@@ -2,6 +2,7 @@ package common;
 
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 
 public class ExpenseProtocol {
     private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_LOCAL_DATE;
@@ -24,5 +25,9 @@ public class ExpenseProtocol {
                 username, expense.getAmount(), expense.getCategory(),
                 expense.getDate().format(dateFormatter), note);
     }
-}
 
+    // ADD_EXPENSES_BATCH|username|[json, ...], the whole batch on one line
+    public static String toBatchMessage(List<Expense> expenses, String username) {
+        return "ADD_EXPENSES_BATCH|" + username + "|" + ExpenseJson.toJsonArray(expenses);
+    }
+}
@@ -0,0 +1,205 @@
+package common;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+// Optional filters, sorting and paging for GET_EXPENSES. On the wire they're extra key=value fields:
+//   GET_EXPENSES|alice|from=2024-01-01|to=2024-01-31|category=Food|min=5|max=100|offset=0|limit=50
+//   GET_EXPENSES|alice|sort=amount|order=desc|offset=1000|limit=100
+// Everything is optional, plain GET_EXPENSES|alice still returns the whole history. Without a sort
+// the expenses come in the order they were added, and order=desc alone gives the newest first.
+public class ExpenseQuery {
+    private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    // categories sort case-insensitively; ties stay in the order the expenses were added
+    public enum SortKey { AMOUNT, DATE, CATEGORY }
+
+    private LocalDate from;
+    private LocalDate to;
+    private String category;
+    private Double minAmount;
+    private Double maxAmount;
+    private SortKey sortKey;
+    private boolean descending;
+    private int offset;
+    private int limit = Integer.MAX_VALUE;
+
+    public ExpenseQuery() {
+    }
+
+    // dates are inclusive on both ends, so from=to gives a single day
+    public ExpenseQuery dateRange(LocalDate from, LocalDate to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    public ExpenseQuery category(String category) {
+        this.category = category;
+        return this;
+    }
+
+    public ExpenseQuery amountRange(Double minAmount, Double maxAmount) {
+        this.minAmount = minAmount;
+        this.maxAmount = maxAmount;
+        return this;
+    }
+
+    // null sorts by when the expenses were added
+    public ExpenseQuery sortBy(SortKey sortKey, boolean descending) {
+        this.sortKey = sortKey;
+        this.descending = descending;
+        return this;
+    }
+
+    public ExpenseQuery page(int offset, int limit) {
+        this.offset = offset;
+        this.limit = limit;
+        return this;
+    }
+
+    public boolean matches(Expense expense) {
+        if (from != null && expense.getDate().isBefore(from)) return false;
+        if (to != null && expense.getDate().isAfter(to)) return false;
+        // the server's rule for the same category: equal once lower-cased with Locale.ROOT
+        if (category != null && (expense.getCategory() == null
+                || !category.toLowerCase(Locale.ROOT).equals(expense.getCategory().toLowerCase(Locale.ROOT)))) return false;
+        if (minAmount != null && expense.getAmount() < minAmount) return false;
+        if (maxAmount != null && expense.getAmount() > maxAmount) return false;
+        return true;
+    }
+
+    public boolean hasFilters() {
+        return from != null || to != null || category != null || minAmount != null || maxAmount != null;
+    }
+
+    public String toCommand(String username) {
+        StringBuilder command = new StringBuilder("GET_EXPENSES|").append(username);
+        if (from != null) command.append("|from=").append(from.format(dateFormatter));
+        if (to != null) command.append("|to=").append(to.format(dateFormatter));
+        if (category != null) command.append("|category=").append(category.replace("|", "_"));
+        if (minAmount != null) command.append("|min=").append(minAmount);
+        if (maxAmount != null) command.append("|max=").append(maxAmount);
+        if (sortKey != null) command.append("|sort=").append(sortKey.name().toLowerCase());
+        if (descending) command.append("|order=desc");
+        if (offset > 0) command.append("|offset=").append(offset);
+        if (limit != Integer.MAX_VALUE) command.append("|limit=").append(limit);
+        return command.toString();
+    }
+
+    // parses the key=value fields of an already split GET_EXPENSES message, starting at parts[start]
+    public static ExpenseQuery parse(String[] parts, int start) {
+        ExpenseQuery query = new ExpenseQuery();
+
+        for (int i = start; i < parts.length; i++) {
+            int equals = parts[i].indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Invalid option: " + parts[i]);
+            }
+            String key = parts[i].substring(0, equals).trim().toLowerCase();
+            String value = parts[i].substring(equals + 1).trim();
+
+            switch (key) {
+                case "from":
+                    query.from = LocalDate.parse(value, dateFormatter);
+                    break;
+                case "to":
+                    query.to = LocalDate.parse(value, dateFormatter);
+                    break;
+                case "category":
+                    query.category = value;
+                    break;
+                case "min":
+                    query.minAmount = parseAmount(key, value);
+                    break;
+                case "max":
+                    query.maxAmount = parseAmount(key, value);
+                    break;
+                case "sort":
+                    query.sortKey = parseSortKey(value);
+                    break;
+                case "order":
+                    query.descending = parseDescending(value);
+                    break;
+                case "offset":
+                    query.offset = Integer.parseInt(value);
+                    break;
+                case "limit":
+                    query.limit = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + key);
+            }
+        }
+
+        if (query.offset < 0 || query.limit < 0) {
+            throw new IllegalArgumentException("offset and limit can't be negative");
+        }
+        return query;
+    }
+
+    // NaN would match nothing and infinities nothing useful, and no stored amount is either
+    private static double parseAmount(String key, String value) {
+        double amount = Double.parseDouble(value);
+        if (!Double.isFinite(amount)) {
+            throw new IllegalArgumentException(key + " must be a finite number");
+        }
+        return amount;
+    }
+
+    private static SortKey parseSortKey(String value) {
+        for (SortKey key : SortKey.values()) {
+            if (key.name().equalsIgnoreCase(value)) {
+                return key;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sort: " + value);
+    }
+
+    private static boolean parseDescending(String value) {
+        if (value.equalsIgnoreCase("desc")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("asc")) {
+            return false;
+        }
+        throw new IllegalArgumentException("order must be asc or desc");
+    }
+
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public LocalDate getTo() {
+        return to;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public Double getMinAmount() {
+        return minAmount;
+    }
+
+    public Double getMaxAmount() {
+        return maxAmount;
+    }
+
+    public SortKey getSortKey() {
+        return sortKey;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,63 @@
+package common;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+// One row of a GET_SUMMARY response: a group key (category, day, month or year), the total spent and
+// how many expenses went into it. On the wire each row is "key|total|count", e.g. "Food|123.45|7".
+//
+//   GET_SUMMARY|username|groupBy[|from|to]    groupBy = CATEGORY, DAY, MONTH or YEAR
+public class ExpenseSummary {
+    public enum GroupBy {
+        CATEGORY, DAY, MONTH, YEAR
+    }
+
+    private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    private final String key;
+    private final double total;
+    private final int count;
+
+    public ExpenseSummary(String key, double total, int count) {
+        this.key = key;
+        this.total = total;
+        this.count = count;
+    }
+
+    public static String toCommand(String username, GroupBy groupBy, LocalDate from, LocalDate to) {
+        StringBuilder command = new StringBuilder("GET_SUMMARY|").append(username).append("|").append(groupBy);
+        if (from != null || to != null) {
+            command.append("|").append(from != null ? from.format(dateFormatter) : "")
+                   .append("|").append(to != null ? to.format(dateFormatter) : "");
+        }
+        return command.toString();
+    }
+
+    public String toLine() {
+        return key.replace("|", "_") + "|" + total + "|" + count;
+    }
+
+    public static ExpenseSummary fromLine(String line) {
+        // the key is the only field that could be odd, so split from the right
+        int countSeparator = line.lastIndexOf('|');
+        int totalSeparator = line.lastIndexOf('|', countSeparator - 1);
+        if (totalSeparator < 0) {
+            return null;
+        }
+        return new ExpenseSummary(line.substring(0, totalSeparator),
+                Double.parseDouble(line.substring(totalSeparator + 1, countSeparator)),
+                Integer.parseInt(line.substring(countSeparator + 1)));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public double getTotal() {
+        return total;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,101 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed-size latency histogram in the style of HdrHistogram: values below 256 get a bucket each,
+// above that every power of two is split into 128 buckets, so any recorded value comes back with
+// less than 1% error, from a microsecond up to hours, in 32KB. Recording is lock-free (a few
+// separate atomic updates: the bucket, the count, the sum and the max), so any number of threads can
+// record into one histogram at once. The updates don't land together, so a count, mean or percentile
+// read while others record can be a value or two out of step with each other; once recording has
+// stopped they agree.
+//
+// Values are plain longs in whatever unit the caller picked (the load generator uses microseconds).
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^36 microseconds is about 19 hours, anything longer is counted as that
+    private static final long HIGHEST_VALUE = (1L << 36) - 1;
+    private static final int BUCKETS = index(HIGHEST_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(value, HIGHEST_VALUE));
+        counts.incrementAndGet(index(clamped));
+        total.incrementAndGet();
+        sum.addAndGet(clamped);
+        max.accumulateAndGet(clamped, Math::max);
+    }
+
+    // adds everything recorded in the other histogram to this one
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : sum.get() / (double) count;
+    }
+
+    // The value at or below which the given percentage of the recorded values lie (50 for the
+    // median, 99.9 for p99.9). Reported as the top of its bucket, so it never flatters.
+    public long getValueAtPercentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestInBucket(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // 0-255 map to themselves. Above that, value >> shift lands in [128, 256) and the shift picks
+    // the group of 128 buckets.
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestInBucket(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index - (long) shift * SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
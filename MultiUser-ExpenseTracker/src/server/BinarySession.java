@@ -0,0 +1,183 @@
+package server;
+
+import common.BinaryProtocol;
+import common.Expense;
+import common.ExpenseJson;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+// Server side of one connection that switched to the binary protocol (see common.BinaryProtocol).
+// Decodes request frames into the same ClientHandler calls the text commands end up in, and encodes
+// the answers as frames. Both engines use it: the blocking ones straight on the socket streams, the
+// NIO engine into buffers. Only one request per connection is in flight at a time, so the reader
+// and writer dictionaries are never touched by two threads at once.
+final class BinarySession {
+    private static final ExpenseSummary.GroupBy[] GROUP_BY = ExpenseSummary.GroupBy.values();
+
+    private final ClientHandler handler;
+    private final BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(ServerConfig.MAX_REQUEST_BYTES);
+    private final BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter();
+
+    BinarySession(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    BinaryProtocol.FrameReader getReader() {
+        return reader;
+    }
+
+    // one decoded request frame
+    final class Request {
+        private final String command;
+        private final boolean text;
+        private final boolean disconnect;
+        private final Supplier<Response> work;
+
+        private Request(String command, boolean text, boolean disconnect, Supplier<Response> work) {
+            this.command = command;
+            this.text = text;
+            this.disconnect = disconnect;
+            this.work = work;
+        }
+
+        CompletableFuture<Response> handle() {
+            return handler.handleAsync(command, disconnect, work);
+        }
+
+        boolean isDisconnect() {
+            return disconnect;
+        }
+    }
+
+    // Decodes the frame the reader holds. Has to run in the order frames arrived, because of the
+    // category dictionary; the work itself runs later on a worker like any other command.
+    Request decode() {
+        try {
+            int opcode = reader.readByte();
+            switch (opcode) {
+                case BinaryProtocol.ADD_EXPENSE: {
+                    String username = reader.readString();
+                    Expense expense = reader.readExpense();
+                    return new Request("ADD_EXPENSE", false, false, () -> Response.of(handler.addExpense(username, expense)));
+                }
+                case BinaryProtocol.ADD_EXPENSES_BATCH: {
+                    String username = reader.readString();
+                    int count = reader.readInt();
+                    // read them all even if there are too many, any new categories in there still count
+                    List<Expense> batch = new ArrayList<>(Math.min(count, ServerConfig.MAX_BATCH_ROWS));
+                    for (int i = 0; i < count; i++) {
+                        batch.add(reader.readExpense());
+                    }
+                    return new Request("ADD_EXPENSES_BATCH", false, false,
+                            () -> Response.of(handler.addExpenses(username, batch)));
+                }
+                case BinaryProtocol.GET_EXPENSES: {
+                    String username = reader.readString();
+                    ExpenseQuery query = reader.readQuery();
+                    return new Request("GET_EXPENSES", false, false, () -> handler.getExpenses(username, query));
+                }
+                case BinaryProtocol.GET_EXPENSES_SINCE: {
+                    String username = reader.readString();
+                    int since = reader.readInt();
+                    int limit = reader.readInt();
+                    return new Request("GET_EXPENSES_SINCE", false, false,
+                            () -> handler.getExpensesSince(username, since, limit));
+                }
+                case BinaryProtocol.GET_SUMMARY: {
+                    String username = reader.readString();
+                    int groupBy = reader.readByte();
+                    LocalDate from = reader.readDate();
+                    LocalDate to = reader.readDate();
+                    if (groupBy >= GROUP_BY.length) {
+                        return error("GET_SUMMARY", "ERROR|Invalid groupBy. Use CATEGORY, DAY, MONTH or YEAR");
+                    }
+                    return new Request("GET_SUMMARY", false, false,
+                            () -> handler.getSummary(username, GROUP_BY[groupBy], from, to));
+                }
+                case BinaryProtocol.QUIT:
+                    return new Request("QUIT", false, true, () -> Response.of("SUCCESS|Goodbye"));
+                case BinaryProtocol.TEXT_COMMAND: {
+                    String message = reader.readString();
+                    if (message == null || message.trim().isEmpty()) {
+                        return error("TEXT", "ERROR|Invalid command format");
+                    }
+                    String command = message.split("\\|", 2)[0];
+                    if (command.equalsIgnoreCase("PROTOCOL")) {
+                        return error(command, "ERROR|Already using the binary protocol");
+                    }
+                    if (command.equalsIgnoreCase("SUBSCRIBE")) {
+                        // pushes are text lines, see Subscription
+                        return error(command, "ERROR|SUBSCRIBE needs a text connection");
+                    }
+                    return new Request(command, true, ClientHandler.isDisconnect(message),
+                            () -> handler.processCommand(message));
+                }
+                default:
+                    return error("UNKNOWN", "ERROR|Unknown opcode: " + opcode);
+            }
+        } catch (RuntimeException e) {
+            return error("MALFORMED", "ERROR|Malformed frame: " + e.getMessage());
+        }
+    }
+
+    private Request error(String command, String message) {
+        Response response = Response.of(message);
+        return new Request(command, true, false, () -> response);
+    }
+
+    // everything but the streamed rows. A TEXT request gets its text answer back one line per frame
+    void writeHead(Request request, Response response, OutputStream out) throws IOException {
+        String head = response.getHead();
+        boolean success = head.startsWith("SUCCESS");
+
+        if (request.text || !success) {
+            writeText(head, out);
+            for (String line : response.getLines()) {
+                writeText(line, out);
+            }
+        } else if (response.getGroups() != null) {
+            List<ExpenseSummary> groups = response.getGroups();
+            writer.begin(BinaryProtocol.SUMMARY).writeVarint(groups.size());
+            for (ExpenseSummary group : groups) {
+                writer.writeString(group.getKey()).writeAmount(group.getTotal()).writeVarint(group.getCount());
+            }
+            writer.writeTo(out);
+        } else if (response.isStreamed()) {
+            ExpenseCursor rows = response.getRows();
+            writer.begin(BinaryProtocol.EXPENSES).writeVarint(rows.getCount()).writeVarint(rows.getTotalMatches());
+            writer.writeTo(out);
+        } else {
+            writeText(head, out);
+        }
+    }
+
+    void writeChunk(Request request, List<Expense> chunk, OutputStream out) throws IOException {
+        if (request.text) {
+            StringBuilder json = new StringBuilder(128);
+            for (Expense expense : chunk) {
+                json.setLength(0);
+                ExpenseJson.appendJson(expense, json);
+                writeText(json.toString(), out);
+            }
+            return;
+        }
+
+        writer.begin(BinaryProtocol.EXPENSE_CHUNK).writeVarint(chunk.size());
+        for (Expense expense : chunk) {
+            writer.writeExpense(expense);
+        }
+        writer.writeTo(out);
+    }
+
+    void writeText(String line, OutputStream out) throws IOException {
+        writer.begin(BinaryProtocol.TEXT).writeString(line).writeTo(out);
+    }
+}
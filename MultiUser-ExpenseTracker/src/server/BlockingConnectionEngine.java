@@ -0,0 +1,84 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadFactory;
+
+// The classic one-thread-per-connection model. With virtual threads each connection only costs
+// a few hundred bytes of stack instead of a 1MB platform thread, so thousands of clients are fine.
+public class BlockingConnectionEngine implements ConnectionEngine {
+    private final String name;
+    private final ExpenseStorage storage;
+    private final RequestDispatcher dispatcher;
+    private final ThreadFactory threadFactory;
+    private ServerSocket serverSocket;
+
+    public BlockingConnectionEngine(String name, ExpenseStorage storage, RequestDispatcher dispatcher, boolean virtualThreads) {
+        this.name = name;
+        this.storage = storage;
+        this.dispatcher = dispatcher;
+        this.threadFactory = virtualThreads
+                ? Thread.ofVirtual().name("client-", 0).factory()
+                : Thread.ofPlatform().name("client-", 0).daemon(true).factory();
+    }
+
+    @Override
+    public void bind(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+    }
+
+    @Override
+    public void serve() throws IOException {
+        try (ServerSocket server = serverSocket) {
+            // always accepts client conections
+            while (true) {
+                try {
+                    // accepting new client connections
+                    Socket clientSocket = server.accept();
+                    // answers are flushed once per chunk, don't let Nagle wait for the client's delayed ACK
+                    clientSocket.setTcpNoDelay(true);
+                    String clientAddress = clientSocket.getInetAddress().getHostAddress();
+
+                    ServerLog.info("CONNECTION", "New client connected from " + clientAddress);
+
+                    if (!dispatcher.tryAcquireConnection()) {
+                        rejectBusy(clientSocket, clientAddress);
+                        continue;
+                    }
+
+                    ClientHandler clientHandler = new ClientHandler(clientSocket, storage, dispatcher);
+                    Server.addClient(clientHandler);
+                    threadFactory.newThread(() -> {
+                        try {
+                            clientHandler.run();
+                        } finally {
+                            dispatcher.releaseConnection();
+                        }
+                    }).start();
+
+                } catch (IOException e) {
+                    ServerLog.error("ERROR", "Failed to accept client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // too many connections already, say so instead of the welcome banner and hang up
+    private void rejectBusy(Socket clientSocket, String clientAddress) {
+        ServerLog.warn("BUSY", "Connection limit reached, rejecting " + clientAddress);
+        // closing the socket's stream closes the socket
+        try (OutputStream out = clientSocket.getOutputStream()) {
+            out.write((RequestDispatcher.BUSY_RESPONSE + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            ServerLog.error("ERROR", "Error rejecting client " + clientAddress + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+}
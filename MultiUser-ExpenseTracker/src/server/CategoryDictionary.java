@@ -0,0 +1,36 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every distinct category string gets a small int id, shared by all users, so the columnar
+// backend stores "Food" once instead of once per row. Lookups by id never lock.
+final class CategoryDictionary {
+    static final CategoryDictionary SHARED = new CategoryDictionary();
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int count;
+
+    int idOf(String category) {
+        Integer id = ids.get(category);
+        return id != null ? id : register(category);
+    }
+
+    String nameOf(int id) {
+        return names[id];
+    }
+
+    private synchronized int register(String category) {
+        Integer id = ids.get(category);
+        if (id != null) {
+            return id;
+        }
+        // publish the name before the id, so anyone who can see the id can also see the name
+        String[] grown = count == names.length ? Arrays.copyOf(names, count * 2) : names;
+        grown[count] = category;
+        names = grown;
+        ids.put(category, count);
+        return count++;
+    }
+}
@@ -1,38 +1,64 @@
 package server;
 
+import common.BinaryProtocol;
 import common.Expense;
 import common.ExpenseJson;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 public class ClientHandler implements Runnable {
     private Socket clientSocket;
     private BufferedReader input;
-    private PrintWriter output;
+    private BufferedWriter output;
+    // the socket's streams, counted in ServerMetrics
+    private InputStream socketInput;
+    private OutputStream socketOutput;
     private String clientAddress;
     private ExpenseStorage storage;
+    private RequestDispatcher dispatcher;
     private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_LOCAL_DATE;
+    private static final Response BUSY = Response.of(RequestDispatcher.BUSY_RESPONSE);
+    // pushes written to the socket at a time
+    static final int PUSH_BATCH = 256;
+    // set by SUBSCRIBE, cleared by UNSUBSCRIBE; commands of one connection run one at a time
+    private volatile Subscription subscription;
 
-    public ClientHandler(Socket socket, ExpenseStorage storage) {
+    public ClientHandler(Socket socket, ExpenseStorage storage, RequestDispatcher dispatcher) {
         this.clientSocket = socket;
         this.clientAddress = socket.getInetAddress().getHostAddress();
         this.storage = storage;
+        this.dispatcher = dispatcher;
+    }
+
+    // used by the NIO engine, which owns the channel itself and only needs the command handling
+    ClientHandler(String clientAddress, ExpenseStorage storage, RequestDispatcher dispatcher) {
+        this.clientAddress = clientAddress;
+        this.storage = storage;
+        this.dispatcher = dispatcher;
     }
 
     @Override
     public void run() {
         try {
             // setting up the input/output streams
-            input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            output = new PrintWriter(clientSocket.getOutputStream(), true);
+            socketInput = ServerMetrics.meter(clientSocket.getInputStream());
+            socketOutput = ServerMetrics.meter(clientSocket.getOutputStream());
+            input = new BufferedReader(new InputStreamReader(socketInput));
+            output = new BufferedWriter(new OutputStreamWriter(socketOutput, StandardCharsets.UTF_8));
 
             // this sends a welcome message after a successful connection
-            output.println("CONNECTION SUCCESSFUL|Connected to Expense Tracker Server");
-            System.out.println("[HANDLER] Thread started for client " + clientAddress);
+            output.write("CONNECTION SUCCESSFUL|Connected to Expense Tracker Server\n");
+            output.flush();
+            ServerLog.info("HANDLER", "Thread started for client " + clientAddress);
 
             // listening for client messages
             String message;
@@ -41,61 +67,214 @@ public class ClientHandler implements Runnable {
                     continue;
                 }
 
-                String[] parts = message.split("\\|", 2);
-                String command = parts.length > 0 ? parts[0] : ""; // added command extraction just to be safe!
-                System.out.println("[REQUEST] " + clientAddress + " -> " + command);
+                Response response = handleMessage(message);
+                writeResponse(response);
+                startPushing();
 
-                String response = processCommand(message);
-                output.println(response);
-
-                if (response != null && response.startsWith("SUCCESS")) {
-                    System.out.println("[RESPONSE] " + clientAddress + " <- SUCCESS");
-                } else if (response != null && response.startsWith("ERROR")) {
-                    System.err.println("[RESPONSE] " + clientAddress + " <- ERROR: " + response);
+                if (isDisconnect(message)) {
+                    break;
                 }
-
-                if (message.equalsIgnoreCase("QUIT") || message.equalsIgnoreCase("EXIT")) {
-                    System.out.println("[DISCONNECT] Client " + clientAddress + " requested disconnect");
+                if (BinaryProtocol.NEGOTIATE_OK.equals(response.getHead())) {
+                    serveBinary();
                     break;
                 }
             }
 
         } catch (IOException e) {
-            System.err.println("[ERROR] Connection error with " + clientAddress + ": " + e.getMessage());
+            ServerLog.error("ERROR", "Connection error with " + clientAddress + ": " + e.getMessage());
         } finally {
             cleanup();
         }
     }
 
-    private String processCommand(String message) {
+    // One request in, one response out. Every connection engine goes through here so they all behave the same.
+    Response handleMessage(String message) {
+        return handleMessageAsync(message).join();
+    }
+
+    // The head goes out first, then a streamed body a chunk at a time. Rows are fetched here on the
+    // connection's own thread, so a slow reader ties up neither a worker nor the user's lock.
+    // Holds the output lock throughout, so a push never lands in the middle of an answer.
+    private void writeResponse(Response response) throws IOException {
+        synchronized (output) {
+            output.write(response.getText());
+            output.write('\n');
+
+            if (response.isStreamed()) {
+                List<Expense> chunk;
+                while (!(chunk = response.getRows().next(Response.CHUNK_ROWS)).isEmpty()) {
+                    for (Expense expense : chunk) {
+                        ExpenseJson.appendJson(expense, output);
+                        output.write('\n');
+                    }
+                    output.flush();
+                }
+            }
+            output.flush();
+        }
+    }
+
+    // Once SUBSCRIBE has been answered, the pushes go out on a thread of their own and this one keeps
+    // reading requests (UNSUBSCRIBE, QUIT). A subscriber that stops reading only blocks that thread;
+    // its Subscription overflows and the writers never notice.
+    private void startPushing() {
+        Subscription current = subscription;
+        if (current == null || !current.claimSender(null)) {
+            return;
+        }
+        Thread.ofVirtual().name("push-" + clientAddress).start(() -> {
+            try {
+                while (!current.isClosed()) {
+                    List<String> lines = current.poll(PUSH_BATCH, 1000);
+                    if (lines.isEmpty()) {
+                        continue;
+                    }
+                    synchronized (output) {
+                        // nothing more once UNSUBSCRIBE has been answered
+                        if (current.isClosed()) {
+                            break;
+                        }
+                        for (String line : lines) {
+                            output.write(line);
+                            output.write('\n');
+                        }
+                        output.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // the connection is going away, cleanup() ends the subscription
+            }
+        });
+    }
+
+    // The rest of the connection speaks frames (see common.BinaryProtocol). The client waits for
+    // SUCCESS|BINARY before sending its first frame, so the text reader has nothing buffered that
+    // we could lose by switching to the raw stream here.
+    private void serveBinary() throws IOException {
+        ServerLog.info("HANDLER", "Client " + clientAddress + " switched to the binary protocol");
+        BinarySession session = new BinarySession(this);
+        InputStream in = new BufferedInputStream(socketInput);
+        OutputStream out = new BufferedOutputStream(socketOutput);
+
+        while (session.getReader().readFrom(in)) {
+            BinarySession.Request request = session.decode();
+            Response response = request.handle().join();
+
+            session.writeHead(request, response, out);
+            if (response.isStreamed()) {
+                List<Expense> chunk;
+                while (!(chunk = response.getRows().next(Response.CHUNK_ROWS)).isEmpty()) {
+                    session.writeChunk(request, chunk, out);
+                    out.flush();
+                }
+            }
+            out.flush();
+
+            if (request.isDisconnect()) {
+                break;
+            }
+        }
+    }
+
+    CompletableFuture<Response> handleMessageAsync(String message) {
+        String[] parts = message.split("\\|", 2);
+        String command = parts.length > 0 ? parts[0] : ""; // added command extraction just to be safe!
+        return handleAsync(command, isDisconnect(message), () -> processCommand(message));
+    }
+
+    // the command itself runs on the dispatcher's worker pool, or gets ERROR|BUSY when that's full.
+    // Both protocols come through here, so logging and admission control are the same for each.
+    CompletableFuture<Response> handleAsync(String command, boolean disconnect, Supplier<Response> work) {
+        ServerLog.event("REQUEST", () -> clientAddress + " -> " + command);
+        long start = System.nanoTime();
+        ServerMetrics.CommandMetrics metrics = ServerMetrics.command(command);
+
+        CompletableFuture<Response> pending = disconnect
+                ? CompletableFuture.completedFuture(work.get()) // never turn away a goodbye
+                : dispatcher.dispatch(work, BUSY);
+
+        return pending.thenApply(result -> {
+            String response = result.getHead();
+            metrics.record(start, response == null || response.startsWith("ERROR"));
+            if (response != null && response.startsWith("SUCCESS")) {
+                ServerLog.event("RESPONSE", () -> clientAddress + " <- SUCCESS");
+            } else if (response != null && response.startsWith("ERROR")) {
+                ServerLog.event(ServerLog.Level.WARN, "RESPONSE", () -> clientAddress + " <- ERROR: " + response);
+            }
+
+            if (disconnect) {
+                ServerLog.info("DISCONNECT", "Client " + clientAddress + " requested disconnect");
+            }
+            return result;
+        });
+    }
+
+    static boolean isDisconnect(String message) {
+        return message.equalsIgnoreCase("QUIT") || message.equalsIgnoreCase("EXIT");
+    }
+
+    String getClientAddress() {
+        return clientAddress;
+    }
+
+    Subscription getSubscription() {
+        return subscription;
+    }
+
+    Response processCommand(String message) {
         try {
             String[] parts = message.split("\\|");
 
             if (parts.length == 0) {
-                return "ERROR|Invalid command format";
+                return Response.of("ERROR|Invalid command format");
             }
 
             String command = parts[0].toUpperCase();
 
+            if (subscription != null && !isAllowedWhileSubscribed(command)) {
+                return Response.of("ERROR|This connection is subscribed, only UNSUBSCRIBE and QUIT are allowed");
+            }
+
             switch (command) {
                 case "ADD_EXPENSE":
-                    return handleAddExpense(parts);
+                    return Response.of(handleAddExpense(parts));
+
+                case "ADD_EXPENSES_BATCH":
+                    return Response.of(handleAddExpensesBatch(message));
 
                 case "GET_EXPENSES":
                     return handleGetExpenses(parts);
 
+                case "GET_EXPENSES_SINCE":
+                    return handleGetExpensesSince(parts);
+
+                case "GET_SUMMARY":
+                    return handleGetSummary(parts);
+
+                case "SUBSCRIBE":
+                    return Response.of(handleSubscribe(parts));
+
+                case "UNSUBSCRIBE":
+                    return Response.of(handleUnsubscribe());
+
+                case "PROTOCOL":
+                    return Response.of(handleProtocol(parts));
+
+                case "STATS":
+                    return Response.lines(ServerMetrics.statsLines());
+
                 case "QUIT":
                 case "EXIT":
-                    return "SUCCESS|Goodbye";
+                    return Response.of("SUCCESS|Goodbye");
 
                 default:
-                    return "ERROR|Unknown command: " + command;
+                    return Response.of("ERROR|Unknown command: " + command);
             }
 
         } catch (Exception e) {
-            System.err.println("[ERROR] Error processing command from " + clientAddress + ": " + e.getMessage());
+            ServerLog.error("ERROR", "Error processing command from " + clientAddress + ": " + e.getMessage());
             e.printStackTrace();
-            return "ERROR|" + e.getMessage();
+            return Response.of("ERROR|" + e.getMessage());
         }
     }
 
@@ -104,87 +283,251 @@ public class ClientHandler implements Runnable {
             return "ERROR|Invalid ADD_EXPENSE format";
         }
 
+        double amount;
         try {
-            String username = sanitizeUsername(parts[1]);
-            if (username == null || username.trim().isEmpty()) {
-                return "ERROR|Invalid username";
-            }
-
-            double amount = Double.parseDouble(parts[2]);
-            String category = parts[3];
-            
-            if (category == null || category.trim().isEmpty()) {
-                return "ERROR|Category cannot be empty";
-            }
+            amount = Double.parseDouble(parts[2]);
+        } catch (NumberFormatException e) {
+            return "ERROR|Invalid amount format";
+        }
 
-            LocalDate date;
-            try {
-                date = LocalDate.parse(parts[4], dateFormatter);
-            } catch (Exception e) {
-                return "ERROR|Invalid date format. Use YYYY-MM-DD";
-            }
+        LocalDate date;
+        try {
+            date = LocalDate.parse(parts[4], dateFormatter);
+        } catch (Exception e) {
+            return "ERROR|Invalid date format. Use YYYY-MM-DD";
+        }
 
-            String note = parts.length > 5 ? parts[5] : "";
+        String note = parts.length > 5 ? parts[5] : "";
+        return addExpense(parts[1], new Expense(amount, parts[3], date, note));
+    }
 
-            if (amount <= 0 || Double.isNaN(amount) || Double.isInfinite(amount)) {
-                return "ERROR|Amount must be a positive number";
+    // ADD_EXPENSE once the request has been decoded, whichever protocol it came in on
+    String addExpense(String rawUsername, Expense expense) {
+        try {
+            String username = ExpenseValidator.sanitizeUsername(rawUsername);
+            if (username == null) {
+                return "ERROR|Invalid username";
             }
 
-            Expense expense = new Expense(amount, category, date, note);
+            String invalid = ExpenseValidator.check(expense);
+            if (invalid != null) {
+                return "ERROR|" + invalid;
+            }
             storage.addExpense(username, expense);
 
-            System.out.println("[ADD_EXPENSE] User: " + username + 
-                             " | Amount: $" + String.format("%.2f", amount) + 
-                             " | Category: " + category);
+            ServerLog.event("ADD_EXPENSE", () -> "User: " + username +
+                             " | Amount: $" + String.format("%.2f", expense.getAmount()) +
+                             " | Category: " + expense.getCategory());
 
             return "SUCCESS|Expense added successfully";
 
-        } catch (NumberFormatException e) {
-            return "ERROR|Invalid amount format";
         } catch (Exception e) {
             return "ERROR|Failed to add expense: " + e.getMessage();
         }
     }
 
-    private String handleGetExpenses(String[] parts) {
-        if (parts.length < 2) {
-            return "ERROR|Invalid GET_EXPENSES format";
+    // ADD_EXPENSES_BATCH|username|[json, json, ...]. The array is the rest of the line, so notes may
+    // contain pipes here
+    private String handleAddExpensesBatch(String message) {
+        String[] parts = message.split("\\|", 3);
+        if (parts.length < 3) {
+            return "ERROR|Invalid ADD_EXPENSES_BATCH format";
         }
 
+        List<Expense> batch;
         try {
-            String username = parts[1];
-            List<Expense> expenses = storage.getExpenses(username);
+            batch = ExpenseJson.fromJsonArray(parts[2]);
+        } catch (RuntimeException e) {
+            return "ERROR|Invalid expense batch: " + e.getMessage();
+        }
+        return addExpenses(parts[1], batch);
+    }
 
-            if (expenses.isEmpty()) {
-                return "SUCCESS|0";
+    // All or nothing: one bad expense rejects the whole batch, so a client can simply fix it and send
+    // the batch again without ending up with half of it stored twice
+    String addExpenses(String rawUsername, List<Expense> batch) {
+        try {
+            String username = ExpenseValidator.sanitizeUsername(rawUsername);
+            if (username == null) {
+                return "ERROR|Invalid username";
             }
 
-            StringBuilder response = new StringBuilder();
-            response.append("SUCCESS|").append(expenses.size()).append("\n");
+            if (batch == null || batch.isEmpty()) {
+                return "ERROR|Expense batch is empty";
+            }
+            if (batch.size() > ServerConfig.MAX_BATCH_ROWS) {
+                return "ERROR|Too many expenses in one batch (at most " + ServerConfig.MAX_BATCH_ROWS + ")";
+            }
 
-            for (Expense expense : expenses) {
-                response.append(ExpenseJson.toJson(expense)).append("\n");
+            for (int i = 0; i < batch.size(); i++) {
+                String invalid = ExpenseValidator.check(batch.get(i));
+                if (invalid != null) {
+                    return "ERROR|" + invalid + " (expense " + (i + 1) + " of the batch)";
+                }
             }
+            storage.addExpenses(username, batch);
+
+            ServerLog.event("ADD_EXPENSES_BATCH", () -> "User: " + username + " | " + batch.size() + " expense(s)");
+
+            return "SUCCESS|" + batch.size() + " expenses added";
+
+        } catch (Exception e) {
+            return "ERROR|Failed to add expenses: " + e.getMessage();
+        }
+    }
+
+    private Response handleGetExpenses(String[] parts) {
+        if (parts.length < 2) {
+            return Response.of("ERROR|Invalid GET_EXPENSES format");
+        }
+
+        // anything after the username is an optional filter or paging option
+        ExpenseQuery query;
+        try {
+            query = ExpenseQuery.parse(parts, 2);
+        } catch (RuntimeException e) {
+            return Response.of("ERROR|Invalid GET_EXPENSES option: " + e.getMessage());
+        }
+        return getExpenses(parts[1], query);
+    }
+
+    Response getExpenses(String username, ExpenseQuery query) {
+        try {
+            ExpenseCursor expenses = storage.openQuery(username, query);
 
-            System.out.println("[GET_EXPENSES] User: " + username + 
-                             " | Retrieved " + expenses.size() + " expense(s)");
+            ServerLog.event("GET_EXPENSES", () -> "User: " + username +
+                             " | Retrieved " + expenses.getCount() + " expense(s)");
 
-            return response.toString().trim();
+            // SUCCESS|<expenses in this response>|<expenses matching overall>, then one JSON line per
+            // expense, written by the connection engine as it walks the cursor
+            return Response.streamed("SUCCESS|" + expenses.getCount() + "|" + expenses.getTotalMatches(), expenses);
 
         } catch (Exception e) {
-            return "ERROR|Failed to retrieve expenses: " + e.getMessage();
+            return Response.of("ERROR|Failed to retrieve expenses: " + e.getMessage());
         }
     }
 
-    private String sanitizeUsername(String username) {
+    // GET_EXPENSES_SINCE|username|sequence[|limit]
+    private Response handleGetExpensesSince(String[] parts) {
+        if (parts.length < 3) {
+            return Response.of("ERROR|Invalid GET_EXPENSES_SINCE format");
+        }
+
+        int since;
+        int limit;
+        try {
+            since = Integer.parseInt(parts[2].trim());
+            limit = parts.length > 3 ? Integer.parseInt(parts[3].trim()) : Integer.MAX_VALUE;
+        } catch (NumberFormatException e) {
+            return Response.of("ERROR|Invalid sequence number or limit");
+        }
+        if (since < 0 || limit < 0) {
+            return Response.of("ERROR|Sequence number and limit can't be negative");
+        }
+        return getExpensesSince(parts[1], since, limit);
+    }
+
+    Response getExpensesSince(String username, int since, int limit) {
+        try {
+            ExpenseCursor expenses = storage.openSince(username, since, limit);
+
+            ServerLog.event("GET_EXPENSES_SINCE", () -> "User: " + username + " | Since: " + since +
+                             " | Retrieved " + expenses.getCount() + " expense(s)");
+
+            // SUCCESS|<expenses in this response>|<sequence number of the next expense to be added>.
+            // The expenses that follow are numbered since, since + 1, ...
+            return Response.streamed("SUCCESS|" + expenses.getCount() + "|" + expenses.getTotalMatches(), expenses);
+
+        } catch (Exception e) {
+            return Response.of("ERROR|Failed to retrieve expenses: " + e.getMessage());
+        }
+    }
+
+    private Response handleGetSummary(String[] parts) {
+        if (parts.length < 3) {
+            return Response.of("ERROR|Invalid GET_SUMMARY format");
+        }
+
+        ExpenseSummary.GroupBy groupBy;
+        try {
+            groupBy = ExpenseSummary.GroupBy.valueOf(parts[2].trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Response.of("ERROR|Invalid groupBy. Use CATEGORY, DAY, MONTH or YEAR");
+        }
+
+        LocalDate from;
+        LocalDate to;
+        try {
+            from = parts.length > 3 && !parts[3].trim().isEmpty() ? LocalDate.parse(parts[3].trim(), dateFormatter) : null;
+            to = parts.length > 4 && !parts[4].trim().isEmpty() ? LocalDate.parse(parts[4].trim(), dateFormatter) : null;
+        } catch (Exception e) {
+            return Response.of("ERROR|Invalid date format. Use YYYY-MM-DD");
+        }
+        return getSummary(parts[1], groupBy, from, to);
+    }
+
+    Response getSummary(String username, ExpenseSummary.GroupBy groupBy, LocalDate from, LocalDate to) {
+        try {
+            List<ExpenseSummary> rows = storage.getSummary(username, groupBy, from, to);
+
+            ServerLog.event("GET_SUMMARY", () -> "User: " + username +
+                             " | " + groupBy + " | " + rows.size() + " group(s)");
+
+            return Response.summary(rows);
+
+        } catch (Exception e) {
+            return Response.of("ERROR|Failed to build summary: " + e.getMessage());
+        }
+    }
+
+    // SUBSCRIBE|username turns this connection into a push channel for the user (see Subscription).
+    // Answers SUCCESS|Subscribed|<next sequence number>. Every expense numbered from there on is
+    // pushed, so GET_EXPENSES_SINCE on another connection, up to that number, leaves no gap.
+    private String handleSubscribe(String[] parts) {
+        if (parts.length < 2) {
+            return "ERROR|Invalid SUBSCRIBE format";
+        }
+        String username = ExpenseValidator.sanitizeUsername(parts[1]);
         if (username == null) {
-            return null;
+            return "ERROR|Invalid username";
+        }
+        if (subscription != null) {
+            return "ERROR|Already subscribed to " + subscription.getUsername();
         }
-        String sanitized = username.trim();
-        if (sanitized.isEmpty() || sanitized.length() > 50) {
-            return null;
+
+        // subscribed before the number is read, so an add in between is pushed rather than missed
+        subscription = Server.getClients().subscribe(username, this);
+        int next = storage.getNextSequence(username);
+        ServerLog.info("SUBSCRIBE", clientAddress + " subscribed to " + username);
+        return "SUCCESS|Subscribed|" + next;
+    }
+
+    private String handleUnsubscribe() {
+        Subscription current = subscription;
+        if (current == null) {
+            return "ERROR|Not subscribed";
+        }
+        subscription = null;
+        Server.getClients().unsubscribe(current);
+        ServerLog.info("SUBSCRIBE", clientAddress + " unsubscribed from " + current.getUsername());
+        return "SUCCESS|Unsubscribed";
+    }
+
+    private static boolean isAllowedWhileSubscribed(String command) {
+        return command.equals("UNSUBSCRIBE") || command.equals("QUIT") || command.equals("EXIT");
+    }
+
+    // PROTOCOL|BINARY switches the connection to frames once this answer is out, PROTOCOL|TEXT is a no-op
+    private String handleProtocol(String[] parts) {
+        String protocol = parts.length > 1 ? parts[1].trim().toUpperCase() : "";
+        switch (protocol) {
+            case "BINARY":
+                return BinaryProtocol.NEGOTIATE_OK;
+            case "TEXT":
+                return "SUCCESS|TEXT";
+            default:
+                return "ERROR|Unknown protocol. Use TEXT or BINARY";
         }
-        return sanitized.replaceAll("[^a-zA-Z0-9_-]", "");
     }
 
     private void cleanup() {
@@ -193,11 +536,11 @@ public class ClientHandler implements Runnable {
             if (output != null) output.close();
             if (clientSocket != null) clientSocket.close();
 
-            System.out.println("[CLEANUP] Connection closed for " + clientAddress);
+            ServerLog.info("CLEANUP", "Connection closed for " + clientAddress);
             Server.removeClient(this);
 
         } catch (IOException e) {
-            System.err.println("[ERROR] Error closing client resources: " + e.getMessage());
+            ServerLog.error("ERROR", "Error closing client resources: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+package server;
+
+import common.Expense;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+// The open connections, and which of them subscribed to which user. Writers look up a user's
+// subscribers on every add, so that is a single map lookup, and with nobody subscribed to the user it
+// stops there. Subscriptions change rarely compared to adds, hence the copy-on-write lists.
+final class ClientRegistry implements ExpenseStorage.AddListener {
+    private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    private final Map<String, List<Subscription>> byUser = new ConcurrentHashMap<>();
+    private final int queueCapacity;
+    private final LongAdder subscriptions = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    ClientRegistry(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    void add(ClientHandler client) {
+        clients.add(client);
+    }
+
+    // also ends the client's subscription, if it has one
+    void remove(ClientHandler client) {
+        clients.remove(client);
+        Subscription subscription = client.getSubscription();
+        if (subscription != null) {
+            unsubscribe(subscription);
+        }
+    }
+
+    int size() {
+        return clients.size();
+    }
+
+    // pushes start with the first expense added after this returns
+    Subscription subscribe(String username, ClientHandler client) {
+        Subscription subscription = new Subscription(username, client, queueCapacity, this);
+        byUser.compute(username, (user, list) -> {
+            List<Subscription> subscribers = list != null ? list : new CopyOnWriteArrayList<>();
+            subscribers.add(subscription);
+            return subscribers;
+        });
+        subscriptions.increment();
+        return subscription;
+    }
+
+    void unsubscribe(Subscription subscription) {
+        if (!subscription.close()) {
+            return;
+        }
+        byUser.computeIfPresent(subscription.getUsername(), (user, subscribers) -> {
+            subscribers.remove(subscription);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+        subscriptions.decrement();
+    }
+
+    @Override
+    public void added(String username, int firstSequence, List<Expense> expenses) {
+        List<Subscription> subscribers = byUser.get(username);
+        if (subscribers == null) {
+            return;
+        }
+        for (Subscription subscription : subscribers) {
+            subscription.publish(firstSequence, expenses);
+        }
+    }
+
+    long getSubscriptionCount() {
+        return subscriptions.sum();
+    }
+
+    long getPushesSent() {
+        return sent.sum();
+    }
+
+    long getPushesDropped() {
+        return dropped.sum();
+    }
+
+    void pushesSent(int count) {
+        sent.add(count);
+    }
+
+    void pushesDropped(int count) {
+        dropped.add(count);
+    }
+}
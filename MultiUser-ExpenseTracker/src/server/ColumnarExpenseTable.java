@@ -0,0 +1,104 @@
+package server;
+
+import common.Expense;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+// Column-per-field layout: no object header, no pointers and no duplicate strings per row.
+//   amounts:     double per row (kept as double so amounts round-trip exactly)
+//   epochDays:   int per row
+//   categoryIds: int per row, into the shared CategoryDictionary
+//   notes:       UTF-8 bytes in one arena, with an int offset and length per row
+// That's about 20 bytes per row plus the note text, against 100+ for an Expense object.
+// Expense objects are only built when a row is actually sent to a client.
+class ColumnarExpenseTable implements ExpenseTable {
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    private static final int NO_CATEGORY = -1;
+    private static final int NO_NOTE = -1;
+
+    private final CategoryDictionary categories = CategoryDictionary.SHARED;
+    private double[] amounts = new double[16];
+    private int[] epochDays = new int[16];
+    private int[] categoryIds = new int[16];
+    private int[] noteOffsets = new int[16];
+    private int[] noteLengths = new int[16];
+    private byte[] noteArena = new byte[256];
+    private int arenaSize;
+    private int size;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(Expense expense) {
+        if (size == amounts.length) {
+            int capacity = size * 2;
+            amounts = Arrays.copyOf(amounts, capacity);
+            epochDays = Arrays.copyOf(epochDays, capacity);
+            categoryIds = Arrays.copyOf(categoryIds, capacity);
+            noteOffsets = Arrays.copyOf(noteOffsets, capacity);
+            noteLengths = Arrays.copyOf(noteLengths, capacity);
+        }
+
+        amounts[size] = expense.getAmount();
+        epochDays[size] = expense.getDate() != null ? Math.toIntExact(expense.getDate().toEpochDay()) : NO_DATE;
+        categoryIds[size] = expense.getCategory() != null ? categories.idOf(expense.getCategory()) : NO_CATEGORY;
+
+        if (expense.getNote() != null) {
+            byte[] note = expense.getNote().getBytes(StandardCharsets.UTF_8);
+            if (arenaSize + note.length > noteArena.length) {
+                noteArena = Arrays.copyOf(noteArena, Math.max(arenaSize + note.length, noteArena.length * 2));
+            }
+            System.arraycopy(note, 0, noteArena, arenaSize, note.length);
+            noteOffsets[size] = arenaSize;
+            noteLengths[size] = note.length;
+            arenaSize += note.length;
+        } else {
+            noteLengths[size] = NO_NOTE;
+        }
+        size++;
+    }
+
+    @Override
+    public Expense get(int row) {
+        checkRow(row);
+        String note = noteLengths[row] == NO_NOTE ? null
+                : new String(noteArena, noteOffsets[row], noteLengths[row], StandardCharsets.UTF_8);
+        LocalDate date = epochDays[row] == NO_DATE ? null : LocalDate.ofEpochDay(epochDays[row]);
+        return new Expense(amounts[row], category(row), date, note);
+    }
+
+    @Override
+    public double amount(int row) {
+        checkRow(row);
+        return amounts[row];
+    }
+
+    @Override
+    public long epochDay(int row) {
+        checkRow(row);
+        return epochDays[row] == NO_DATE ? Long.MIN_VALUE : epochDays[row];
+    }
+
+    @Override
+    public String category(int row) {
+        checkRow(row);
+        return categoryIds[row] == NO_CATEGORY ? null : categories.nameOf(categoryIds[row]);
+    }
+
+    // the five column arrays at their current capacity plus the note arena
+    @Override
+    public long estimatedBytes() {
+        return (long) amounts.length * (Double.BYTES + 4 * Integer.BYTES) + noteArena.length;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of " + size);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package server;
+
+import java.io.IOException;
+
+// How the server turns accepted sockets into running ClientHandlers.
+// Picked with -Dexpense.server.engine=thread|virtual|nio (see ServerConfig).
+public interface ConnectionEngine {
+    void bind(int port) throws IOException;
+
+    // accepts clients until the process dies
+    void serve() throws IOException;
+
+    String name();
+
+    static ConnectionEngine forMode(String mode, ExpenseStorage storage, RequestDispatcher dispatcher) {
+        switch (mode.trim().toLowerCase()) {
+            case "thread":
+                return new BlockingConnectionEngine("thread", storage, dispatcher, false);
+            case "virtual":
+                return new BlockingConnectionEngine("virtual", storage, dispatcher, true);
+            case "nio":
+                return new NioConnectionEngine(storage, dispatcher);
+            default:
+                ServerLog.warn("INIT", "Unknown connection engine '" + mode + "', using virtual");
+                return new BlockingConnectionEngine("virtual", storage, dispatcher, true);
+        }
+    }
+}
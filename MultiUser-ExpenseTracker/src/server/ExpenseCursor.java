@@ -0,0 +1,84 @@
+package server;
+
+import common.Expense;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+// Walks the page of one GET_EXPENSES answer a chunk at a time, so the expenses of a big answer are
+// never all in memory at once. How many rows the page has and how many matched overall are fixed
+// when UserExpenses opens the cursor; rows added after that are not part of this answer.
+//
+// Each next() takes the user's read lock just long enough to build one chunk, so a client that
+// reads slowly never holds up writers for the same user.
+//
+// Positions count in the order of the answer: reversed walks the candidates from the back, so
+// position 0 is the last of them.
+final class ExpenseCursor {
+    private static final ExpenseCursor EMPTY = new ExpenseCursor(null, null, null, null, false, 0, 0, 0, 0);
+
+    private final ExpenseTable table;
+    private final Lock readLock;
+    private final IntList candidates;           // rows to look at, null means every row
+    private final UserExpenses.RowFilter filter; // null when every candidate is a match
+    private final boolean reversed;
+    private final int end;                      // candidate positions [position, end) are in scope
+    private final int count;
+    private final int totalMatches;
+    private int position;
+    private int remaining;
+
+    ExpenseCursor(ExpenseTable table, Lock readLock, IntList candidates, UserExpenses.RowFilter filter,
+                  boolean reversed, int position, int end, int count, int totalMatches) {
+        this.table = table;
+        this.readLock = readLock;
+        this.candidates = candidates;
+        this.filter = filter;
+        this.reversed = reversed;
+        this.position = position;
+        this.end = end;
+        this.count = count;
+        this.totalMatches = totalMatches;
+        this.remaining = count;
+    }
+
+    static ExpenseCursor empty() {
+        return EMPTY;
+    }
+
+    // expenses in this page
+    int getCount() {
+        return count;
+    }
+
+    // expenses matching the query overall
+    int getTotalMatches() {
+        return totalMatches;
+    }
+
+    // up to max more expenses of the page, an empty list once the page is done
+    List<Expense> next(int max) {
+        if (remaining == 0) {
+            return Collections.emptyList();
+        }
+
+        List<Expense> chunk = new ArrayList<>(Math.min(max, remaining));
+        readLock.lock();
+        try {
+            while (chunk.size() < max && remaining > 0 && position < end) {
+                int index = reversed ? end - 1 - position : position;
+                int row = candidates == null ? index : candidates.get(index);
+                position++;
+                if (filter == null || filter.matches(table, row)) {
+                    chunk.add(table.get(row));
+                    remaining--;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,24 @@
+package server;
+
+import common.Expense;
+
+import java.util.List;
+
+// One page of a GET_EXPENSES result, plus how many expenses matched overall so clients can keep paging
+public class ExpensePage {
+    private final List<Expense> expenses;
+    private final int totalMatches;
+
+    public ExpensePage(List<Expense> expenses, int totalMatches) {
+        this.expenses = expenses;
+        this.totalMatches = totalMatches;
+    }
+
+    public List<Expense> getExpenses() {
+        return expenses;
+    }
+
+    public int getTotalMatches() {
+        return totalMatches;
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import common.Expense;
+import common.ExpenseSummary;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Running totals for one user, bumped on every add so GET_SUMMARY never has to look at expenses.
+//   categoryTotals: all-time total per category, the dashboard pie chart reads this in O(categories)
+//   dailyTotals:    epoch day -> total per category that day, date-bounded and day/month/year
+//                   summaries are folded from this in O(days in range)
+// Categories are grouped by UserExpenses.categoryKey, the same rule the category filter uses, so a
+// summary row always counts what GET_EXPENSES|category= returns. A group is shown with the first
+// spelling seen for it.
+// Not thread-safe on its own, UserExpenses guards it with the user's lock.
+class ExpenseRollup {
+    private static class Total {
+        double amount;
+        int count;
+
+        void add(double amount, int count) {
+            this.amount += amount;
+            this.count += count;
+        }
+    }
+
+    private final TreeMap<String, Total> categoryTotals = new TreeMap<>();
+    private final TreeMap<Long, TreeMap<String, Total>> dailyTotals = new TreeMap<>();
+    private final Map<String, String> categoryNames = new HashMap<>();
+
+    void add(Expense expense) {
+        if (expense.getDate() != null) {
+            add(expense.getCategory(), expense.getDate().toEpochDay(), expense.getAmount());
+        }
+    }
+
+    // the same from a table's columns, Long.MIN_VALUE meaning no date
+    void add(String category, long epochDay, double amount) {
+        if (category == null || epochDay == Long.MIN_VALUE) {
+            return;
+        }
+        String key = UserExpenses.categoryKey(category);
+        categoryNames.putIfAbsent(key, category);
+        categoryTotals.computeIfAbsent(key, k -> new Total()).add(amount, 1);
+        dailyTotals.computeIfAbsent(epochDay, day -> new TreeMap<>())
+                .computeIfAbsent(key, k -> new Total())
+                .add(amount, 1);
+    }
+
+    List<ExpenseSummary> summarize(ExpenseSummary.GroupBy groupBy, LocalDate from, LocalDate to) {
+        if (groupBy == ExpenseSummary.GroupBy.CATEGORY && from == null && to == null) {
+            return toRows(categoryTotals, categoryNames);
+        }
+
+        TreeMap<String, Total> groups = new TreeMap<>();
+        for (Map.Entry<Long, TreeMap<String, Total>> day : daysBetween(from, to).entrySet()) {
+            LocalDate date = LocalDate.ofEpochDay(day.getKey());
+            for (Map.Entry<String, Total> category : day.getValue().entrySet()) {
+                String key;
+                switch (groupBy) {
+                    case CATEGORY:
+                        key = category.getKey();
+                        break;
+                    case DAY:
+                        key = date.toString();
+                        break;
+                    case MONTH:
+                        key = YearMonth.from(date).toString();
+                        break;
+                    default:
+                        key = String.valueOf(date.getYear());
+                }
+                Total total = category.getValue();
+                groups.computeIfAbsent(key, k -> new Total()).add(total.amount, total.count);
+            }
+        }
+        return toRows(groups, groupBy == ExpenseSummary.GroupBy.CATEGORY ? categoryNames : Map.of());
+    }
+
+    private NavigableMap<Long, TreeMap<String, Total>> daysBetween(LocalDate from, LocalDate to) {
+        long first = from != null ? from.toEpochDay() : Long.MIN_VALUE;
+        long last = to != null ? to.toEpochDay() : Long.MAX_VALUE;
+        if (first > last) {
+            return new TreeMap<>();
+        }
+        return dailyTotals.subMap(first, true, last, true);
+    }
+
+    // names maps a group key to what is shown for it, keys missing from it are shown as they are
+    private static List<ExpenseSummary> toRows(TreeMap<String, Total> groups, Map<String, String> names) {
+        List<ExpenseSummary> rows = new ArrayList<>(groups.size());
+        for (Map.Entry<String, Total> group : groups.entrySet()) {
+            String name = names.getOrDefault(group.getKey(), group.getKey());
+            rows.add(new ExpenseSummary(name, group.getValue().amount, group.getValue().count));
+        }
+        return rows;
+    }
+}
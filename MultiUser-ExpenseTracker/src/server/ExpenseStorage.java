@@ -2,83 +2,648 @@ package server;
 
 import common.Expense;
 import common.ExpenseJson;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-public class ExpenseStorage {
-    private static final String DATA_DIRECTORY = "data";
-    private ConcurrentHashMap<String, List<Expense>> userExpenses;
+public final class ExpenseStorage {
+    // How the users already on disk get back into memory when the storage is created.
+    public enum StartupMode {
+        EAGER,    // one after the other, before the constructor returns
+        PARALLEL, // on a thread per core in the background, largest users first
+        LAZY;     // the first time somebody asks for them (and in the background with warm-up on)
+
+        public static StartupMode fromString(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                ServerLog.warn("STORAGE", "Unknown startup mode '" + value + "', using EAGER");
+                return EAGER;
+            }
+        }
+    }
+
+    private static final int SNAPSHOT_CHUNK_ROWS = 1024;
+    // users looked up this recently are never evicted, even over the budget
+    private static final long HOT_MILLIS = 1000;
+    private static final long EVICTION_DELAY_MS = 100;
+
+    private final String dataDirectory;
+    // expense.storage.backend=mapped: users are kept in data/<user>.seg/ (SegmentExpenseTable), which is
+    // their snapshot too. Otherwise in memory, with data/<user>.json as the snapshot. Either way a user
+    // found in the other format is loaded from it and written back in ours.
+    private final boolean segmentFormat = "mapped".equalsIgnoreCase(ServerConfig.STORAGE_BACKEND);
+    private ConcurrentHashMap<String, UserExpenses> userExpenses;
+    // Users on disk that aren't in userExpenses yet. Whoever needs one first runs its load (a
+    // request, the parallel loaders or the warm-up), everybody else waits for that same load.
+    // A user is put into userExpenses before its entry here goes away.
+    private final ConcurrentHashMap<String, FutureTask<UserExpenses>> unloaded = new ConcurrentHashMap<>();
+    // Users whose memory and disk no longer agree, with the reason: their data couldn't be loaded, or
+    // their log has rows their table couldn't take. They refuse new expenses until a restart, since
+    // rows added now would get numbers the log has already used.
+    private final ConcurrentHashMap<String, String> failedUsers = new ConcurrentHashMap<>();
+    private final CompletableFuture<Void> loaded;
+    // set by shutdown(), background loads that haven't started yet are skipped
+    private volatile boolean closed;
+    // users on disk plus users created since, so it's right before anybody has been loaded
+    private final AtomicInteger userCount = new AtomicInteger();
+    // users on disk that have never been loaded, their expenses aren't in totalExpenses yet
+    private final AtomicInteger neverLoaded = new AtomicInteger();
+    // kept up to date on every add, so nobody has to walk all the users to know it
+    private final LongAdder totalExpenses = new LongAdder();
+
+    // The cache: with a budget, the least recently used users are written back and dropped from
+    // memory whenever the estimated heap of everybody loaded goes over it (see evictColdUsers).
+    // Evicted users go back into unloaded and come back on their next lookup.
+    private final long cacheBudget = ServerConfig.CACHE_MAX_BYTES;
+    private final LongAdder residentBytes = new LongAdder();
+    private final AtomicBoolean evictionPending = new AtomicBoolean();
+    // rows of evicted users, already counted in totalExpenses
+    private final ConcurrentHashMap<String, Integer> evictedRows = new ConcurrentHashMap<>();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final WriteAheadLog wal;
+    private final ScheduledExecutorService compactor;
+    private volatile AddListener addListener;
+
+    // Told about every add right after the rows are in memory, the moment GET_EXPENSES can see them,
+    // which is before the log has been forced. If that force fails the user takes no more writes (see
+    // awaitDurable), so a client retrying never gets the same rows pushed twice. Runs under the
+    // user's write lock, so the calls for one user come in sequence order; it must never block, since
+    // the user's other writers wait for it.
+    interface AddListener {
+        void added(String username, int firstSequence, List<Expense> expenses);
+    }
 
     public ExpenseStorage() {
+        this(ServerConfig.DATA_DIRECTORY);
+    }
+
+    public ExpenseStorage(String dataDirectory) {
+        this(dataDirectory, ServerConfig.STARTUP_MODE, ServerConfig.STARTUP_WARMUP);
+    }
+
+    public ExpenseStorage(String dataDirectory, StartupMode startupMode, boolean warmUp) {
+        this.dataDirectory = dataDirectory;
         this.userExpenses = new ConcurrentHashMap<>();
 
         try {
-            Files.createDirectories(Paths.get(DATA_DIRECTORY));
-            System.out.println("[STORAGE] ✓ Data directory ready: " + DATA_DIRECTORY);
+            Files.createDirectories(Paths.get(dataDirectory));
+            ServerLog.info("STORAGE", "✓ Data directory ready: " + dataDirectory);
         } catch (IOException e) {
-            System.err.println("[ERROR] Error creating data directory: " + e.getMessage());
+            ServerLog.error("ERROR", "Error creating data directory: " + e.getMessage());
         }
 
-        loadAllUserData();
+        this.wal = new WriteAheadLog(Paths.get(dataDirectory),
+                ServerConfig.FSYNC_POLICY, ServerConfig.GROUP_COMMIT_INTERVAL_MS);
+
+        // folds data/<user>.log back into data/<user>.json every now and then, and runs the
+        // evictions, so the two never write the same snapshot at once
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "storage-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The loaders and the compactor get `this` before the constructor returns, so these two come
+        // last: every field they use is set by now, and the class is final, so no subclass's isn't.
+        this.loaded = loadAllUserData(startupMode, warmUp);
+        compactor.scheduleWithFixedDelay(this::compactPendingLogs,
+                ServerConfig.COMPACTION_INTERVAL_MS, ServerConfig.COMPACTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
-    public synchronized void addExpense(String username, Expense expense) {
+    public void addExpense(String username, Expense expense) {
         if (username == null || username.trim().isEmpty() || expense == null) {
-            System.err.println("[STORAGE] Invalid expense data - username or expense is null");
+            ServerLog.warn("STORAGE", "Invalid expense data - username or expense is null");
             return;
         }
 
-        userExpenses.putIfAbsent(username, new ArrayList<>());
-        List<Expense> expenses = userExpenses.get(username);
-        synchronized (expenses) {
-            expenses.add(expense);
+        requireStorable(Collections.singletonList(expense));
+
+        long start = System.nanoTime();
+        // only this user's lock is held, other users keep going in parallel
+        UserExpenses expenses = lockForWrite(username);
+        CompletableFuture<Void> durable;
+        try {
+            long bytes = expenses.estimatedBytes();
+            // log first, so a failed write never leaves an expense that only lives in memory
+            int sequence = expenses.size();
+            durable = wal.append(username, sequence, Collections.singletonList(expense));
+            addLogged(username, expenses, Collections.singletonList(expense));
+            totalExpenses.increment();
+            residentBytes.add(expenses.estimatedBytes() - bytes);
+            notifyAdded(username, sequence, Collections.singletonList(expense));
+        } catch (IOException e) {
+            throw logFailed(username, e);
+        } finally {
+            expenses.writeLock().unlock();
         }
-        saveUserData(username);
+        // with group commit this waits for the next shared fsync, never while holding a lock
+        awaitDurable(username, durable);
+        ServerMetrics.storageWrite(start);
+        checkBudget();
 
-        System.out.println("[STORAGE] Added expense for " + username +
+        ServerLog.event("STORAGE", () -> "Added expense for " + username +
                 ": $" + String.format("%.2f", expense.getAmount()));
     }
 
-    public synchronized List<Expense> getExpenses(String username) {
-        List<Expense> expenses = userExpenses.get(username);
+    // The whole batch goes into the log with one write (and one fsync, if the policy asks for it)
+    // under a single acquisition of the user's lock, so it lands as consecutive rows.
+    public void addExpenses(String username, List<Expense> batch) {
+        if (username == null || username.trim().isEmpty() || batch == null || batch.isEmpty()) {
+            ServerLog.warn("STORAGE", "Invalid expense batch - username or batch is empty");
+            return;
+        }
+
+        requireStorable(batch);
+
+        long start = System.nanoTime();
+        UserExpenses expenses = lockForWrite(username);
+        CompletableFuture<Void> durable;
+        try {
+            long bytes = expenses.estimatedBytes();
+            int sequence = expenses.size();
+            durable = wal.append(username, sequence, batch);
+            addLogged(username, expenses, batch);
+            totalExpenses.add(batch.size());
+            residentBytes.add(expenses.estimatedBytes() - bytes);
+            notifyAdded(username, sequence, batch);
+        } catch (IOException e) {
+            throw logFailed(username, e);
+        } finally {
+            expenses.writeLock().unlock();
+        }
+        awaitDurable(username, durable);
+        ServerMetrics.storageWrite(start);
+        checkBudget();
+
+        ServerLog.event("STORAGE", () -> "Added " + batch.size() + " expenses for " + username);
+    }
+
+    // Checked before anything reaches the log: a logged row that the table can't take would fail the
+    // user's replay on every restart.
+    private static void requireStorable(List<Expense> batch) {
+        for (Expense expense : batch) {
+            String invalid = ExpenseValidator.check(expense);
+            if (invalid != null) {
+                throw new IllegalArgumentException(invalid);
+            }
+        }
+    }
+
+    // The rows are in the log already. If the table can't take all of them, the next add would reuse
+    // row numbers the log has given out, so the user stops taking writes; a restart replays the log.
+    private void addLogged(String username, UserExpenses expenses, List<Expense> batch) {
+        try {
+            for (Expense expense : batch) {
+                expenses.add(expense);
+            }
+        } catch (RuntimeException e) {
+            failedUsers.put(username, "could not all be stored after they were logged");
+            ServerLog.error("ERROR", "Error storing logged expenses for " + username + ", not accepting new ones: " + e);
+            throw e;
+        }
+    }
+
+    // A write to the log that failed may have left part of its records behind, under row numbers the
+    // next add would use again, so the user stops taking writes until a restart reads the log back.
+    private UncheckedIOException logFailed(String username, IOException e) {
+        failedUsers.put(username, "may only be partly in the log");
+        ServerLog.error("ERROR", "Error logging expenses for " + username + ", not accepting new ones: " + e.getMessage());
+        return new UncheckedIOException(e);
+    }
+
+    // Subscribers and readers already have the rows by now. If the force fails they may or may not be
+    // on disk, and a client retrying them would store them twice, so the user stops taking writes
+    // here too; a restart reads back whatever the log really holds.
+    private void awaitDurable(String username, CompletableFuture<Void> durable) {
+        try {
+            durable.join();
+        } catch (CompletionException e) {
+            failedUsers.put(username, "may not all have reached the disk");
+            ServerLog.error("ERROR", "Error forcing the log of " + username + ", not accepting new expenses: " +
+                    e.getCause().getMessage());
+            throw e;
+        }
+    }
+
+    public List<Expense> getExpenses(String username) {
+        UserExpenses expenses = find(username);
         if (expenses == null) {
             return new ArrayList<>();
         }
-        return new ArrayList<>(expenses);
+        return expenses.snapshot();
+    }
+
+    public ExpensePage queryExpenses(String username, ExpenseQuery query) {
+        UserExpenses expenses = find(username);
+        if (expenses == null) {
+            return new ExpensePage(new ArrayList<>(), 0);
+        }
+        return expenses.query(query);
     }
 
-    private void saveUserData(String username) {
-        if (username == null || username.trim().isEmpty()) {
+    // the sequence number the user's next expense will get, see openSince
+    int getNextSequence(String username) {
+        UserExpenses expenses = find(username);
+        return expenses == null ? 0 : expenses.size();
+    }
+
+    void setAddListener(AddListener listener) {
+        this.addListener = listener;
+    }
+
+    // a broken listener must not fail an add that is already in the log
+    private void notifyAdded(String username, int firstSequence, List<Expense> expenses) {
+        AddListener listener = addListener;
+        if (listener == null) {
             return;
         }
+        try {
+            listener.added(username, firstSequence, expenses);
+        } catch (RuntimeException e) {
+            ServerLog.error("STORAGE", "Add listener failed for " + username + ": " + e);
+        }
+    }
 
-        String filename = DATA_DIRECTORY + "/" + username + ".json";
+    // like queryExpenses, but the caller pulls the page out a chunk at a time
+    ExpenseCursor openQuery(String username, ExpenseQuery query) {
+        UserExpenses expenses = find(username);
+        if (expenses == null) {
+            return ExpenseCursor.empty();
+        }
+        return expenses.cursor(query);
+    }
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            List<Expense> expenses = userExpenses.get(username);
+    // GET_EXPENSES_SINCE. A user's expenses are numbered 0, 1, 2, ... in the order they were added:
+    // the sequence number is the row number, which the write-ahead log and every snapshot format
+    // already keep stable, and rows are never changed or removed. So "everything from sequence
+    // number `since` on" is the slice of the history starting at row `since`, at most `limit` rows
+    // of it, and the cursor's total is the sequence number the next expense will get.
+    ExpenseCursor openSince(String username, int since, int limit) {
+        return openQuery(username, new ExpenseQuery().page(since, limit));
+    }
 
-            if (expenses != null) {
-                synchronized (expenses) {
-                    for (Expense expense : expenses) {
-                        if (expense != null) {
-                            writer.write(ExpenseJson.toJson(expense));
-                            writer.newLine();
-                        }
-                    }
-                }
+    // served from the running totals, so this costs O(groups) no matter how long the history is
+    public List<ExpenseSummary> getSummary(String username, ExpenseSummary.GroupBy groupBy, LocalDate from, LocalDate to) {
+        UserExpenses expenses = find(username);
+        if (expenses == null) {
+            return new ArrayList<>();
+        }
+        return expenses.summarize(groupBy, from, to);
+    }
+
+    // both of these go through the per-user date/category indexes instead of scanning the history
+    public List<Expense> getExpensesBetween(String username, LocalDate from, LocalDate to) {
+        return queryExpenses(username, new ExpenseQuery().dateRange(from, to)).getExpenses();
+    }
+
+    public List<Expense> getExpensesByCategory(String username, String category) {
+        return queryExpenses(username, new ExpenseQuery().category(category)).getExpenses();
+    }
+
+    // The user's history, loading it first if it's still on disk. Null for users we've never seen.
+    private UserExpenses find(String username) {
+        UserExpenses expenses = userExpenses.get(username);
+        if (expenses != null) {
+            cacheHits.increment();
+            expenses.touch(System.currentTimeMillis());
+            return expenses;
+        }
+        if (unloaded.isEmpty()) {
+            return null;
+        }
+        FutureTask<UserExpenses> load = unloaded.get(username);
+        if (load == null) {
+            // either unknown, or its load finished between the two lookups
+            return userExpenses.get(username);
+        }
+        cacheMisses.increment();
+        return await(username, load);
+    }
+
+    // startup loads go through here and not find(), they aren't cache misses
+    private void preload(String username) {
+        FutureTask<UserExpenses> load = unloaded.get(username);
+        if (load != null) {
+            await(username, load);
+        }
+    }
+
+    private UserExpenses await(String username, FutureTask<UserExpenses> load) {
+        load.run(); // does nothing if somebody else already started it
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading " + username, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not load " + username, e.getCause());
+        }
+    }
+
+    // The user's history with its write lock held, created if they're new. If the user got evicted
+    // while we waited for the lock, we look them up again, which loads them back.
+    private UserExpenses lockForWrite(String username) {
+        while (true) {
+            UserExpenses expenses = find(username);
+            if (expenses == null) {
+                checkWritable(username);
+                expenses = userExpenses.computeIfAbsent(username, key -> {
+                    UserExpenses created = resident(createUser(username));
+                    // eviction takes off all of estimatedBytes, the empty user's share included
+                    residentBytes.add(created.estimatedBytes());
+                    userCount.incrementAndGet();
+                    return created;
+                });
+            }
+            expenses.writeLock().lock();
+            if (!expenses.isEvicted() && !failedUsers.containsKey(username)) {
+                return expenses;
             }
+            expenses.writeLock().unlock();
+            checkWritable(username);
+        }
+    }
+
+    private void checkWritable(String username) {
+        String failure = failedUsers.get(username);
+        if (failure != null) {
+            throw new IllegalStateException("The expenses of " + username + " " + failure +
+                    ", no new ones are accepted until the server restarts");
+        }
+    }
 
+    // A user nobody has seen yet. Anything already on disk under their name belongs to a history we
+    // don't have in memory, so we refuse rather than start a second one at row 0 over it.
+    private UserExpenses createUser(String username) {
+        if (Files.exists(Paths.get(dataDirectory, username + ".json")) || Files.exists(segmentDirectory(username))
+                || wal.hasLog(username)) {
+            throw new IllegalStateException("The expenses of " + username + " are on disk but not loaded");
+        }
+        if (!segmentFormat) {
+            return new UserExpenses();
+        }
+        try {
+            return new UserExpenses(SegmentExpenseTable.create(segmentDirectory(username)));
         } catch (IOException e) {
-            System.err.println("[ERROR] Error saving data for " + username + ": " + e.getMessage());
+            throw new UncheckedIOException(e);
         }
     }
 
-    private void loadUserData(String username, File file) {
-        List<Expense> expenses = new ArrayList<>();
+    // Sort orders are built by readers, after the user's bytes were counted, so they add what they
+    // grow by themselves.
+    private UserExpenses resident(UserExpenses expenses) {
+        expenses.setSortGrowthListener(bytes -> {
+            residentBytes.add(bytes);
+            checkBudget();
+        });
+        return expenses;
+    }
+
+    private Path segmentDirectory(String username) {
+        return Paths.get(dataDirectory, username + ".seg");
+    }
 
+    private boolean isOverBudget() {
+        return cacheBudget > 0 && residentBytes.sum() > cacheBudget;
+    }
+
+    // a burst of adds over the budget is handled by one pass, and a budget that can't be met (only
+    // hot users left) doesn't start a pass per add
+    private void checkBudget() {
+        if (!closed && isOverBudget() && evictionPending.compareAndSet(false, true)) {
+            compactor.schedule(this::evictColdUsers, EVICTION_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Drops the least recently used users until the estimate is 10% under the budget, so the next
+    // few adds don't start another pass right away. Users looked up in the last second stay.
+    private void evictColdUsers() {
+        evictionPending.set(false);
+        long before = residentBytes.sum();
+        if (before <= cacheBudget) {
+            return;
+        }
+
+        // lastAccess keeps moving while we sort, so sort a copy of it
+        Map<String, Long> lastAccess = new HashMap<>();
+        userExpenses.forEach((username, expenses) -> lastAccess.put(username, expenses.getLastAccess()));
+        List<String> coldestFirst = new ArrayList<>(lastAccess.keySet());
+        coldestFirst.sort(Comparator.comparing(lastAccess::get));
+
+        long target = cacheBudget - cacheBudget / 10;
+        long hot = System.currentTimeMillis() - HOT_MILLIS;
+        int evicted = 0;
+        for (String username : coldestFirst) {
+            if (residentBytes.sum() <= target || lastAccess.get(username) >= hot) {
+                break;
+            }
+            UserExpenses expenses = userExpenses.get(username);
+            if (expenses != null && evict(username, expenses)) {
+                evicted++;
+            }
+        }
+        ServerLog.info("CACHE", "Evicted " + evicted + " users, " + before / 1024 + " KB -> " +
+                residentBytes.sum() / 1024 + " KB of a " + cacheBudget / 1024 + " KB budget");
+    }
+
+    // Writes the rows only the log has into the user's snapshot, then drops the user from memory.
+    // Their next lookup loads them again like any other user on disk.
+    private boolean evict(String username, UserExpenses expenses) {
+        expenses.writeLock().lock();
+        try {
+            if (expenses.isEvicted()) {
+                return false;
+            }
+            int rows = expenses.size();
+            if (wal.pendingRecords(username) > 0) {
+                wal.rotate(username);
+                saveUserData(username, expenses, rows);
+                wal.deleteRotated(username);
+            }
+            // in this order, so find() sees either the old copy or the load that replaces it
+            evictedRows.put(username, rows);
+            unloaded.put(username, new FutureTask<>(() -> loadUserData(username)));
+            userExpenses.remove(username, expenses);
+            expenses.markEvicted();
+            residentBytes.add(-expenses.estimatedBytes());
+            evictions.increment();
+            ServerLog.debug("CACHE", "Evicted " + username + " (" + rows + " expenses)");
+            return true;
+        } catch (IOException e) {
+            // the rotated log stays around and gets replayed, so nothing is lost
+            ServerLog.error("ERROR", "Error writing back " + username + ", keeping them in memory: " + e.getMessage());
+            return false;
+        } finally {
+            expenses.writeLock().unlock();
+        }
+    }
+
+    private void compactPendingLogs() {
+        for (String username : userExpenses.keySet()) {
+            if (wal.pendingRecords(username) >= ServerConfig.COMPACTION_MIN_RECORDS) {
+                compact(username);
+            }
+        }
+    }
+
+    // Writes a fresh snapshot of the user's history and drops the log records it covers.
+    void compact(String username) {
+        // users that aren't in memory have nothing to compact until they're loaded
+        UserExpenses expenses = userExpenses.get(username);
+        if (expenses == null) {
+            return;
+        }
+
+        try {
+            int rows;
+            // the row count and the rotation have to happen together, the file I/O does not
+            expenses.writeLock().lock();
+            try {
+                if (expenses.isEvicted()) {
+                    return;
+                }
+                rows = expenses.size();
+                wal.rotate(username);
+            } finally {
+                expenses.writeLock().unlock();
+            }
+            saveUserData(username, expenses, rows);
+            wal.deleteRotated(username);
+            ServerLog.info("COMPACTION", "Snapshot of " + rows + " expenses written for " + username);
+        } catch (IOException e) {
+            // the rotated log stays around and gets replayed, so nothing is lost
+            ServerLog.error("ERROR", "Error compacting data for " + username + ": " + e.getMessage());
+        }
+    }
+
+    // Writes the first `rows` rows of the user's history, a chunk at a time so we never copy it all.
+    // Mapped users only need their segments forced, the rows are in them already.
+    private void saveUserData(String username, UserExpenses expenses, int rows) throws IOException {
+        if (segmentFormat) {
+            ((SegmentExpenseTable) expenses.table()).checkpoint(rows);
+            Files.deleteIfExists(Paths.get(dataDirectory, username + ".json"));
+            return;
+        }
+
+        Path target = Paths.get(dataDirectory, username + ".json");
+        Path temp = Paths.get(dataDirectory, username + ".json.tmp");
+
+        // write next to the real file and swap it in, so a crash never leaves half a snapshot
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             BufferedWriter writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+            for (int start = 0; start < rows; start += SNAPSHOT_CHUNK_ROWS) {
+                for (Expense expense : expenses.rows(start, Math.min(start + SNAPSHOT_CHUNK_ROWS, rows))) {
+                    writer.write(ExpenseJson.toJson(expense));
+                    writer.newLine();
+                }
+            }
+            writer.flush();
+            long start = System.nanoTime();
+            channel.force(true);
+            ServerMetrics.fsync(start);
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        SegmentExpenseTable.delete(segmentDirectory(username));
+    }
+
+    // Reads the user's snapshot and replays their log, then makes them visible. Returns null (and
+    // marks them failed) if the snapshot can't be read.
+    private UserExpenses loadUserData(String username) {
+        // rows go straight into the user's table, nobody else can see it until we publish it below
+        UserExpenses expenses;
+        // the snapshot is in the format we don't write, so it gets written in ours once loaded
+        boolean convert = false;
+        File file = new File(dataDirectory, username + ".json");
+        Path segments = segmentDirectory(username);
+
+        try {
+            if (segmentFormat) {
+                // without a checkpoint this is empty, and the snapshot or the log fill it from row 0
+                expenses = new UserExpenses(SegmentExpenseTable.open(segments));
+                if (!SegmentExpenseTable.exists(segments) && file.exists()) {
+                    readJsonSnapshot(file, expenses);
+                    convert = true;
+                }
+            } else {
+                expenses = new UserExpenses();
+                if (file.exists()) {
+                    readJsonSnapshot(file, expenses);
+                } else if (SegmentExpenseTable.exists(segments)) {
+                    ExpenseTable table = SegmentExpenseTable.open(segments);
+                    for (int row = 0; row < table.size(); row++) {
+                        expenses.add(table.get(row));
+                    }
+                    convert = true;
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            ServerLog.error("ERROR", "Error loading data for " + username + ", not accepting new expenses for them: " +
+                    e.getMessage());
+            // before the user leaves unloaded, so a writer never finds neither
+            failedUsers.put(username, "could not be loaded");
+            Integer counted = evictedRows.remove(username);
+            if (counted == null) {
+                neverLoaded.decrementAndGet();
+            } else {
+                totalExpenses.add(-counted);
+            }
+            userCount.decrementAndGet();
+            unloaded.remove(username);
+            return null;
+        }
+
+        int snapshotRows = expenses.size();
+        int replayed = wal.replay(username, snapshotRows, expenses::add);
+        if (convert) {
+            try {
+                saveUserData(username, expenses, snapshotRows);
+                ServerLog.info("STORAGE", "Converted " + username + " to the " + (segmentFormat ? "segment" : "JSON") + " format");
+            } catch (IOException e) {
+                // the old snapshot is still there, we try again next time
+                ServerLog.error("ERROR", "Error converting data for " + username + ": " + e.getMessage());
+            }
+        }
+        // counted before anybody can see them, sort orders readers build from here on add themselves
+        residentBytes.add(expenses.estimatedBytes());
+        userExpenses.put(username, resident(expenses));
+        unloaded.remove(username);
+        Integer counted = evictedRows.remove(username);
+        if (counted == null) {
+            neverLoaded.decrementAndGet();
+            totalExpenses.add(expenses.size());
+            ServerLog.info("STORAGE", "Loaded " + expenses.size() + " expenses for: " + username +
+                    (replayed > 0 ? " (" + replayed + " from log)" : ""));
+        } else {
+            ServerLog.debug("CACHE", "Reloaded " + expenses.size() + " expenses for: " + username);
+        }
+        checkBudget();
+        return expenses;
+    }
+
+    private static void readJsonSnapshot(File file, UserExpenses expenses) throws IOException {
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             String line;
 
@@ -90,40 +655,139 @@ public class ExpenseStorage {
                     }
                 }
             }
+        }
+    }
 
-            userExpenses.put(username, expenses);
-            System.out.println("[STORAGE] Loaded " + expenses.size() + " expenses for: " + username);
+    // Finds every user on disk and loads them the way the startup mode says. The future completes
+    // once nobody is left on disk (right away for LAZY without warm-up, those stay until asked for).
+    private CompletableFuture<Void> loadAllUserData(StartupMode startupMode, boolean warmUp) {
+        File dataDir = new File(dataDirectory);
+        File[] files = dataDir.listFiles((dir, name) -> name.endsWith(".json") || name.endsWith(".seg"));
 
-        } catch (IOException e) {
-            System.err.println("[ERROR] Error loading data for " + username);
+        // users who never got compacted only have a log file
+        Set<String> usernames = new TreeSet<>(wal.usernames());
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                usernames.add(name.substring(0, name.lastIndexOf('.')));
+            }
         }
-    }
 
-    private void loadAllUserData() {
-        File dataDir = new File(DATA_DIRECTORY);
-        File[] files = dataDir.listFiles((dir, name) -> name.endsWith(".json"));
+        if (usernames.isEmpty()) {
+            ServerLog.info("STORAGE", "No existing user data found");
+            return CompletableFuture.completedFuture(null);
+        }
 
-        if (files == null || files.length == 0) {
-            System.out.println("[STORAGE] No existing user data found");
-            return;
+        List<String> order = new ArrayList<>(usernames);
+        if (startupMode == StartupMode.PARALLEL) {
+            // the biggest users start first, so one large history doesn't finish last on its own
+            order.sort(Comparator.comparingLong((String username) ->
+                    new File(dataDirectory, username + ".json").length()).reversed());
         }
+        for (String username : order) {
+            unloaded.put(username, new FutureTask<>(() -> loadUserData(username)));
+        }
+        userCount.set(usernames.size());
+        neverLoaded.set(usernames.size());
 
-        System.out.println("[STORAGE] Loading existing user data...");
-        for (File file : files) {
-            String username = file.getName().replace(".json", "");
-            loadUserData(username, file);
+        long start = System.nanoTime();
+        switch (startupMode) {
+            case EAGER:
+                ServerLog.info("STORAGE", "Loading existing user data...");
+                for (String username : order) {
+                    if (isOverBudget()) {
+                        ServerLog.info("STORAGE", "Cache budget reached, the other users load when first used");
+                        break;
+                    }
+                    preload(username);
+                }
+                ServerLog.info("STORAGE", "Loaded data for " + userExpenses.size() + " users\n");
+                return CompletableFuture.completedFuture(null);
+            case PARALLEL:
+                ServerLog.info("STORAGE", "Loading " + order.size() + " users in the background...");
+                return loadInBackground(order, Runtime.getRuntime().availableProcessors(), start);
+            default:
+                if (!warmUp) {
+                    ServerLog.info("STORAGE", usernames.size() + " users on disk, loading them when first used");
+                    return CompletableFuture.completedFuture(null);
+                }
+                ServerLog.info("STORAGE", usernames.size() + " users on disk, warming up in the background...");
+                return loadInBackground(order, 1, start);
         }
+    }
+
+    // preload() and not the load itself, so a user a request is already loading is waited for too.
+    // Once the cache budget is reached, the rest stay on disk until they're used.
+    private CompletableFuture<Void> loadInBackground(List<String> usernames, int threads, long start) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService loaders = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "storage-loader-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletableFuture<?>[] runs = usernames.stream()
+                .map(username -> CompletableFuture.runAsync(() -> {
+                    if (!closed && !isOverBudget()) {
+                        preload(username);
+                    }
+                }, loaders))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(runs).whenComplete((done, error) -> {
+            loaders.shutdown();
+            ServerLog.info("STORAGE", "Loaded data for " + usernames.size() + " users in " +
+                    (System.nanoTime() - start) / 1_000_000 + " ms");
+        });
+    }
 
-        System.out.println("[STORAGE] Loaded data for " + userExpenses.size() + " users\n");
+    // Waits until the background loading started by the constructor is done.
+    public void awaitLoaded() {
+        loaded.join();
+    }
+
+    // flushes the log on the way out, wired up as a shutdown hook in Server. Users that are still
+    // waiting for the background loaders stay on disk.
+    public void shutdown() {
+        closed = true;
+        compactor.shutdown();
+        wal.close();
     }
 
     public int getTotalExpenseCount() {
-        return userExpenses.values().stream()
-                .mapToInt(List::size)
-                .sum();
+        return (int) totalExpenses.sum();
     }
 
     public int getUserCount() {
+        return userCount.get();
+    }
+
+    // users on disk that were never loaded; until this is 0, getTotalExpenseCount doesn't count them
+    public int getUnloadedUserCount() {
+        return neverLoaded.get();
+    }
+
+    public int getResidentUserCount() {
         return userExpenses.size();
     }
-}
\ No newline at end of file
+
+    // estimated heap of the users in memory, see UserExpenses.estimatedBytes
+    public long getResidentBytes() {
+        return residentBytes.sum();
+    }
+
+    public long getCacheBudget() {
+        return cacheBudget;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    // lookups that had to load the user from disk first
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,37 @@
+package server;
+
+import common.Expense;
+
+// Where one user's rows actually live. UserExpenses does the locking and indexing on top of this.
+// Rows are append-only, so a row number stays valid forever.
+//   object:   a plain list of Expense objects (ObjectExpenseTable)
+//   columnar: primitive arrays per field plus a shared category dictionary (ColumnarExpenseTable)
+//   mapped:   fixed-width records in the user's memory-mapped segment files (SegmentExpenseTable)
+// Picked with -Dexpense.storage.backend=object|columnar|mapped. Mapped tables belong to a user's
+// files, so ExpenseStorage opens those itself; create() only makes the two in-memory kinds.
+interface ExpenseTable {
+    int size();
+
+    void add(Expense expense);
+
+    // builds (or returns) the Expense for a row, only needed at the protocol boundary
+    Expense get(int row);
+
+    // single-field accessors so filters don't have to materialise whole expenses
+    double amount(int row);
+
+    // Long.MIN_VALUE when the row has no date
+    long epochDay(int row);
+
+    String category(int row);
+
+    // rough heap footprint of the rows, for the cache budget (see ExpenseStorage)
+    long estimatedBytes();
+
+    static ExpenseTable create() {
+        if ("columnar".equalsIgnoreCase(ServerConfig.STORAGE_BACKEND)) {
+            return new ColumnarExpenseTable();
+        }
+        return new ObjectExpenseTable();
+    }
+}
@@ -0,0 +1,279 @@
+package server;
+
+import common.Expense;
+import common.ExpenseCsv;
+import common.ExpenseJson;
+import common.ExpenseQuery;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Bulk import and export of one user's expenses, straight against the data directory. Use it to load
+// bank exports or move a history between servers. Stop the server first: the tool opens the same
+// snapshot and log files the server would.
+//
+// Import reads the file once and hands chunks of records to a pool of parser threads. Each thread
+// parses and validates its chunk with the same rules as ADD_EXPENSE. The chunks are stored in file
+// order, one log write each. Only a few chunks are in flight at a time, so a file of any size is
+// streamed. Bad rows are skipped and reported with their line number. Export walks the history a
+// chunk at a time, like GET_EXPENSES does.
+//
+// .csv files are CSV (see common.ExpenseCsv), .jsonl, .ndjson and .json files have one JSON expense per line.
+//
+// Usage: java server.ExpenseTransfer import <username> <file> [dataDirectory]
+//        java server.ExpenseTransfer export <username> <file> [dataDirectory]
+public class ExpenseTransfer {
+    // records per parser task, which is also how many rows go into storage per log write
+    private static final int CHUNK_ROWS = 10_000;
+    private static final int PARSER_THREADS = Runtime.getRuntime().availableProcessors();
+    // chunks parsed ahead of the one being stored, bounds memory no matter how big the file is
+    private static final int CHUNKS_IN_FLIGHT = PARSER_THREADS * 2;
+    private static final int MAX_REPORTED_ERRORS = 20;
+
+    private enum Format { CSV, JSONL }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.out.println("Usage: java server.ExpenseTransfer import|export <username> <file> [dataDirectory]");
+            return;
+        }
+        String username = ExpenseValidator.sanitizeUsername(args[1]);
+        if (username == null || !username.equals(args[1])) {
+            System.out.println("Invalid username: " + args[1]);
+            return;
+        }
+        Path file = Paths.get(args[2]);
+        Format format = formatOf(file);
+        if (format == null) {
+            System.out.println("Unknown file type, use .csv or .jsonl: " + file);
+            return;
+        }
+        String dataDirectory = args.length > 3 ? args[3] : ServerConfig.DATA_DIRECTORY;
+
+        // storage logs every load and batch, keep that out of the tool's own output
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ExpenseStorage storage = new ExpenseStorage(dataDirectory);
+        try {
+            if (args[0].equals("import")) {
+                importFile(storage, username, file, format, console);
+            } else {
+                exportFile(storage, username, file, format, console);
+            }
+        } finally {
+            storage.shutdown();
+            // the log has its own writer thread, let it finish with the silenced stream first
+            ServerLog.flush();
+            System.setOut(console);
+        }
+    }
+
+    private static Format formatOf(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        if (name.endsWith(".csv")) {
+            return Format.CSV;
+        }
+        if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) {
+            return Format.JSONL;
+        }
+        return null;
+    }
+
+    // records of one chunk, and the line each of them starts on
+    private static final class Chunk {
+        final List<String> records = new ArrayList<>(CHUNK_ROWS);
+        final List<Long> lines = new ArrayList<>(CHUNK_ROWS);
+    }
+
+    private static final class ParsedChunk {
+        final List<Expense> expenses = new ArrayList<>(CHUNK_ROWS);
+        final List<String> errors = new ArrayList<>();
+        int rejected;
+    }
+
+    private static void importFile(ExpenseStorage storage, String username, Path file, Format format,
+                                   PrintStream console) throws IOException, InterruptedException {
+        ExecutorService parsers = Executors.newFixedThreadPool(PARSER_THREADS, r -> {
+            Thread thread = new Thread(r, "import-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+        long[] totals = new long[2]; // stored, rejected
+        List<String> errors = new ArrayList<>();
+        long start = System.nanoTime();
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), 1 << 20)) {
+            ExpenseCsv.Layout layout = ExpenseCsv.Layout.DEFAULT;
+            boolean first = true;
+            Chunk chunk = new Chunk();
+            StringBuilder record = new StringBuilder();
+            long lineNumber = 0;
+            long recordLine = 0;
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (record.length() == 0) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    recordLine = lineNumber;
+                    record.append(line);
+                } else {
+                    // a quoted CSV field with a line break in it
+                    record.append('\n').append(line);
+                }
+                if (format == Format.CSV && !ExpenseCsv.isComplete(record)) {
+                    continue;
+                }
+
+                String text = record.toString();
+                record.setLength(0);
+                if (first && format == Format.CSV) {
+                    first = false;
+                    ExpenseCsv.Layout header = ExpenseCsv.Layout.fromHeader(ExpenseCsv.parseRecord(text));
+                    if (header != null) {
+                        layout = header;
+                        continue;
+                    }
+                }
+
+                chunk.records.add(text);
+                chunk.lines.add(recordLine);
+                if (chunk.records.size() == CHUNK_ROWS) {
+                    submit(parsers, inFlight, chunk, format, layout);
+                    chunk = new Chunk();
+                    if (inFlight.size() >= CHUNKS_IN_FLIGHT) {
+                        store(storage, username, inFlight.poll(), totals, errors);
+                    }
+                }
+            }
+            if (record.length() > 0) {
+                chunk.records.add(record.toString());
+                chunk.lines.add(recordLine);
+            }
+            if (!chunk.records.isEmpty()) {
+                submit(parsers, inFlight, chunk, format, layout);
+            }
+            while (!inFlight.isEmpty()) {
+                store(storage, username, inFlight.poll(), totals, errors);
+            }
+        } finally {
+            parsers.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (String error : errors) {
+            console.println(error);
+        }
+        if (totals[1] > errors.size()) {
+            console.println("... and " + (totals[1] - errors.size()) + " more rejected rows");
+        }
+        console.printf("Imported %,d expenses for %s (%,d rejected) in %.2f s, %,.0f rows/s%n",
+                totals[0], username, totals[1], seconds, (totals[0] + totals[1]) / seconds);
+
+        // fold the log into a fresh snapshot now, so the next start doesn't have to replay all of it
+        long compactStart = System.nanoTime();
+        storage.compact(username);
+        console.printf("Snapshot written in %.2f s%n", (System.nanoTime() - compactStart) / 1e9);
+    }
+
+    private static void submit(ExecutorService parsers, ArrayDeque<Future<ParsedChunk>> inFlight, Chunk chunk,
+                               Format format, ExpenseCsv.Layout layout) {
+        inFlight.add(parsers.submit(() -> parse(chunk, format, layout)));
+    }
+
+    private static ParsedChunk parse(Chunk chunk, Format format, ExpenseCsv.Layout layout) {
+        ParsedChunk parsed = new ParsedChunk();
+        for (int i = 0; i < chunk.records.size(); i++) {
+            String record = chunk.records.get(i);
+            String problem;
+            try {
+                Expense expense = format == Format.CSV
+                        ? ExpenseCsv.fromFields(ExpenseCsv.parseRecord(record), layout)
+                        : ExpenseJson.fromJson(record);
+                problem = ExpenseValidator.check(expense);
+                if (problem == null) {
+                    parsed.expenses.add(expense);
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                problem = e.getMessage();
+            }
+            parsed.rejected++;
+            if (parsed.errors.size() < MAX_REPORTED_ERRORS) {
+                parsed.errors.add("Line " + chunk.lines.get(i) + ": " + problem);
+            }
+        }
+        return parsed;
+    }
+
+    private static void store(ExpenseStorage storage, String username, Future<ParsedChunk> pending,
+                              long[] totals, List<String> errors) throws InterruptedException {
+        ParsedChunk parsed;
+        try {
+            parsed = pending.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parsing failed", e.getCause());
+        }
+        if (!parsed.expenses.isEmpty()) {
+            storage.addExpenses(username, parsed.expenses);
+        }
+        totals[0] += parsed.expenses.size();
+        totals[1] += parsed.rejected;
+        for (String error : parsed.errors) {
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(error);
+            }
+        }
+    }
+
+    private static void exportFile(ExpenseStorage storage, String username, Path file, Format format,
+                                   PrintStream console) throws IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+        ExpenseCursor cursor = storage.openQuery(username, new ExpenseQuery());
+
+        try (BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), 1 << 20)) {
+            if (format == Format.CSV) {
+                writer.write(ExpenseCsv.HEADER);
+                writer.newLine();
+            }
+            List<Expense> chunk;
+            while (!(chunk = cursor.next(CHUNK_ROWS)).isEmpty()) {
+                for (Expense expense : chunk) {
+                    if (format == Format.CSV) {
+                        ExpenseCsv.appendCsv(expense, writer);
+                    } else {
+                        ExpenseJson.appendJson(expense, writer);
+                    }
+                    writer.newLine();
+                }
+                rows += chunk.size();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        console.printf("Exported %,d expenses for %s to %s in %.2f s, %,.0f rows/s%n",
+                rows, username, file, seconds, rows / seconds);
+    }
+}
@@ -0,0 +1,60 @@
+package server;
+
+import common.Expense;
+
+import java.time.LocalDate;
+
+// The rules every expense and username has to pass before they reach storage. ClientHandler checks
+// each request against them, ExpenseTransfer every imported row, so both reject exactly the same things.
+final class ExpenseValidator {
+    // The columnar and mapped tables keep a date as an int epoch day, and every text format writes it
+    // as YYYY-MM-DD; this range fits both. LocalDate itself goes much further, and a date outside it
+    // could be logged but never loaded again.
+    static final LocalDate MIN_DATE = LocalDate.of(1, 1, 1);
+    static final LocalDate MAX_DATE = LocalDate.of(9999, 12, 31);
+
+    private ExpenseValidator() {
+    }
+
+    // what is wrong with the expense, null when it can be stored. A missing note becomes ""
+    static String check(Expense expense) {
+        if (expense == null) {
+            return "Missing expense";
+        }
+
+        String category = expense.getCategory();
+        if (category == null || category.trim().isEmpty()) {
+            return "Category cannot be empty";
+        }
+
+        if (expense.getDate() == null) {
+            return "Invalid date format. Use YYYY-MM-DD";
+        }
+        if (expense.getDate().isBefore(MIN_DATE) || expense.getDate().isAfter(MAX_DATE)) {
+            return "Date must be between " + MIN_DATE + " and " + MAX_DATE;
+        }
+
+        double amount = expense.getAmount();
+        if (amount <= 0 || Double.isNaN(amount) || Double.isInfinite(amount)) {
+            return "Amount must be a positive number";
+        }
+
+        if (expense.getNote() == null) {
+            expense.setNote("");
+        }
+        return null;
+    }
+
+    // the username as it is stored (it names the user's files), null if nothing usable is left
+    static String sanitizeUsername(String username) {
+        if (username == null) {
+            return null;
+        }
+        String sanitized = username.trim();
+        if (sanitized.isEmpty() || sanitized.length() > 50) {
+            return null;
+        }
+        sanitized = sanitized.replaceAll("[^a-zA-Z0-9_-]", "");
+        return sanitized.isEmpty() ? null : sanitized;
+    }
+}
@@ -0,0 +1,104 @@
+package server;
+
+import common.Expense;
+import common.ExpenseQuery;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Compares the per-user date/category indexes in UserExpenses against the plain linear scan
+// we used to do over the whole history. Everything runs in memory, no disk involved.
+//
+// Usage: java server.IndexBenchmark [rows] [queries]
+public class IndexBenchmark {
+    private static final String[] CATEGORIES = {"Food", "Transport", "Entertainment", "Shopping",
+            "Bills", "Healthcare", "Education", "Other"};
+    private static final LocalDate START = LocalDate.of(2020, 1, 1);
+    private static final int DAYS = 5 * 365;
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Random random = new Random(42);
+        List<Expense> history = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            history.add(new Expense(1 + random.nextInt(50_000) / 100.0, CATEGORIES[random.nextInt(CATEGORIES.length)],
+                    START.plusDays(random.nextInt(DAYS)), "note " + i));
+        }
+
+        long buildStart = System.nanoTime();
+        UserExpenses indexed = new UserExpenses(new ArrayList<>(history));
+        System.out.printf("Indexed %,d rows in %.1f ms%n%n", rows, (System.nanoTime() - buildStart) / 1e6);
+
+        System.out.println("query                 |   index µs |    scan µs | speedup");
+        compare("one week", indexed, history, queries, r -> {
+            LocalDate from = START.plusDays(r.nextInt(DAYS - 7));
+            return new ExpenseQuery().dateRange(from, from.plusDays(6));
+        });
+        compare("one month", indexed, history, queries, r -> {
+            LocalDate from = START.plusDays(r.nextInt(DAYS - 30));
+            return new ExpenseQuery().dateRange(from, from.plusDays(29));
+        });
+        compare("category", indexed, history, queries, r ->
+                new ExpenseQuery().category(CATEGORIES[r.nextInt(CATEGORIES.length)]));
+        compare("category + week", indexed, history, queries, r -> {
+            LocalDate from = START.plusDays(r.nextInt(DAYS - 7));
+            return new ExpenseQuery().category(CATEGORIES[r.nextInt(CATEGORIES.length)]).dateRange(from, from.plusDays(6));
+        });
+        compare("category, first 50", indexed, history, queries, r ->
+                new ExpenseQuery().category(CATEGORIES[r.nextInt(CATEGORIES.length)]).page(0, 50));
+    }
+
+    private interface QueryMaker {
+        ExpenseQuery make(Random random);
+    }
+
+    private static void compare(String name, UserExpenses indexed, List<Expense> history, int queries, QueryMaker maker) {
+        long checksum = 0;
+
+        // same seed for both sides so they answer the exact same queries, plus one warm-up round each
+        long indexNanos = 0;
+        for (int round = 0; round < 2; round++) {
+            Random random = new Random(7);
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                checksum += indexed.query(maker.make(random)).getTotalMatches();
+            }
+            indexNanos = System.nanoTime() - start;
+        }
+
+        long scanNanos = 0;
+        for (int round = 0; round < 2; round++) {
+            Random random = new Random(7);
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                checksum -= linearScan(history, maker.make(random));
+            }
+            scanNanos = System.nanoTime() - start;
+        }
+
+        if (checksum != 0) {
+            throw new IllegalStateException("index and scan disagree for " + name);
+        }
+        System.out.printf("%-21s | %10.1f | %10.1f | %6.1fx%n", name,
+                indexNanos / 1e3 / queries, scanNanos / 1e3 / queries, (double) scanNanos / indexNanos);
+    }
+
+    // what UserExpenses.query did before the indexes: look at every row
+    private static int linearScan(List<Expense> history, ExpenseQuery query) {
+        List<Expense> page = new ArrayList<>();
+        int matches = 0;
+        for (Expense expense : history) {
+            if (query.matches(expense)) {
+                if (matches >= query.getOffset() && page.size() < query.getLimit()) {
+                    page.add(expense);
+                }
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import common.Expense;
+
+import java.time.LocalDate;
+import java.util.Random;
+
+// Fills one table per storage backend with the same generated expenses and prints how much heap each
+// one holds on to per row. The numbers are "used heap after a full GC", so run it on an otherwise idle
+// JVM and give it room: 10 million rows need about -Xmx4g for the object backend.
+//
+// Usage: java -Xmx4g server.MemoryFootprintReport [rows]
+public class MemoryFootprintReport {
+    private static final String[] CATEGORIES = {"Food", "Transport", "Entertainment", "Shopping",
+            "Bills", "Healthcare", "Education", "Other"};
+    private static final LocalDate START = LocalDate.of(2020, 1, 1);
+    private static final int DAYS = 5 * 365;
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+
+        System.out.printf("Rows: %,d, max heap: %,d MB%n%n", rows, Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        System.out.println("backend   |    heap MB | bytes/row |  build ms");
+        measure("object", new ObjectExpenseTable(), rows);
+        measure("columnar", new ColumnarExpenseTable(), rows);
+    }
+
+    private static void measure(String name, ExpenseTable table, int rows) {
+        long before = usedHeap();
+        long start = System.nanoTime();
+
+        // same seed for both backends. Strings are copied per row, like Gson does when loading a snapshot
+        Random random = new Random(42);
+        for (int i = 0; i < rows; i++) {
+            table.add(new Expense(1 + random.nextInt(50_000) / 100.0,
+                    new String(CATEGORIES[random.nextInt(CATEGORIES.length)]),
+                    START.plusDays(random.nextInt(DAYS)), "note " + (i % 1000)));
+        }
+        long buildNanos = System.nanoTime() - start;
+
+        long used = usedHeap() - before;
+        System.out.printf("%-9s | %10.1f | %9.1f | %9.0f%n", name, used / (1024.0 * 1024.0),
+                (double) used / rows, buildNanos / 1e6);
+
+        // keep the table reachable until it has been measured
+        if (table.size() != rows) {
+            throw new IllegalStateException(name + " lost rows");
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,517 @@
+package server;
+
+import common.BinaryProtocol;
+import common.Expense;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+// Non-blocking event loop: one selector thread serves every client. Incoming bytes are cut into
+// lines straight out of the ByteBuffer and handed to ClientHandler.handleMessageAsync, the same
+// code path the blocking engines use, so the protocol behaves exactly the same. The commands
+// themselves run on the dispatcher's workers, so slow storage I/O never stalls the loop.
+// After PROTOCOL|BINARY a connection's bytes are cut into length-prefixed frames instead of lines.
+public class NioConnectionEngine implements ConnectionEngine {
+    private static final String WELCOME = "CONNECTION SUCCESSFUL|Connected to Expense Tracker Server";
+    // stop reading from a client that has this many requests waiting for their turn
+    private static final int MAX_PIPELINED_REQUESTS = 1024;
+    // encoded chunks of a streamed response that may wait for the socket before the streamer pauses
+    private static final int STREAM_CHUNKS_AHEAD = 4;
+    // buffers of pushes that may wait for the socket; the rest waits in the Subscription, which is bounded
+    private static final int PUSH_BUFFERS_AHEAD = 4;
+
+    private final ExpenseStorage storage;
+    private final RequestDispatcher dispatcher;
+    private final ConcurrentLinkedQueue<Runnable> loopTasks = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+
+    public NioConnectionEngine(ExpenseStorage storage, RequestDispatcher dispatcher) {
+        this.storage = storage;
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void bind(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                selector.select();
+                runLoopTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        ServerLog.error("ERROR", "Connection error with " + connection.handler.getClientAddress() + ": " + e.getMessage());
+                        connection.close();
+                    }
+                }
+            }
+        } finally {
+            try {
+                serverChannel.close();
+            } finally {
+                selector.close();
+            }
+        }
+    }
+
+    // worker threads hand their results back through here, only the loop thread touches connections
+    private void runOnLoop(Runnable task) {
+        loopTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runLoopTasks() {
+        Runnable task;
+        while ((task = loopTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                // a streamed answer leaves in several small writes, Nagle would hold each one back
+                // until the client's delayed ACK for the previous one
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                String clientAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+                ServerLog.info("CONNECTION", "New client connected from " + clientAddress);
+
+                if (!dispatcher.tryAcquireConnection()) {
+                    // too many connections already, a single short line always fits in a fresh socket buffer
+                    ServerLog.warn("BUSY", "Connection limit reached, rejecting " + clientAddress);
+                    channel.write(StandardCharsets.UTF_8.encode(RequestDispatcher.BUSY_RESPONSE + "\n"));
+                    channel.close();
+                    continue;
+                }
+
+                ClientHandler handler = new ClientHandler(clientAddress, storage, dispatcher);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                Connection connection = new Connection(channel, key, handler);
+                key.attach(connection);
+                Server.addClient(handler);
+
+                ServerLog.info("HANDLER", "Event loop serving client " + clientAddress);
+                connection.send(WELCOME);
+            }
+        } catch (IOException e) {
+            ServerLog.error("ERROR", "Failed to accept client connection: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String name() {
+        return "nio";
+    }
+
+    // a request waiting for its turn: a text line, or the payload of a binary frame
+    private static final class PendingRequest {
+        private final String line;
+        private final byte[] frame;
+
+        PendingRequest(String line, byte[] frame) {
+            this.line = line;
+            this.frame = frame;
+        }
+    }
+
+    // writes frames into an OutputStream, so BinarySession can encode straight into a buffer for us
+    private interface FrameEncoding {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // per-client state: the partially received line (or frame), requests waiting for their turn and
+    // whatever we couldn't write yet. Requests run one at a time so responses stay in order.
+    // A streamed response counts as running until its last chunk has been queued.
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ClientHandler handler;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private final ArrayDeque<PendingRequest> pendingRequests = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> streamChunks = new ArrayDeque<>(); // the outbound ones that hold a credit
+        private final Semaphore streamCredits = new Semaphore(STREAM_CHUNKS_AHEAD);
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private BinarySession session; // null while the connection speaks text
+        private Subscription pushing;  // the subscription this connection sends pushes for
+        private int frameLength = -1;  // payload bytes of the frame being read, -1 while reading its length
+        private int frameLengthShift;
+        private boolean inFlight;
+        private boolean closing;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key, ClientHandler handler) {
+            this.channel = channel;
+            this.key = key;
+            this.handler = handler;
+        }
+
+        void read() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            ServerMetrics.bytesIn(read);
+
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !closing) {
+                if (session != null) {
+                    readFrame();
+                    continue;
+                }
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    handleLine();
+                } else {
+                    appendToLine(b);
+                }
+            }
+            readBuffer.clear();
+
+            if (closing) {
+                flush(); // closes once the last response is out
+            } else if (!closed) {
+                updateInterest();
+            }
+        }
+
+        private void appendToLine(byte b) {
+            if (lineLength == line.length) {
+                if (line.length >= ServerConfig.MAX_REQUEST_BYTES) {
+                    ServerLog.error("ERROR", "Request from " + handler.getClientAddress() + " is too large, closing");
+                    send("ERROR|Request too large");
+                    closing = true;
+                    return;
+                }
+                line = Arrays.copyOf(line, Math.min(line.length * 2, ServerConfig.MAX_REQUEST_BYTES));
+            }
+            line[lineLength++] = b;
+        }
+
+        // the varint length prefix a byte at a time, then as much of the payload as has arrived
+        private void readFrame() {
+            if (frameLength < 0) {
+                int b = readBuffer.get() & 0xFF;
+                lineLength |= (b & 0x7F) << frameLengthShift;
+                frameLengthShift += 7;
+                if ((b & 0x80) != 0 && frameLengthShift <= 28) {
+                    return;
+                }
+                int length = lineLength;
+                lineLength = 0;
+                frameLengthShift = 0;
+                if ((b & 0x80) != 0 || length < 1 || length > ServerConfig.MAX_REQUEST_BYTES) {
+                    ServerLog.error("ERROR", "Frame from " + handler.getClientAddress() + " is out of bounds, closing");
+                    sendFrames(out -> session.writeText("ERROR|Request too large", out));
+                    closing = true;
+                    return;
+                }
+                frameLength = length;
+                if (line.length < frameLength) {
+                    line = new byte[frameLength];
+                }
+                return;
+            }
+
+            int n = Math.min(readBuffer.remaining(), frameLength - lineLength);
+            readBuffer.get(line, lineLength, n);
+            lineLength += n;
+            if (lineLength == frameLength) {
+                pendingRequests.add(new PendingRequest(null, Arrays.copyOf(line, frameLength)));
+                frameLength = -1;
+                lineLength = 0;
+                dispatchNext();
+            }
+        }
+
+        private void handleLine() {
+            int length = lineLength;
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            String message = new String(line, 0, length, StandardCharsets.UTF_8);
+            lineLength = 0;
+
+            if (message.trim().isEmpty()) {
+                return;
+            }
+
+            pendingRequests.add(new PendingRequest(message, null));
+            dispatchNext();
+        }
+
+        private void dispatchNext() {
+            if (inFlight || closed || pendingRequests.isEmpty()) {
+                return;
+            }
+
+            PendingRequest next = pendingRequests.poll();
+            inFlight = true;
+            if (next.frame == null) {
+                boolean disconnect = ClientHandler.isDisconnect(next.line);
+                handler.handleMessageAsync(next.line).whenComplete((response, error) ->
+                        runOnLoop(() -> respond(response, error, null, disconnect)));
+            } else {
+                // frames are decoded here on the loop, in arrival order, because of the category dictionary
+                session.getReader().wrap(next.frame, next.frame.length);
+                BinarySession.Request request = session.decode();
+                request.handle().whenComplete((response, error) ->
+                        runOnLoop(() -> respond(response, error, request, request.isDisconnect())));
+            }
+        }
+
+        // request is null for text requests
+        private void respond(Response response, Throwable error, BinarySession.Request request, boolean disconnect) {
+            Response answer = error != null ? Response.of("ERROR|" + error.getMessage()) : response;
+            if (request == null) {
+                send(answer.getText());
+                if (BinaryProtocol.NEGOTIATE_OK.equals(answer.getHead())) {
+                    // the client waits for this answer before it sends its first frame
+                    ServerLog.info("HANDLER", "Client " + handler.getClientAddress() + " switched to the binary protocol");
+                    session = new BinarySession(handler);
+                }
+                Subscription subscription = handler.getSubscription();
+                if (subscription != null && subscription.claimSender(() -> runOnLoop(this::sendPushes))) {
+                    // SUBSCRIBE has just been answered, pushes may follow from now on
+                    pushing = subscription;
+                }
+            } else {
+                sendFrames(out -> session.writeHead(request, answer, out));
+            }
+
+            if (answer.isStreamed() && !closed) {
+                stream(answer.getRows(), request, disconnect);
+            } else {
+                finishRequest(disconnect);
+            }
+        }
+
+        private void finishRequest(boolean disconnect) {
+            inFlight = false;
+            if (closed) {
+                return;
+            }
+
+            if (disconnect) {
+                closing = true;
+                pendingRequests.clear();
+                try {
+                    flush(); // closes once the last response is out
+                } catch (IOException e) {
+                    close();
+                }
+            } else {
+                dispatchNext();
+                sendPushes();
+            }
+        }
+
+        // Pushes go out between answers, a few buffers at a time. A subscriber that doesn't read
+        // leaves the rest in its Subscription, where it overflows, instead of growing outbound.
+        private void sendPushes() {
+            try {
+                flush();
+            } catch (IOException e) {
+                ServerLog.error("ERROR", "Connection error with " + handler.getClientAddress() + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        // true if it queued anything
+        private boolean queuePushes() {
+            if (pushing == null || closing || inFlight) {
+                return false;
+            }
+            if (pushing != handler.getSubscription()) {
+                // UNSUBSCRIBE
+                pushing = null;
+                return false;
+            }
+            boolean queued = false;
+            while (outbound.size() < PUSH_BUFFERS_AHEAD) {
+                List<String> lines = pushing.poll(ClientHandler.PUSH_BATCH);
+                if (lines.isEmpty()) {
+                    break;
+                }
+                outbound.add(StandardCharsets.UTF_8.encode(String.join("\n", lines) + "\n"));
+                queued = true;
+            }
+            return queued;
+        }
+
+        // The body of a big response is pulled out of the cursor on a virtual thread, since that can
+        // wait on the user's lock and the loop must never block. The streamer needs a credit per chunk
+        // and gets it back once the socket has taken that chunk, so a slow reader makes it pause
+        // instead of piling the whole answer up in outbound.
+        private void stream(ExpenseCursor rows, BinarySession.Request request, boolean disconnect) {
+            Thread.ofVirtual().name("stream-" + handler.getClientAddress()).start(() -> {
+                try {
+                    List<Expense> chunk;
+                    while (true) {
+                        streamCredits.acquire();
+                        if (closed || (chunk = rows.next(Response.CHUNK_ROWS)).isEmpty()) {
+                            streamCredits.release();
+                            break;
+                        }
+                        List<Expense> rowsToSend = chunk;
+                        ByteBuffer encoded = request == null
+                                ? StandardCharsets.UTF_8.encode(Response.encodeChunk(rowsToSend))
+                                : encode(out -> session.writeChunk(request, rowsToSend, out));
+                        runOnLoop(() -> sendChunk(encoded));
+                    }
+                    runOnLoop(() -> finishRequest(disconnect));
+                } catch (InterruptedException | IOException | RuntimeException e) {
+                    // the client already has a head promising more rows than it will get, so hang up
+                    ServerLog.error("ERROR", "Streaming to " + handler.getClientAddress() + " failed: " + e);
+                    runOnLoop(this::close);
+                }
+            });
+        }
+
+        private void sendChunk(ByteBuffer chunk) {
+            if (closed) {
+                return;
+            }
+            outbound.add(chunk);
+            streamChunks.add(chunk);
+            try {
+                flush();
+            } catch (IOException e) {
+                ServerLog.error("ERROR", "Connection error with " + handler.getClientAddress() + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        void send(String response) {
+            sendBuffer(StandardCharsets.UTF_8.encode(response + "\n"));
+        }
+
+        private void sendFrames(FrameEncoding frames) {
+            try {
+                sendBuffer(encode(frames));
+            } catch (IOException e) {
+                ServerLog.error("ERROR", "Encoding a response for " + handler.getClientAddress() + " failed: " + e.getMessage());
+                close();
+            }
+        }
+
+        private ByteBuffer encode(FrameEncoding frames) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            frames.writeTo(bytes);
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+
+        private void sendBuffer(ByteBuffer buffer) {
+            outbound.add(buffer);
+            try {
+                flush();
+            } catch (IOException e) {
+                ServerLog.error("ERROR", "Connection error with " + handler.getClientAddress() + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            while (!outbound.isEmpty() || queuePushes()) {
+                ByteBuffer buffer = outbound.peek();
+                ServerMetrics.bytesOut(channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    // socket buffer is full, wait until the selector says we can write again
+                    updateInterest();
+                    return;
+                }
+                outbound.poll();
+                if (buffer == streamChunks.peek()) {
+                    streamChunks.poll();
+                    streamCredits.release();
+                }
+            }
+
+            if (closing && !inFlight) {
+                close();
+            } else {
+                updateInterest();
+            }
+        }
+
+        // read unless we're closing or the client is too far ahead of us, write while anything is queued
+        private void updateInterest() {
+            int ops = 0;
+            if (!closing && pendingRequests.size() < MAX_PIPELINED_REQUESTS) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!outbound.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            streamCredits.release(STREAM_CHUNKS_AHEAD); // wake a paused streamer so it notices
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.error("ERROR", "Error closing client resources: " + e.getMessage());
+            }
+            ServerLog.info("CLEANUP", "Connection closed for " + handler.getClientAddress());
+            Server.removeClient(handler);
+            dispatcher.releaseConnection();
+        }
+    }
+}
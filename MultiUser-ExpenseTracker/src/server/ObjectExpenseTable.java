@@ -0,0 +1,57 @@
+package server;
+
+import common.Expense;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The original layout: one Expense object per row.
+class ObjectExpenseTable implements ExpenseTable {
+    // the Expense, its LocalDate and the list slot; the two strings are counted on top
+    private static final int ROW_BYTES = 64;
+    private static final int STRING_BYTES = 40;
+
+    private final List<Expense> expenses = new ArrayList<>();
+    private long bytes;
+
+    @Override
+    public int size() {
+        return expenses.size();
+    }
+
+    @Override
+    public void add(Expense expense) {
+        expenses.add(expense);
+        bytes += ROW_BYTES + stringBytes(expense.getCategory()) + stringBytes(expense.getNote());
+    }
+
+    private static long stringBytes(String value) {
+        return value == null ? 0 : STRING_BYTES + value.length();
+    }
+
+    @Override
+    public Expense get(int row) {
+        return expenses.get(row);
+    }
+
+    @Override
+    public double amount(int row) {
+        return expenses.get(row).getAmount();
+    }
+
+    @Override
+    public long epochDay(int row) {
+        Expense expense = expenses.get(row);
+        return expense.getDate() != null ? expense.getDate().toEpochDay() : Long.MIN_VALUE;
+    }
+
+    @Override
+    public String category(int row) {
+        return expenses.get(row).getCategory();
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return bytes;
+    }
+}
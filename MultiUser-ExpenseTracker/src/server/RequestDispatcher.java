@@ -0,0 +1,85 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Admission control for the whole server. Commands run on a fixed pool of worker threads with a
+// bounded queue in front of it, and the number of open connections is capped. When either limit is
+// hit the client gets ERROR|BUSY straight away instead of the server quietly piling up work.
+public class RequestDispatcher {
+    // BUSY always means "not executed", so clients can safely retry any command that gets it
+    public static final String BUSY_RESPONSE = "ERROR|BUSY|Server is overloaded, try again later";
+
+    private final ThreadPoolExecutor workers;
+    private final int maxConnections;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+
+    public RequestDispatcher(int workerThreads, int queueCapacity, int maxConnections) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.maxConnections = maxConnections;
+
+        ServerLog.info("DISPATCH", workerThreads + " workers | queue capacity " + queueCapacity +
+                " | max connections " + maxConnections);
+    }
+
+    // runs the command on a worker, or completes right away with busyResponse if the queue is full
+    public <T> CompletableFuture<T> dispatch(Supplier<T> command, T busyResponse) {
+        try {
+            return CompletableFuture.supplyAsync(command, workers);
+        } catch (RejectedExecutionException e) {
+            rejectedRequests.incrementAndGet();
+            return CompletableFuture.completedFuture(busyResponse);
+        }
+    }
+
+    public boolean tryAcquireConnection() {
+        while (true) {
+            int current = activeConnections.get();
+            if (current >= maxConnections) {
+                rejectedConnections.incrementAndGet();
+                return false;
+            }
+            if (activeConnections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void releaseConnection() {
+        activeConnections.decrementAndGet();
+    }
+
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    public int getActiveWorkers() {
+        return workers.getActiveCount();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+}
@@ -0,0 +1,102 @@
+package server;
+
+import common.Expense;
+import common.ExpenseJson;
+import common.ExpenseSummary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// What a command answers with. Most answers are a single line of text. GET_SUMMARY adds its groups,
+// and GET_EXPENSES answers with its "SUCCESS|count|total" head plus a cursor over the expenses, which
+// the connection engine writes out as JSON lines a chunk at a time, flushing after every chunk.
+// That way the client can start on the first expenses while we are still reading the rest, and the
+// memory a response needs doesn't grow with the size of the answer. Keeping the rows structured
+// lets the binary protocol encode them without going through text first.
+final class Response {
+    // expenses pulled out of the cursor (and flushed to the socket) at a time
+    static final int CHUNK_ROWS = 256;
+
+    private final String head;
+    private final List<ExpenseSummary> groups;
+    private final List<String> lines;
+    private final ExpenseCursor rows;
+
+    private Response(String head, List<ExpenseSummary> groups, List<String> lines, ExpenseCursor rows) {
+        this.head = head;
+        this.groups = groups;
+        this.lines = lines;
+        this.rows = rows;
+    }
+
+    static Response of(String text) {
+        return new Response(text, null, null, null);
+    }
+
+    // SUCCESS|<groups>, then one "key|total|count" line per group
+    static Response summary(List<ExpenseSummary> groups) {
+        return new Response("SUCCESS|" + groups.size(), groups, null, null);
+    }
+
+    // SUCCESS|<lines>, then the lines themselves, e.g. STATS
+    static Response lines(List<String> lines) {
+        return new Response("SUCCESS|" + lines.size(), null, lines, null);
+    }
+
+    static Response streamed(String head, ExpenseCursor rows) {
+        return new Response(head, null, null, rows);
+    }
+
+    // the first line of the answer
+    String getHead() {
+        return head;
+    }
+
+    // everything except a streamed body, as text-protocol lines
+    String getText() {
+        if (groups == null && lines == null) {
+            return head;
+        }
+        StringBuilder text = new StringBuilder(head);
+        for (String line : getLines()) {
+            text.append('\n').append(line);
+        }
+        return text.toString();
+    }
+
+    List<ExpenseSummary> getGroups() {
+        return groups;
+    }
+
+    // the lines after the head, for anything that isn't streamed
+    List<String> getLines() {
+        if (lines != null) {
+            return lines;
+        }
+        List<String> text = new ArrayList<>();
+        if (groups != null) {
+            for (ExpenseSummary group : groups) {
+                text.add(group.toLine());
+            }
+        }
+        return text;
+    }
+
+    boolean isStreamed() {
+        return rows != null;
+    }
+
+    ExpenseCursor getRows() {
+        return rows;
+    }
+
+    // one chunk of the body as JSON lines, each ending in '\n'
+    static String encodeChunk(List<Expense> chunk) {
+        StringBuilder lines = new StringBuilder(chunk.size() * 96);
+        for (Expense expense : chunk) {
+            ExpenseJson.appendJson(expense, lines);
+            lines.append('\n');
+        }
+        return lines.toString();
+    }
+}
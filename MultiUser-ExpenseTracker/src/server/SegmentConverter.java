@@ -0,0 +1,139 @@
+package server;
+
+import common.Expense;
+import common.ExpenseJson;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+// Converts users' snapshots between data/<user>.json and the mapped segment files in data/<user>.seg/
+// (see SegmentExpenseTable), for all users or the ones named. Stop the server first.
+//
+// Only the snapshot changes. Rows keep their numbers, so the write-ahead log next to it still
+// lines up and is replayed as before. Every converted user is read back and compared row by row
+// against the source before the source is deleted, so a conversion is either exact or not done.
+// The server converts users it finds in the other format by itself when they're loaded; this is
+// for doing the whole directory up front, or for going back to JSON.
+//
+// Usage: java server.SegmentConverter to-segments|to-json [dataDirectory] [username...]
+public class SegmentConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || !(args[0].equals("to-segments") || args[0].equals("to-json"))) {
+            System.out.println("Usage: java server.SegmentConverter to-segments|to-json [dataDirectory] [username...]");
+            return;
+        }
+        boolean toSegments = args[0].equals("to-segments");
+        Path dataDirectory = Paths.get(args.length > 1 ? args[1] : ServerConfig.DATA_DIRECTORY);
+        String from = toSegments ? ".json" : ".seg";
+
+        TreeSet<String> usernames = new TreeSet<>();
+        for (int i = 2; i < args.length; i++) {
+            usernames.add(args[i]);
+        }
+        if (usernames.isEmpty()) {
+            File[] files = dataDirectory.toFile().listFiles((dir, name) -> name.endsWith(from));
+            if (files != null) {
+                for (File file : files) {
+                    usernames.add(file.getName().substring(0, file.getName().length() - from.length()));
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        int converted = 0;
+        long rows = 0;
+        for (String username : usernames) {
+            Path json = dataDirectory.resolve(username + ".json");
+            Path segments = dataDirectory.resolve(username + ".seg");
+            try {
+                if (toSegments ? SegmentExpenseTable.exists(segments) : Files.exists(json)) {
+                    System.out.println(username + ": already converted, skipped");
+                    continue;
+                }
+                if (toSegments ? !Files.exists(json) : !SegmentExpenseTable.exists(segments)) {
+                    System.out.println(username + ": no " + from + " snapshot, skipped");
+                    continue;
+                }
+                int count = toSegments ? toSegments(json, segments) : toJson(segments, json);
+                System.out.printf("%s: %,d expenses%n", username, count);
+                converted++;
+                rows += count;
+            } catch (IOException | RuntimeException e) {
+                System.out.println(username + ": not converted, " + e.getMessage());
+            }
+        }
+        System.out.printf("Converted %d users (%,d expenses) in %d ms%n", converted, rows,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static int toSegments(Path json, Path segments) throws IOException {
+        List<Expense> expenses = readJson(json);
+        Path temp = segments.resolveSibling(segments.getFileName() + ".tmp");
+        // left behind by a conversion that failed half way
+        SegmentExpenseTable.delete(temp);
+        SegmentExpenseTable table = SegmentExpenseTable.create(temp);
+        for (Expense expense : expenses) {
+            table.add(expense);
+        }
+        table.checkpoint(table.size());
+
+        verify(expenses, SegmentExpenseTable.open(temp));
+        Files.move(temp, segments, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(json);
+        return expenses.size();
+    }
+
+    private static int toJson(Path segments, Path json) throws IOException {
+        SegmentExpenseTable table = SegmentExpenseTable.open(segments);
+        Path temp = json.resolveSibling(json.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (int row = 0; row < table.size(); row++) {
+                writer.write(ExpenseJson.toJson(table.get(row)));
+                writer.newLine();
+            }
+        }
+
+        verify(readJson(temp), table);
+        Files.move(temp, json, StandardCopyOption.ATOMIC_MOVE);
+        SegmentExpenseTable.delete(segments);
+        return table.size();
+    }
+
+    // the same rows the server would load from the snapshot
+    private static List<Expense> readJson(Path json) throws IOException {
+        List<Expense> expenses = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(json, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    Expense expense = ExpenseJson.fromJson(line);
+                    if (expense != null) {
+                        expenses.add(expense);
+                    }
+                }
+            }
+        }
+        return expenses;
+    }
+
+    private static void verify(List<Expense> expected, ExpenseTable table) throws IOException {
+        if (table.size() != expected.size()) {
+            throw new IOException("read back " + table.size() + " rows, expected " + expected.size());
+        }
+        for (int row = 0; row < expected.size(); row++) {
+            if (!ExpenseJson.toJson(expected.get(row)).equals(ExpenseJson.toJson(table.get(row)))) {
+                throw new IOException("row " + row + " differs after conversion");
+            }
+        }
+    }
+}
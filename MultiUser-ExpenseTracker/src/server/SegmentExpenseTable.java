@@ -0,0 +1,282 @@
+package server;
+
+import common.Expense;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+// The mapped backend: a user's rows live in append-only segment files under data/<user>.seg/ and are
+// read straight out of mapped memory, so filters over amount, date and category never build an
+// Expense and the rows take no heap. Every row is a fixed 24-byte record:
+//   amount      double  kept as double so amounts round-trip exactly
+//   epochDay    int     NO_DATE when there is none
+//   categoryId  int     into this user's category list, NO_CATEGORY when there is none
+//   noteRef     long    note segment << 32 | offset in it, NO_NOTE when there is none
+// rows-NNNNN files hold ROWS_PER_SEGMENT records each, so a row never moves once it's written.
+// Notes are an int length plus the UTF-8 bytes, appended to notes-NNNNN files.
+//
+// The files double as the user's snapshot. checkpoint(rows) forces them to disk and then swaps in
+// a small meta file with the row count and the category names. Rows past that count are redone from
+// the write-ahead log on the next load, just like rows past the end of a JSON snapshot.
+final class SegmentExpenseTable implements ExpenseTable {
+    private static final int MAGIC = 0x45585047; // "EXPG"
+    private static final int VERSION = 1;
+    private static final int RECORD_BYTES = 24;
+    private static final int SEGMENT_SHIFT = 15;
+    private static final int ROWS_PER_SEGMENT = 1 << SEGMENT_SHIFT;
+    private static final int NOTE_SEGMENT_BYTES = 1 << 20;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    private static final int NO_CATEGORY = -1;
+    private static final long NO_NOTE = -1;
+    private static final String META = "meta";
+
+    private final Path directory;
+    // only ever appended to; checkpoint() walks them without the user's lock
+    private final List<MappedByteBuffer> rowSegments = new CopyOnWriteArrayList<>();
+    private final List<MappedByteBuffer> noteSegments = new CopyOnWriteArrayList<>();
+    // per user and not CategoryDictionary.SHARED, because the ids end up on disk
+    private final List<String> categories = new ArrayList<>();
+    private final Map<String, Integer> categoryIds = new HashMap<>();
+    private int size;
+    // where the next note goes, as a noteRef
+    private volatile long noteEnd;
+
+    private SegmentExpenseTable(Path directory) {
+        this.directory = directory;
+    }
+
+    // An empty table for a directory that isn't there yet; nothing is written until the first row
+    // arrives. An existing directory may hold somebody's rows, so it's never reused or cleared here.
+    static SegmentExpenseTable create(Path directory) throws IOException {
+        if (Files.exists(directory)) {
+            throw new IOException("Segment directory already exists: " + directory);
+        }
+        return new SegmentExpenseTable(directory);
+    }
+
+    // the rows up to the last checkpoint, or an empty table if there never was one
+    static SegmentExpenseTable open(Path directory) throws IOException {
+        SegmentExpenseTable table = new SegmentExpenseTable(directory);
+        Path meta = directory.resolve(META);
+        if (!Files.exists(meta)) {
+            return table;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(meta))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a segment meta file: " + meta);
+            }
+            table.size = in.readInt();
+            table.noteEnd = in.readLong();
+            int categoryCount = in.readInt();
+            for (int id = 0; id < categoryCount; id++) {
+                String name = in.readUTF();
+                table.categories.add(name);
+                table.categoryIds.put(name, id);
+            }
+        }
+        if (table.size > 0) {
+            table.rowSegment((table.size - 1) >>> SEGMENT_SHIFT);
+        }
+        for (int segment = 0; segment <= (table.noteEnd >>> 32); segment++) {
+            table.mapNoteSegment(segment, 0);
+        }
+        return table;
+    }
+
+    static boolean exists(Path directory) {
+        return Files.exists(directory.resolve(META));
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(Expense expense) {
+        try {
+            int row = size;
+            MappedByteBuffer segment = rowSegment(row >>> SEGMENT_SHIFT);
+            int at = (row & (ROWS_PER_SEGMENT - 1)) * RECORD_BYTES;
+            segment.putDouble(at, expense.getAmount());
+            segment.putInt(at + 8, expense.getDate() != null ? Math.toIntExact(expense.getDate().toEpochDay()) : NO_DATE);
+            segment.putInt(at + 12, expense.getCategory() != null ? categoryId(expense.getCategory()) : NO_CATEGORY);
+            segment.putLong(at + 16, expense.getNote() != null ? writeNote(expense.getNote()) : NO_NOTE);
+            size = row + 1;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not grow the segments in " + directory, e);
+        }
+    }
+
+    @Override
+    public Expense get(int row) {
+        long note = record(row).getLong(offset(row) + 16);
+        long day = epochDay(row);
+        return new Expense(amount(row), category(row), day == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(day),
+                note == NO_NOTE ? null : readNote(note));
+    }
+
+    @Override
+    public double amount(int row) {
+        return record(row).getDouble(offset(row));
+    }
+
+    @Override
+    public long epochDay(int row) {
+        int day = record(row).getInt(offset(row) + 8);
+        return day == NO_DATE ? Long.MIN_VALUE : day;
+    }
+
+    @Override
+    public String category(int row) {
+        int id = record(row).getInt(offset(row) + 12);
+        return id == NO_CATEGORY ? null : categories.get(id);
+    }
+
+    // the rows themselves are off the heap, this is just the bookkeeping around them
+    @Override
+    public long estimatedBytes() {
+        return 256 + (rowSegments.size() + noteSegments.size()) * 64L + categories.size() * 64L;
+    }
+
+    // Makes the first `rows` rows durable. ExpenseStorage only holds the user's lock to pick `rows`,
+    // writers may be adding more while this runs. That's fine: they only write past `rows`, and
+    // whatever they put in the files now simply isn't counted until the next checkpoint.
+    void checkpoint(int rows) throws IOException {
+        // read after `rows` was fixed, so it's past every one of their notes
+        long notesUpTo = noteEnd;
+        List<String> names;
+        synchronized (categories) {
+            names = new ArrayList<>(categories);
+        }
+        long start = System.nanoTime();
+        for (MappedByteBuffer segment : rowSegments) {
+            segment.force();
+        }
+        for (MappedByteBuffer segment : noteSegments) {
+            segment.force();
+        }
+
+        Files.createDirectories(directory);
+        Path temp = directory.resolve(META + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows);
+            out.writeLong(notesUpTo);
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        ServerMetrics.fsync(start);
+        Files.move(temp, directory.resolve(META), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private MappedByteBuffer record(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of " + size);
+        }
+        return rowSegments.get(row >>> SEGMENT_SHIFT);
+    }
+
+    private static int offset(int row) {
+        return (row & (ROWS_PER_SEGMENT - 1)) * RECORD_BYTES;
+    }
+
+    private MappedByteBuffer rowSegment(int segment) throws IOException {
+        while (rowSegments.size() <= segment) {
+            rowSegments.add(map(String.format("rows-%05d", rowSegments.size()), (long) ROWS_PER_SEGMENT * RECORD_BYTES));
+        }
+        return rowSegments.get(segment);
+    }
+
+    private int categoryId(String category) {
+        Integer id = categoryIds.get(category);
+        if (id != null) {
+            return id;
+        }
+        synchronized (categories) {
+            categories.add(category);
+        }
+        categoryIds.put(category, categories.size() - 1);
+        return categories.size() - 1;
+    }
+
+    private long writeNote(String note) throws IOException {
+        byte[] bytes = note.getBytes(StandardCharsets.UTF_8);
+        int segment = (int) (noteEnd >>> 32);
+        int offset = (int) noteEnd;
+        if (segment >= noteSegments.size() || offset + Integer.BYTES + bytes.length > noteSegments.get(segment).capacity()) {
+            if (segment < noteSegments.size()) {
+                segment++;
+                offset = 0;
+            }
+            mapNoteSegment(segment, Integer.BYTES + bytes.length);
+        }
+        MappedByteBuffer notes = noteSegments.get(segment);
+        notes.putInt(offset, bytes.length);
+        notes.put(offset + Integer.BYTES, bytes);
+        long ref = (long) segment << 32 | offset;
+        noteEnd = (long) segment << 32 | (offset + Integer.BYTES + bytes.length);
+        return ref;
+    }
+
+    private String readNote(long ref) {
+        MappedByteBuffer notes = noteSegments.get((int) (ref >>> 32));
+        int offset = (int) ref;
+        byte[] bytes = new byte[notes.getInt(offset)];
+        notes.get(offset + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // a note that doesn't fit the usual segment size gets a segment of its own size
+    private void mapNoteSegment(int segment, int minBytes) throws IOException {
+        String name = String.format("notes-%05d", segment);
+        Path file = directory.resolve(name);
+        long existing = Files.exists(file) ? Files.size(file) : 0;
+        noteSegments.add(map(name, Math.max(NOTE_SEGMENT_BYTES, Math.max(minBytes, existing))));
+    }
+
+    // the mapping stays valid after the channel is closed, and growing the file to `bytes` is sparse
+    private MappedByteBuffer map(String name, long bytes) throws IOException {
+        Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(directory.resolve(name), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(bytes, channel.size()));
+        }
+    }
+}
@@ -1,74 +1,106 @@
 package server;
 
 import java.io.*;
-import java.net.*;
 import java.util.*;
 
 public class Server {
-    private static final int PORT = 5000;
-    private static List<ClientHandler> activeClients = new ArrayList<>();
+    private static final int PORT = ServerConfig.PORT;
+    // open connections, and who subscribed to which user
+    private static final ClientRegistry clients = new ClientRegistry(ServerConfig.SUBSCRIBER_QUEUE);
     private static ExpenseStorage storage;
+    private static RequestDispatcher dispatcher;
 
     public static void main(String[] args) {
         System.out.println("========================================");
         System.out.println("   Expense Tracker Server v1.1");
         System.out.println("========================================");
-        System.out.println("[INIT] Initializing storage system...");
+        ServerLog.info("INIT", "Initializing storage system...");
 
         // this initilizes the storage
         storage = new ExpenseStorage();
+        storage.setAddListener(clients);
+        Runtime.getRuntime().addShutdownHook(new Thread(storage::shutdown));
 
-        System.out.println("[INIT] Starting server on port " + PORT + "...");
+        dispatcher = new RequestDispatcher(ServerConfig.WORKER_THREADS,
+                ServerConfig.WORKER_QUEUE_CAPACITY, ServerConfig.MAX_CONNECTIONS);
+        registerMetrics();
+        ConnectionEngine engine = ConnectionEngine.forMode(ServerConfig.CONNECTION_ENGINE, storage, dispatcher);
+        ServerLog.info("INIT", "Starting server on port " + PORT + " (" + engine.name() + " engine)...");
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("[SERVER] ✓ Server started successfully on port " + PORT);
-            System.out.println("[SERVER] Waiting for client connections...");
-            System.out.println("[SERVER] Press Ctrl+C to stop the server\n");
-
-            // always accepts client conections
-            while (true) {
-                try {
-                    // accepting new client connections
-                    Socket clientSocket = serverSocket.accept();
-                    String clientAddress = clientSocket.getInetAddress().getHostAddress();
-
-                    System.out.println("[CONNECTION] New client connected from " + clientAddress);
-
-                    // creating and starting a new thread
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, storage);
-                    synchronized (activeClients) {
-                        activeClients.add(clientHandler);
-                    }
-
-                    Thread thread = new Thread(clientHandler);
-                    thread.setDaemon(true);
-                    thread.start();
-
-                    System.out.println("[STATUS] Active clients: " + activeClients.size() + 
-                                     " | Users: " + storage.getUserCount() + 
-                                     " | Total expenses: " + storage.getTotalExpenseCount());
-
-                } catch (IOException e) {
-                    System.err.println("[ERROR] Failed to accept client connection: " + e.getMessage());
-                }
+        try {
+            engine.bind(PORT);
+            if (ServerConfig.METRICS_PORT > 0) {
+                ServerMetrics.startHttpEndpoint(ServerConfig.METRICS_PORT);
             }
+            ServerLog.info("SERVER", "✓ Server started successfully on port " + PORT);
+            ServerLog.info("SERVER", "Waiting for client connections...");
+            ServerLog.info("SERVER", "Press Ctrl+C to stop the server\n");
+
+            engine.serve();
 
         } catch (IOException e) {
-            System.err.println("[FATAL] Could not start server on port " + PORT);
-            System.err.println("[FATAL] Error: " + e.getMessage());
+            ServerLog.error("FATAL", "Could not start server on port " + PORT);
+            ServerLog.error("FATAL", "Error: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    // everything the storage and the dispatcher already count, read when the metrics are
+    private static void registerMetrics() {
+        ServerMetrics.registerGauge("connections_active", "Open client connections", dispatcher::getActiveConnections);
+        ServerMetrics.registerCounter("connections_rejected_total", "Connections turned away at the connection limit",
+                dispatcher::getRejectedConnections);
+        ServerMetrics.registerGauge("worker_queue_depth", "Requests waiting for a worker", dispatcher::getQueueDepth);
+        ServerMetrics.registerGauge("workers_busy", "Workers running a request", dispatcher::getActiveWorkers);
+        ServerMetrics.registerCounter("requests_rejected_total", "Requests answered with ERROR|BUSY because the queue was full",
+                dispatcher::getRejectedRequests);
+        ServerMetrics.registerGauge("users", "Users with stored expenses", storage::getUserCount);
+        ServerMetrics.registerGauge("users_unloaded", "Users still on disk, not counted in expenses yet",
+                storage::getUnloadedUserCount);
+        ServerMetrics.registerGauge("expenses", "Expenses stored over all loaded users", storage::getTotalExpenseCount);
+        ServerMetrics.registerGauge("cache_users", "Users in memory", storage::getResidentUserCount);
+        ServerMetrics.registerGauge("cache_resident_bytes", "Estimated heap of the users in memory",
+                storage::getResidentBytes);
+        ServerMetrics.registerGauge("cache_budget_bytes", "Cache budget, 0 when unlimited", storage::getCacheBudget);
+        ServerMetrics.registerCounter("cache_hits_total", "User lookups served from memory", storage::getCacheHits);
+        ServerMetrics.registerCounter("cache_misses_total", "User lookups that loaded the user from disk",
+                storage::getCacheMisses);
+        ServerMetrics.registerCounter("cache_evictions_total", "Users written back and dropped from memory",
+                storage::getEvictions);
+        ServerMetrics.registerGauge("subscriptions", "Connections subscribed to a user's new expenses",
+                clients::getSubscriptionCount);
+        ServerMetrics.registerCounter("pushes_total", "Expenses pushed to subscribers", clients::getPushesSent);
+        ServerMetrics.registerCounter("pushes_dropped_total", "Pushes dropped because a subscriber fell behind",
+                clients::getPushesDropped);
+    }
+
+    // registering new clients, called by the connection engine
+    static void addClient(ClientHandler client) {
+        clients.add(client);
+        ServerLog.info("STATUS", "Active clients: " + clients.size() +
+                         " | Users: " + storage.getUserCount() +
+                         " | Total expenses: " + storage.getTotalExpenseCount());
+        ServerLog.info("STATUS", "Queued requests: " + dispatcher.getQueueDepth() +
+                         " | Busy workers: " + dispatcher.getActiveWorkers() +
+                         " | Rejected requests: " + dispatcher.getRejectedRequests() +
+                         " | Rejected connections: " + dispatcher.getRejectedConnections());
+    }
+
     // removing disconnecting clients
-    public static synchronized void removeClient(ClientHandler client) {
-        synchronized (activeClients) {
-            activeClients.remove(client);
-        }
-        System.out.println("[DISCONNECT] Client disconnected. Active clients: " + activeClients.size());
+    public static void removeClient(ClientHandler client) {
+        clients.remove(client);
+        ServerLog.info("DISCONNECT", "Client disconnected. Active clients: " + clients.size());
+    }
+
+    static ClientRegistry getClients() {
+        return clients;
     }
 
     public static ExpenseStorage getStorage() {
         return storage;
     }
-}
\ No newline at end of file
+
+    public static RequestDispatcher getDispatcher() {
+        return dispatcher;
+    }
+}
@@ -0,0 +1,48 @@
+package server;
+
+// All the server tunables live here so we don't have magic numbers scattered around.
+// Every value can be overridden on the command line, e.g. -Dexpense.fsync=always
+public final class ServerConfig {
+    public static final int PORT = Integer.getInteger("expense.port", 5000);
+    public static final String DATA_DIRECTORY = System.getProperty("expense.data.dir", "data");
+
+    // object (one Expense per row), columnar (primitive arrays per field, see ColumnarExpenseTable) or
+    // mapped (rows in memory-mapped segment files that are also the snapshot, see SegmentExpenseTable)
+    public static final String STORAGE_BACKEND = System.getProperty("expense.storage.backend", "object");
+    // how users on disk are loaded at startup: eager, parallel or lazy (see ExpenseStorage.StartupMode).
+    // With lazy, warmup loads them in the background too instead of waiting for their first request.
+    public static final ExpenseStorage.StartupMode STARTUP_MODE =
+            ExpenseStorage.StartupMode.fromString(System.getProperty("expense.startup", "eager"));
+    public static final boolean STARTUP_WARMUP = Boolean.getBoolean("expense.startup.warmup");
+    // estimated heap the loaded users may take before the least recently used get evicted, 0 is no limit
+    public static final long CACHE_MAX_BYTES = Long.getLong("expense.cache.maxMB", 0) * 1024 * 1024;
+
+    // thread (platform thread per client), virtual (virtual thread per client) or nio (one selector thread)
+    public static final String CONNECTION_ENGINE = System.getProperty("expense.server.engine", "virtual");
+    public static final int MAX_REQUEST_BYTES = Integer.getInteger("expense.request.maxBytes", 16 * 1024 * 1024);
+    // most expenses one ADD_EXPENSES_BATCH may carry
+    public static final int MAX_BATCH_ROWS = Integer.getInteger("expense.batch.maxRows", 10_000);
+    // pushes a SUBSCRIBE connection may have waiting before it misses some and gets a RESYNC instead
+    public static final int SUBSCRIBER_QUEUE = Integer.getInteger("expense.subscribe.queue", 1024);
+
+    // admission control (see RequestDispatcher), anything past these limits gets ERROR|BUSY
+    public static final int WORKER_THREADS = Integer.getInteger("expense.workers",
+            Runtime.getRuntime().availableProcessors() * 4);
+    public static final int WORKER_QUEUE_CAPACITY = Integer.getInteger("expense.workers.queue", 1000);
+    public static final int MAX_CONNECTIONS = Integer.getInteger("expense.maxConnections", 10_000);
+
+    // port for the Prometheus /metrics endpoint on localhost, 0 leaves it off (STATS works either way)
+    public static final int METRICS_PORT = Integer.getInteger("expense.metrics.port", 0);
+
+    // write-ahead log settings (see WriteAheadLog)
+    public static final WriteAheadLog.FsyncPolicy FSYNC_POLICY =
+            WriteAheadLog.FsyncPolicy.fromString(System.getProperty("expense.fsync", "os"));
+    public static final long GROUP_COMMIT_INTERVAL_MS = Long.getLong("expense.fsync.intervalMs", 5);
+
+    // background compaction folds the log back into data/<user>.json
+    public static final long COMPACTION_INTERVAL_MS = Long.getLong("expense.compaction.intervalMs", 30_000);
+    public static final int COMPACTION_MIN_RECORDS = Integer.getInteger("expense.compaction.minRecords", 500);
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,220 @@
+package server;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// The server's log. Callers only put the finished line into a ring buffer; a single writer thread
+// takes everything that has piled up and prints it with one write to System.out (or System.err for
+// warnings and errors). Workers never wait on the stdout lock or on the terminal. Once the ring is
+// half full they yield to let the writer catch up, and if it is completely full, per-request events
+// are dropped (and the drop counted in the log) while every other line waits for room.
+//
+// Lines look like they always did: "[TAG] message". Two knobs:
+//   -Dexpense.log.level=error|warn|info|debug   anything below the level is skipped before the line
+//                                               is even built
+//   -Dexpense.log.requests=all|sample|aggregate|off
+//       what to do with the per-request events (event(...)): print every one, print a random one
+//       in expense.log.sample (100), print one count per tag every 5 seconds, or nothing
+public final class ServerLog {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private enum RequestMode { ALL, SAMPLE, AGGREGATE, OFF }
+
+    private static final Level LEVEL = parse(Level.class, System.getProperty("expense.log.level", "info"), Level.INFO);
+    private static final RequestMode REQUESTS =
+            parse(RequestMode.class, System.getProperty("expense.log.requests", "all"), RequestMode.ALL);
+    private static final int SAMPLE = Math.max(1, Integer.getInteger("expense.log.sample", 100));
+    private static final long AGGREGATE_INTERVAL_NANOS = 5_000_000_000L;
+    // how long the writer sleeps when there's nothing to print. Producers don't wake it (that would
+    // be a syscall per line), except for the one that fills the ring halfway.
+    private static final long WRITER_SLEEP_NANOS = 10_000_000L;
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    // lines still to print; warnings and errors start with ERR_MARK and go to System.err
+    private static final AtomicReferenceArray<String> ring = new AtomicReferenceArray<>(CAPACITY);
+    private static final char ERR_MARK = '\u0000';
+    // next slot to claim (any thread), next slot to take and everything before printed (writer only)
+    private static final AtomicLong head = new AtomicLong();
+    private static volatile long tail;
+    private static volatile long printed;
+    private static final LongAdder dropped = new LongAdder();
+    private static final Map<String, LongAdder> aggregated = new ConcurrentHashMap<>();
+    private static final Thread writer;
+
+    static {
+        writer = new Thread(ServerLog::drainForever, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::flush));
+    }
+
+    private ServerLog() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) <= 0;
+    }
+
+    public static void error(String tag, String message) {
+        log(Level.ERROR, tag, message);
+    }
+
+    public static void warn(String tag, String message) {
+        log(Level.WARN, tag, message);
+    }
+
+    public static void info(String tag, String message) {
+        log(Level.INFO, tag, message);
+    }
+
+    public static void debug(String tag, String message) {
+        log(Level.DEBUG, tag, message);
+    }
+
+    public static void log(Level level, String tag, String message) {
+        if (isEnabled(level)) {
+            offer(level, "[" + tag + "] " + message, false);
+        }
+    }
+
+    // A per-request event, like [REQUEST] or [ADD_EXPENSE]. The message is only built if this
+    // one is going to be printed, which under expense.log.requests=sample is one in a hundred.
+    public static void event(Level level, String tag, Supplier<String> message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        switch (REQUESTS) {
+            case ALL:
+                break;
+            case SAMPLE:
+                if (ThreadLocalRandom.current().nextInt(SAMPLE) != 0) {
+                    return;
+                }
+                break;
+            case AGGREGATE:
+                aggregated.computeIfAbsent(tag, key -> new LongAdder()).increment();
+                return;
+            default:
+                return;
+        }
+        offer(level, "[" + tag + "] " + message.get(), true);
+    }
+
+    public static void event(String tag, Supplier<String> message) {
+        event(Level.INFO, tag, message);
+    }
+
+    // Waits until everything logged so far has been printed. For tools that point System.out
+    // somewhere else for a while and want the lines to land there.
+    public static void flush() {
+        long target = head.get();
+        while (printed < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void offer(Level level, String line, boolean droppable) {
+        String entry = level.compareTo(Level.WARN) <= 0 ? ERR_MARK + line : line;
+        long slot;
+        while (true) {
+            slot = head.get();
+            if (slot - tail >= CAPACITY) {
+                if (droppable) {
+                    dropped.increment();
+                    return;
+                }
+                Thread.yield();
+            } else if (head.compareAndSet(slot, slot + 1)) {
+                break;
+            }
+        }
+        ring.setRelease((int) (slot & MASK), entry);
+
+        long backlog = slot - tail;
+        if (backlog == CAPACITY / 2) {
+            LockSupport.unpark(writer);
+        }
+        if (backlog >= CAPACITY / 2) {
+            Thread.yield();
+        }
+    }
+
+    private static void drainForever() {
+        StringBuilder out = new StringBuilder(8192);
+        StringBuilder err = new StringBuilder(1024);
+        long nextAggregate = System.nanoTime() + AGGREGATE_INTERVAL_NANOS;
+
+        while (true) {
+            long position = tail;
+            while (position < head.get()) {
+                int index = (int) (position & MASK);
+                String entry = ring.getAcquire(index);
+                if (entry == null) {
+                    // claimed but not written yet, the producer is a few instructions away
+                    Thread.onSpinWait();
+                    continue;
+                }
+                ring.setRelease(index, null);
+                position++;
+                tail = position;
+                if (entry.charAt(0) == ERR_MARK) {
+                    err.append(entry, 1, entry.length()).append(System.lineSeparator());
+                } else {
+                    out.append(entry).append(System.lineSeparator());
+                }
+                if (out.length() > 64 * 1024) {
+                    print(System.out, out);
+                }
+            }
+
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                err.append("[LOG] Log writer fell behind, dropped ").append(lost).append(" request events")
+                        .append(System.lineSeparator());
+            }
+            if (REQUESTS == RequestMode.AGGREGATE && System.nanoTime() >= nextAggregate) {
+                nextAggregate = System.nanoTime() + AGGREGATE_INTERVAL_NANOS;
+                for (Map.Entry<String, LongAdder> tag : aggregated.entrySet()) {
+                    long count = tag.getValue().sumThenReset();
+                    if (count > 0) {
+                        out.append('[').append(tag.getKey()).append("] ").append(count)
+                                .append(" in the last 5 s").append(System.lineSeparator());
+                    }
+                }
+            }
+            print(System.out, out);
+            print(System.err, err);
+            printed = position;
+
+            if (tail == head.get()) {
+                LockSupport.parkNanos(WRITER_SLEEP_NANOS);
+            }
+        }
+    }
+
+    private static void print(PrintStream stream, StringBuilder lines) {
+        if (lines.length() > 0) {
+            stream.print(lines);
+            stream.flush();
+            lines.setLength(0);
+        }
+    }
+
+    private static <E extends Enum<E>> E parse(Class<E> type, String value, E fallback) {
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[LOG] Unknown value '" + value + "' for " + type.getSimpleName() + ", using " + fallback);
+            return fallback;
+        }
+    }
+}
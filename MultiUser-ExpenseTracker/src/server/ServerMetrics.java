@@ -0,0 +1,294 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import common.LatencyHistogram;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Process-wide metrics for the server's hot paths. Everything is counted as it happens, with
+// LongAdders and LatencyHistograms, so recording never takes a lock and reading never walks the data.
+// Values owned by someone else (queue depth, open connections, expense count) are registered as
+// gauges and read when somebody asks.
+//
+// Two ways to read them: the STATS command (one "name|value" line each) and, with
+// -Dexpense.metrics.port, GET http://localhost:<port>/metrics in the Prometheus text format.
+// Latencies are recorded in microseconds.
+public final class ServerMetrics {
+    // everything else a client might send is counted as OTHER, so junk can't grow the registry
+    private static final String[] COMMAND_NAMES = {"ADD_EXPENSE", "ADD_EXPENSES_BATCH", "GET_EXPENSES",
+            "GET_EXPENSES_SINCE", "GET_SUMMARY", "SUBSCRIBE", "UNSUBSCRIBE", "STATS", "PROTOCOL", "QUIT", "OTHER"};
+    private static final Map<String, CommandMetrics> COMMANDS = new LinkedHashMap<>();
+
+    static {
+        for (String name : COMMAND_NAMES) {
+            COMMANDS.put(name, new CommandMetrics());
+        }
+    }
+
+    private static final LongAdder BYTES_IN = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+    // from taking the user's lock until the expense is as durable as expense.fsync promises
+    private static final LatencyHistogram STORAGE_WRITES = new LatencyHistogram();
+    private static final LatencyHistogram FSYNCS = new LatencyHistogram();
+    private static final List<Gauge> GAUGES = new CopyOnWriteArrayList<>();
+
+    private ServerMetrics() {
+    }
+
+    // one command's request count, errors and latency (queueing for a worker included, writing
+    // out a streamed body not)
+    static final class CommandMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        void record(long startNanos, boolean error) {
+            latency.record(micros(startNanos));
+            if (error) {
+                errors.increment();
+            }
+        }
+    }
+
+    private static final class Gauge {
+        final String name;
+        final String type;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String type, String help, LongSupplier value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    static CommandMetrics command(String name) {
+        CommandMetrics metrics = COMMANDS.get(name);
+        if (metrics == null) {
+            String upper = name.toUpperCase();
+            metrics = COMMANDS.get(upper.equals("EXIT") ? "QUIT" : upper);
+        }
+        return metrics != null ? metrics : COMMANDS.get("OTHER");
+    }
+
+    // something that goes up and down, read whenever the metrics are
+    static void registerGauge(String name, String help, LongSupplier value) {
+        GAUGES.add(new Gauge(name, "gauge", help, value));
+    }
+
+    // something that only goes up, kept by its owner
+    static void registerCounter(String name, String help, LongSupplier value) {
+        GAUGES.add(new Gauge(name, "counter", help, value));
+    }
+
+    static void bytesIn(long bytes) {
+        BYTES_IN.add(bytes);
+    }
+
+    static void bytesOut(long bytes) {
+        BYTES_OUT.add(bytes);
+    }
+
+    static void storageWrite(long startNanos) {
+        STORAGE_WRITES.record(micros(startNanos));
+    }
+
+    static void fsync(long startNanos) {
+        FSYNCS.record(micros(startNanos));
+    }
+
+    private static long micros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    // socket streams for the blocking engines that count what goes through them
+    static InputStream meter(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    BYTES_IN.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    BYTES_IN.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    static OutputStream meter(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                BYTES_OUT.increment();
+            }
+
+            // FilterOutputStream would otherwise hand the array over a byte at a time
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                BYTES_OUT.add(length);
+            }
+        };
+    }
+
+    // Walks every metric once. Both formats are produced from this, so they can't drift apart.
+    private interface Exporter {
+        void value(String name, String type, String help, String command, long value);
+
+        void latency(String name, String help, String command, LatencyHistogram micros);
+    }
+
+    private static void export(Exporter out) {
+        for (Gauge gauge : GAUGES) {
+            out.value(gauge.name, gauge.type, gauge.help, null, gauge.value.getAsLong());
+        }
+        out.value("bytes_received_total", "counter", "Bytes read from client connections", null, BYTES_IN.sum());
+        out.value("bytes_sent_total", "counter", "Bytes written to client connections", null, BYTES_OUT.sum());
+        out.latency("storage_write_latency", "Time to store and log expenses, durability wait included",
+                null, STORAGE_WRITES);
+        out.latency("fsync_latency", "Time spent forcing log and snapshot files to disk", null, FSYNCS);
+
+        for (Map.Entry<String, CommandMetrics> command : COMMANDS.entrySet()) {
+            out.value("requests_total", "counter", "Requests handled, per command",
+                    command.getKey(), command.getValue().latency.getCount());
+        }
+        for (Map.Entry<String, CommandMetrics> command : COMMANDS.entrySet()) {
+            out.value("request_errors_total", "counter", "Requests answered with ERROR, per command",
+                    command.getKey(), command.getValue().errors.sum());
+        }
+        for (Map.Entry<String, CommandMetrics> command : COMMANDS.entrySet()) {
+            out.latency("request_latency", "Time from request to answer, queueing included, per command",
+                    command.getKey(), command.getValue().latency);
+        }
+    }
+
+    // STATS: "name|value", with the command appended to the name ("requests_total.GET_EXPENSES|12")
+    // and latencies as count, mean, p50, p99, p99.9 and max in microseconds
+    static List<String> statsLines() {
+        List<String> lines = new ArrayList<>();
+        export(new Exporter() {
+            @Override
+            public void value(String name, String type, String help, String command, long value) {
+                if (command == null || value != 0) {
+                    lines.add(key(name, command) + "|" + value);
+                }
+            }
+
+            @Override
+            public void latency(String name, String help, String command, LatencyHistogram micros) {
+                if (micros.getCount() == 0) {
+                    return;
+                }
+                String key = key(name + "_us", command);
+                lines.add(key + ".count|" + micros.getCount());
+                lines.add(key + ".mean|" + Math.round(micros.getMean()));
+                lines.add(key + ".p50|" + micros.getValueAtPercentile(50));
+                lines.add(key + ".p99|" + micros.getValueAtPercentile(99));
+                lines.add(key + ".p999|" + micros.getValueAtPercentile(99.9));
+                lines.add(key + ".max|" + micros.getMax());
+            }
+
+            private String key(String name, String command) {
+                return command == null ? name : name + "." + command;
+            }
+        });
+        return lines;
+    }
+
+    // Prometheus text exposition format, latencies as summaries in seconds
+    static String prometheusText() {
+        StringBuilder text = new StringBuilder(4096);
+        export(new Exporter() {
+            private String described;
+
+            @Override
+            public void value(String name, String type, String help, String command, long value) {
+                describe(name, type, help);
+                text.append("expense_").append(name).append(labels(command, null)).append(' ').append(value).append('\n');
+            }
+
+            @Override
+            public void latency(String name, String help, String command, LatencyHistogram micros) {
+                String metric = name + "_seconds";
+                describe(metric, "summary", help);
+                for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                    text.append("expense_").append(metric).append(labels(command, quantile)).append(' ')
+                            .append(micros.getValueAtPercentile(quantile * 100) / 1e6).append('\n');
+                }
+                text.append("expense_").append(metric).append("_sum").append(labels(command, null)).append(' ')
+                        .append(micros.getSum() / 1e6).append('\n');
+                text.append("expense_").append(metric).append("_count").append(labels(command, null)).append(' ')
+                        .append(micros.getCount()).append('\n');
+            }
+
+            private void describe(String name, String type, String help) {
+                if (!name.equals(described)) {
+                    text.append("# HELP expense_").append(name).append(' ').append(help).append('\n');
+                    text.append("# TYPE expense_").append(name).append(' ').append(type).append('\n');
+                    described = name;
+                }
+            }
+
+            private String labels(String command, Double quantile) {
+                if (command == null && quantile == null) {
+                    return "";
+                }
+                StringBuilder labels = new StringBuilder("{");
+                if (command != null) {
+                    labels.append("command=\"").append(command).append('"');
+                }
+                if (quantile != null) {
+                    labels.append(command != null ? "," : "").append("quantile=\"").append(quantile).append('"');
+                }
+                return labels.append('}').toString();
+            }
+        });
+        return text.toString();
+    }
+
+    // Serves /metrics on the loopback interface only, for a Prometheus agent on the same machine
+    static void startHttpEndpoint(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        http.start();
+        ServerLog.info("METRICS", "Prometheus metrics on http://localhost:" + port + "/metrics");
+    }
+}
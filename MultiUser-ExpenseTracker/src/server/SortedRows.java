@@ -0,0 +1,148 @@
+package server;
+
+import common.ExpenseQuery;
+
+import java.util.function.LongConsumer;
+
+// One user's row numbers in the order of one sort key, for GET_EXPENSES with sort=... It's built the
+// first time somebody sorts that user by that key, and after that only extended: rows are append-only,
+// so the rows added since are sorted on their own and merged in, which costs O(added log added + rows)
+// instead of sorting the whole history again for every page a client scrolls to.
+//
+// Rows compare by the key and then by row number, so equal keys stay in the order they were added and
+// descending is just the same order walked backwards. A published order is never changed (cursors
+// keep walking it without a lock), extending it builds a new one.
+//
+// An order costs 4 bytes per row. It's built by readers, who report what it grew by, so that
+// ExpenseStorage's resident bytes include it (see UserExpenses.estimatedBytes).
+final class SortedRows {
+    private final ExpenseQuery.SortKey key;
+    private volatile IntList order = new IntList();
+
+    SortedRows(ExpenseQuery.SortKey key) {
+        this.key = key;
+    }
+
+    // Every row of the table, in order. The caller holds the user's lock, so the table doesn't grow
+    // meanwhile; the synchronized only keeps two readers from extending the order at the same time,
+    // so `grown` hears about every extension exactly once.
+    synchronized IntList current(ExpenseTable table, LongConsumer grown) {
+        IntList sorted = order;
+        int rows = table.size();
+        if (sorted.size() >= rows) {
+            return sorted;
+        }
+
+        int[] added = new int[rows - sorted.size()];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = sorted.size() + i;
+        }
+        sort(table, added);
+
+        IntList merged = new IntList(rows);
+        int i = 0;
+        int j = 0;
+        while (i < sorted.size() && j < added.length) {
+            if (compare(table, sorted.get(i), added[j]) <= 0) {
+                merged.add(sorted.get(i++));
+            } else {
+                merged.add(added[j++]);
+            }
+        }
+        while (i < sorted.size()) {
+            merged.add(sorted.get(i++));
+        }
+        while (j < added.length) {
+            merged.add(added[j++]);
+        }
+        order = merged;
+        grown.accept((long) added.length * Integer.BYTES);
+        return merged;
+    }
+
+    long estimatedBytes() {
+        return (long) order.size() * Integer.BYTES;
+    }
+
+    private int compare(ExpenseTable table, int a, int b) {
+        int result;
+        switch (key) {
+            case AMOUNT:
+                result = Double.compare(table.amount(a), table.amount(b));
+                break;
+            case DATE:
+                result = Long.compare(table.epochDay(a), table.epochDay(b));
+                break;
+            default:
+                result = compareCategories(table.category(a), table.category(b));
+                break;
+        }
+        return result != 0 ? result : Integer.compare(a, b);
+    }
+
+    // rows without a category first
+    private static int compareCategories(String a, String b) {
+        if (a == b) {
+            return 0;
+        }
+        if (a == null || b == null) {
+            return a == null ? -1 : 1;
+        }
+        return a.compareToIgnoreCase(b);
+    }
+
+    // Bottom-up merge sort of the new rows, whose numbers are `first` and up. Their keys are read out
+    // of the table once up front, since a comparison is then an array lookup instead of a call into the
+    // table (which for the object backend means a LocalDate per date), and the rows stay plain ints.
+    private void sort(ExpenseTable table, int[] rows) {
+        int first = rows[0];
+        long[] keys = null;
+        String[] categories = null;
+        if (key == ExpenseQuery.SortKey.CATEGORY) {
+            categories = new String[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                categories[i] = table.category(first + i);
+            }
+        } else {
+            keys = new long[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                keys[i] = key == ExpenseQuery.SortKey.AMOUNT ? sortable(table.amount(first + i)) : table.epochDay(first + i);
+            }
+        }
+
+        int[] from = rows;
+        int[] to = new int[rows.length];
+        for (int width = 1; width < rows.length; width *= 2) {
+            for (int start = 0; start < rows.length; start += 2 * width) {
+                int middle = Math.min(start + width, rows.length);
+                int end = Math.min(start + 2 * width, rows.length);
+                int i = start;
+                int j = middle;
+                for (int k = start; k < end; k++) {
+                    boolean left = i < middle;
+                    if (left && j < end) {
+                        int a = from[i] - first;
+                        int b = from[j] - first;
+                        int result = keys != null ? Long.compare(keys[a], keys[b])
+                                : compareCategories(categories[a], categories[b]);
+                        // equal keys: the lower row, which is the left one, goes first
+                        left = result <= 0;
+                    }
+                    to[k] = left ? from[i++] : from[j++];
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != rows) {
+            System.arraycopy(from, 0, rows, 0, rows.length);
+        }
+    }
+
+    // a long that orders like Double.compare orders the doubles
+    private static long sortable(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+}
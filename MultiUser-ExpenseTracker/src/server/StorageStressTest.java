@@ -0,0 +1,105 @@
+package server;
+
+import common.Expense;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hammers ExpenseStorage from 1, 2, 4 ... N threads (one user per thread) and prints the
+// throughput for each step. Since users don't share a lock anymore, ops/sec should keep going
+// up with the thread count until we run out of cores (or disk, with -Dexpense.fsync=always).
+//
+// Usage: java server.StorageStressTest [maxThreads] [secondsPerStep]
+public class StorageStressTest {
+    private static final String[] CATEGORIES = {"Food", "Transport", "Bills", "Shopping", "Other"};
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Path dataDirectory = Files.createTempDirectory("expense-stress");
+        PrintStream console = System.out;
+        console.println("Stress testing storage in " + dataDirectory + " (up to " + maxThreads + " threads)");
+        console.println("threads | ops/sec | speedup");
+
+        double baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            // storage logs every add, keep that out of the measurement
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            ExpenseStorage storage = new ExpenseStorage(dataDirectory.resolve("run-" + threads).toString());
+            double opsPerSecond;
+            try {
+                opsPerSecond = run(storage, threads, seconds);
+            } finally {
+                storage.shutdown();
+                // the log has its own writer thread, let it finish with the silenced stream first
+                ServerLog.flush();
+                System.setOut(console);
+            }
+
+            if (threads == 1) {
+                baseline = opsPerSecond;
+            }
+            console.printf("%7d | %7.0f | %.2fx%n", threads, opsPerSecond, opsPerSecond / baseline);
+
+            if (threads < maxThreads && threads * 2 > maxThreads) {
+                threads = maxThreads / 2; // make sure the last step is exactly maxThreads
+            }
+        }
+
+        deleteRecursively(dataDirectory);
+    }
+
+    // every thread works on its own user: 9 adds for every full read
+    private static double run(ExpenseStorage storage, int threads, int seconds) throws InterruptedException {
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            String username = "stress" + t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long done = 0;
+                LocalDate date = LocalDate.of(2024, 1, 1);
+                while (System.nanoTime() < deadline) {
+                    if (done % 10 == 9) {
+                        storage.getExpenses(username);
+                    } else {
+                        storage.addExpense(username, new Expense(1 + done % 100,
+                                CATEGORIES[(int) (done % CATEGORIES.length)], date.plusDays(done % 365), "stress"));
+                    }
+                    done++;
+                }
+                operations.addAndGet(done);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.get() / (double) seconds;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (var paths = Files.walk(path)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+}
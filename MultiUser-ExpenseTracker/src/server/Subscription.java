@@ -0,0 +1,146 @@
+package server;
+
+import common.Expense;
+import common.ExpenseJson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One connection's SUBSCRIBE to a user: the expenses added for that user since, waiting to be pushed.
+// Writers hand expenses in while they hold the user's lock, so publish() never waits: the queue is
+// bounded, and when a subscriber falls that far behind, the rest is dropped. The subscriber then gets
+// a RESYNC line instead and catches up with GET_EXPENSES_SINCE. A slow subscriber costs itself a
+// round trip; it never holds up the writers or the other subscribers.
+//
+// Pushed lines (text protocol only):
+//   PUSH|<sequence>|<json>     one added expense, sequence numbers as in GET_EXPENSES_SINCE
+//   RESYNC|<message>           some pushes were dropped
+// Pushes for one user arrive in sequence order, but a subscriber can see an expense both pushed and in
+// a GET_EXPENSES_SINCE answer, so it should skip sequence numbers it already has.
+final class Subscription {
+    static final String RESYNC = "RESYNC|Missed expenses, catch up with GET_EXPENSES_SINCE";
+
+    private final String username;
+    private final ClientHandler client;
+    private final ArrayBlockingQueue<Push> queue;
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    // set while a wake-up is on its way, so a burst of adds wakes the sender once
+    private final AtomicBoolean signalled = new AtomicBoolean();
+    private final AtomicBoolean hasSender = new AtomicBoolean();
+    private final ClientRegistry registry;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile Runnable wakeup;
+
+    private static final class Push {
+        private final int sequence;
+        private final Expense expense;
+
+        Push(int sequence, Expense expense) {
+            this.sequence = sequence;
+            this.expense = expense;
+        }
+    }
+
+    Subscription(String username, ClientHandler client, int capacity, ClientRegistry registry) {
+        this.username = username;
+        this.client = client;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.registry = registry;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    ClientHandler getClient() {
+        return client;
+    }
+
+    // called by the writer, under the user's lock
+    void publish(int firstSequence, List<Expense> expenses) {
+        if (closed.get()) {
+            return;
+        }
+        for (int i = 0; i < expenses.size(); i++) {
+            if (!queue.offer(new Push(firstSequence + i, expenses.get(i)))) {
+                overflowed.set(true);
+                registry.pushesDropped(expenses.size() - i);
+                break;
+            }
+        }
+        if (signalled.compareAndSet(false, true)) {
+            Runnable task = wakeup;
+            if (task != null) {
+                task.run();
+            }
+        }
+    }
+
+    // The first engine thread to claim a subscription sends its pushes. The NIO engine also passes a
+    // wake-up to run when pushes arrive; the blocking engines just wait in poll.
+    boolean claimSender(Runnable wakeup) {
+        if (!hasSender.compareAndSet(false, true)) {
+            return false;
+        }
+        this.wakeup = wakeup;
+        return true;
+    }
+
+    // up to max lines to send, in order, waiting up to timeoutMillis for the first one
+    List<String> poll(int max, long timeoutMillis) throws InterruptedException {
+        return nextLines(max, timeoutMillis);
+    }
+
+    // up to max lines to send, in order, without waiting
+    List<String> poll(int max) {
+        try {
+            return nextLines(max, 0);
+        } catch (InterruptedException e) {
+            // never waits, so never interrupted
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // After an overflow the queue is thrown away and the lines start with a RESYNC.
+    private List<String> nextLines(int max, long timeoutMillis) throws InterruptedException {
+        signalled.set(false);
+        List<String> lines = new ArrayList<>();
+        boolean resync = overflowed.getAndSet(false);
+        if (resync) {
+            // the catch-up fetches whatever is still queued as well
+            registry.pushesDropped(queue.drainTo(new ArrayList<>()));
+            lines.add(RESYNC);
+        }
+
+        Push push = !resync && timeoutMillis > 0 ? queue.poll(timeoutMillis, TimeUnit.MILLISECONDS) : queue.poll();
+        StringBuilder line = new StringBuilder(128);
+        while (push != null) {
+            line.setLength(0);
+            line.append("PUSH|").append(push.sequence).append('|');
+            ExpenseJson.appendJson(push.expense, line);
+            lines.add(line.toString());
+            if (lines.size() >= max) {
+                break;
+            }
+            push = queue.poll();
+        }
+        registry.pushesSent(resync ? lines.size() - 1 : lines.size());
+        return lines;
+    }
+
+    // true for the call that actually closed it
+    boolean close() {
+        if (!closed.compareAndSet(false, true)) {
+            return false;
+        }
+        queue.clear();
+        return true;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+}
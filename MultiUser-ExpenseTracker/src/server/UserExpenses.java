@@ -0,0 +1,325 @@
+package server;
+
+import common.Expense;
+import common.ExpenseQuery;
+import common.ExpenseSummary;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongConsumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// One user's expense history and the lock that guards it. The rows themselves live in an
+// ExpenseTable, as Expense objects, column-wise or in mapped files, depending on the storage backend.
+// Every user has their own read-write lock, so different users never wait on each other
+// and readers of the same user only wait for that user's writers.
+//
+// Next to the history we keep two secondary indexes of row numbers, so date and category
+// filters only look at the rows that can match instead of scanning everything:
+//   byDate:     epoch day -> rows on that day (sorted, so date ranges are a subMap)
+//   byCategory: lower-cased category -> rows in that category
+// and the running totals GET_SUMMARY is served from (see ExpenseRollup). Sorted answers walk a
+// SortedRows per sort key, created the first time the user is sorted by that key.
+class UserExpenses {
+    private static final IntList NO_ROWS = new IntList();
+
+    private final ExpenseTable table;
+    private final TreeMap<Long, IntList> byDate = new TreeMap<>();
+    private final Map<String, IntList> byCategory = new HashMap<>();
+    private final ExpenseRollup rollup = new ExpenseRollup();
+    // filled in by readers, under the read lock
+    private final Map<ExpenseQuery.SortKey, SortedRows> sorted = new ConcurrentHashMap<>();
+    // told how many bytes a sort order grew by: readers extend those, so the writers' before/after
+    // estimatedBytes in ExpenseStorage never sees it
+    private volatile LongConsumer sortGrowth = bytes -> { };
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile int size;
+    // when a request last looked this user up, for the LRU eviction in ExpenseStorage
+    private volatile long lastAccess = System.currentTimeMillis();
+    // set under the write lock once ExpenseStorage has dropped this copy from memory. Writers that
+    // got hold of it before that have to look the user up again.
+    private boolean evicted;
+
+    UserExpenses() {
+        this(ExpenseTable.create());
+    }
+
+    UserExpenses(List<Expense> expenses) {
+        this();
+        for (Expense expense : expenses) {
+            add(expense);
+        }
+    }
+
+    // A table that already holds rows (a user's mapped segments), which only need indexing. The
+    // indexes are built from the columns, so no Expense is created for any of them.
+    UserExpenses(ExpenseTable table) {
+        this.table = table;
+        for (int row = 0; row < table.size(); row++) {
+            long day = table.epochDay(row);
+            String category = table.category(row);
+            if (day != Long.MIN_VALUE) {
+                byDate.computeIfAbsent(day, key -> new IntList()).add(row);
+            }
+            if (category != null) {
+                byCategory.computeIfAbsent(categoryKey(category), key -> new IntList()).add(row);
+            }
+            rollup.add(category, day, table.amount(row));
+        }
+        this.size = table.size();
+    }
+
+    ExpenseTable table() {
+        return table;
+    }
+
+    Lock readLock() {
+        return lock.readLock();
+    }
+
+    Lock writeLock() {
+        return lock.writeLock();
+    }
+
+    // caller holds the write lock (or is still loading the user and hasn't shared it yet)
+    void add(Expense expense) {
+        table.add(expense);
+        index(table.size() - 1, expense);
+        size = table.size();
+    }
+
+    private void index(int row, Expense expense) {
+        if (expense.getDate() != null) {
+            byDate.computeIfAbsent(expense.getDate().toEpochDay(), day -> new IntList()).add(row);
+        }
+        if (expense.getCategory() != null) {
+            byCategory.computeIfAbsent(categoryKey(expense.getCategory()), category -> new IntList()).add(row);
+        }
+        rollup.add(expense);
+    }
+
+    // the one rule for which categories are the same, shared by the index, the filter and the rollup
+    static String categoryKey(String category) {
+        return category.toLowerCase(Locale.ROOT);
+    }
+
+    // copy of the history, taken under the read lock
+    List<Expense> snapshot() {
+        return rows(0, Integer.MAX_VALUE);
+    }
+
+    // rows [from, to) as Expense objects. Rows never change once added, so callers can walk a big
+    // history in chunks without holding the lock for the whole walk.
+    List<Expense> rows(int from, int to) {
+        lock.readLock().lock();
+        try {
+            int end = Math.min(to, table.size());
+            List<Expense> rows = new ArrayList<>(Math.max(end - from, 0));
+            for (int row = from; row < end; row++) {
+                rows.add(table.get(row));
+            }
+            return rows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the page of expenses matching the query, in the order they were added unless it's sorted
+    ExpensePage query(ExpenseQuery query) {
+        ExpenseCursor cursor = cursor(query);
+        return new ExpensePage(cursor.next(cursor.getCount()), cursor.getTotalMatches());
+    }
+
+    // Works out which rows are on the requested page, without turning any of them into Expense
+    // objects yet. The caller pulls those out of the cursor a chunk at a time.
+    ExpenseCursor cursor(ExpenseQuery query) {
+        lock.readLock().lock();
+        try {
+            int rows = table.size();
+            // every row in sort order, or null for the order they were added in
+            IntList order = query.getSortKey() != null ? sortOrder(query.getSortKey()) : null;
+            if (!query.hasFilters()) {
+                // plain paging is just a slice of the history, no need to look at anything else
+                return slice(order, rows, query);
+            }
+
+            // null means no index helps (amount-only filters), so every row is a candidate. The
+            // indexes hold rows in the order they were added, so a sorted query walks the sort order.
+            IntList candidates = order != null ? order : candidateRows(query);
+            int candidateCount = candidates == null ? rows : candidates.size();
+
+            if (candidates != null && order == null && isAnsweredByIndex(query)) {
+                // the index rows are the exact answer, the page is a slice of them
+                return slice(candidates, candidateCount, query);
+            }
+
+            // filters are checked against single columns, and we remember where the page starts
+            // so the cursor doesn't have to skip over the offset again
+            RowFilter filter = new RowFilter(query);
+            boolean reversed = query.isDescending();
+            int matches = 0;
+            int pageStart = candidateCount;
+            for (int i = 0; i < candidateCount; i++) {
+                int index = reversed ? candidateCount - 1 - i : i;
+                int row = candidates == null ? index : candidates.get(index);
+                if (filter.matches(table, row)) {
+                    if (matches == query.getOffset()) {
+                        pageStart = i;
+                    }
+                    matches++;
+                }
+            }
+            int count = (int) Math.max(0, Math.min(query.getLimit(), (long) matches - query.getOffset()));
+            return new ExpenseCursor(table, lock.readLock(), candidates, filter, reversed, pageStart, candidateCount,
+                    count, matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Caller holds the read lock. An evicted copy has already been taken off the resident bytes, so
+    // what its orders grow by isn't counted again.
+    private IntList sortOrder(ExpenseQuery.SortKey key) {
+        return sorted.computeIfAbsent(key, SortedRows::new).current(table, bytes -> {
+            if (!evicted) {
+                sortGrowth.accept(bytes);
+            }
+        });
+    }
+
+    void setSortGrowthListener(LongConsumer listener) {
+        this.sortGrowth = listener;
+    }
+
+    // every row (or candidate) in [0, size) matches, so the page is [offset, offset + limit)
+    private ExpenseCursor slice(IntList candidates, int size, ExpenseQuery query) {
+        int from = Math.min(query.getOffset(), size);
+        int count = (int) Math.min(query.getLimit(), (long) size - from);
+        return new ExpenseCursor(table, lock.readLock(), candidates, null, query.isDescending(), from, size, count, size);
+    }
+
+    List<ExpenseSummary> summarize(ExpenseSummary.GroupBy groupBy, LocalDate from, LocalDate to) {
+        lock.readLock().lock();
+        try {
+            return rollup.summarize(groupBy, from, to);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Picks whichever index narrows the query down the most. Rows come back in insertion order,
+    // so paging stays stable no matter which index was used. Caller holds the read lock.
+    private IntList candidateRows(ExpenseQuery query) {
+        IntList best = null;
+
+        if (query.getCategory() != null) {
+            best = byCategory.getOrDefault(categoryKey(query.getCategory()), NO_ROWS);
+        }
+
+        if (query.getFrom() != null || query.getTo() != null) {
+            NavigableMap<Long, IntList> days = daysBetween(query.getFrom(), query.getTo());
+            int rowsInRange = 0;
+            for (IntList rows : days.values()) {
+                rowsInRange += rows.size();
+            }
+
+            if (best == null || rowsInRange < best.size()) {
+                IntList rows = new IntList(rowsInRange);
+                for (IntList dayRows : days.values()) {
+                    rows.addAll(dayRows);
+                }
+                rows.sort(); // back from date order to insertion order
+                best = rows;
+            }
+        }
+        return best;
+    }
+
+    // a lone category or a lone date range is answered by one index with nothing left to check
+    private static boolean isAnsweredByIndex(ExpenseQuery query) {
+        boolean hasDates = query.getFrom() != null || query.getTo() != null;
+        return query.getMinAmount() == null && query.getMaxAmount() == null
+                && (query.getCategory() == null || !hasDates);
+    }
+
+    private NavigableMap<Long, IntList> daysBetween(LocalDate from, LocalDate to) {
+        long first = from != null ? from.toEpochDay() : Long.MIN_VALUE;
+        long last = to != null ? to.toEpochDay() : Long.MAX_VALUE;
+        if (first > last) {
+            return new TreeMap<>();
+        }
+        return byDate.subMap(first, true, last, true);
+    }
+
+    // ExpenseQuery.matches, but reading the table columns instead of a whole Expense
+    static final class RowFilter {
+        private final long fromDay;
+        private final long toDay;
+        private final String category;
+        private final double minAmount;
+        private final double maxAmount;
+
+        RowFilter(ExpenseQuery query) {
+            this.fromDay = query.getFrom() != null ? query.getFrom().toEpochDay() : Long.MIN_VALUE;
+            this.toDay = query.getTo() != null ? query.getTo().toEpochDay() : Long.MAX_VALUE;
+            this.category = query.getCategory() != null ? categoryKey(query.getCategory()) : null;
+            this.minAmount = query.getMinAmount() != null ? query.getMinAmount() : Double.NEGATIVE_INFINITY;
+            this.maxAmount = query.getMaxAmount() != null ? query.getMaxAmount() : Double.POSITIVE_INFINITY;
+        }
+
+        boolean matches(ExpenseTable table, int row) {
+            long day = table.epochDay(row);
+            if (day < fromDay || day > toDay) return false;
+            if (category != null) {
+                String rowCategory = table.category(row);
+                if (rowCategory == null || !category.equals(categoryKey(rowCategory))) return false;
+            }
+            double amount = table.amount(row);
+            return amount >= minAmount && amount <= maxAmount;
+        }
+    }
+
+    // safe to call without the lock, used for stats
+    int size() {
+        return size;
+    }
+
+    // Rough heap footprint for the cache budget: the rows, an index posting per row and index, a
+    // flat guess for each day's and category's index and rollup entries, and the sort orders built so
+    // far. Caller holds a lock.
+    long estimatedBytes() {
+        long bytes = table.estimatedBytes() + size * 8L + byDate.size() * 200L + byCategory.size() * 100L;
+        for (SortedRows order : sorted.values()) {
+            bytes += order.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    void touch(long now) {
+        // only written when it changed, so readers of a hot user don't all fight over one cache line
+        if (lastAccess != now) {
+            lastAccess = now;
+        }
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    // caller holds the write lock
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    void markEvicted() {
+        evicted = true;
+    }
+}
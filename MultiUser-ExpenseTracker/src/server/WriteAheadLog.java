@@ -0,0 +1,302 @@
+package server;
+
+import common.Expense;
+import common.ExpenseJson;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// Append-only log of new expenses, one file per user: data/<user>.log
+// Every ADD_EXPENSE appends a single "<row>\t<json>" line instead of rewriting data/<user>.json.
+// The row is the position of the expense in the user's history, so on startup we can replay the
+// log on top of the last snapshot and skip anything the snapshot already contains.
+public class WriteAheadLog {
+    public enum FsyncPolicy {
+        ALWAYS, // force to disk after every append
+        GROUP,  // appends wait for one shared force every GROUP_COMMIT_INTERVAL_MS
+        OS;     // never force, the OS flushes whenever it wants
+
+        public static FsyncPolicy fromString(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                ServerLog.warn("WAL", "Unknown fsync policy '" + value + "', using OS");
+                return OS;
+            }
+        }
+    }
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String ROTATED_SUFFIX = ".log.old";
+    private static final CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final ConcurrentHashMap<String, FileChannel> channels = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> pendingRecords = new ConcurrentHashMap<>();
+
+    // group commit state, guarded by syncLock
+    private final Object syncLock = new Object();
+    private Set<FileChannel> dirtyChannels = new HashSet<>();
+    private CompletableFuture<Void> nextSync = new CompletableFuture<>();
+    private ScheduledExecutorService syncer;
+
+    public WriteAheadLog(Path directory, FsyncPolicy fsyncPolicy, long groupCommitIntervalMs) {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+
+        if (fsyncPolicy == FsyncPolicy.GROUP) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "wal-group-commit");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::groupCommit,
+                    groupCommitIntervalMs, groupCommitIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        ServerLog.info("WAL", "Append-only log ready (fsync policy: " + fsyncPolicy + ")");
+    }
+
+    // Appends the expenses as rows firstRow, firstRow + 1, ... of the user's history.
+    // Callers must not append for the same user from two threads at once (ExpenseStorage holds the
+    // user's lock), and should wait on the returned future *outside* that lock.
+    public CompletableFuture<Void> append(String username, int firstRow, List<Expense> expenses) throws IOException {
+        StringBuilder records = new StringBuilder();
+        int row = firstRow;
+        for (Expense expense : expenses) {
+            records.append(row++).append('\t').append(ExpenseJson.toJson(expense)).append('\n');
+        }
+
+        FileChannel channel = channelFor(username);
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(records.toString());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        pendingRecords.merge(username, expenses.size(), Integer::sum);
+
+        switch (fsyncPolicy) {
+            case ALWAYS:
+                force(channel);
+                return DURABLE;
+            case GROUP:
+                synchronized (syncLock) {
+                    dirtyChannels.add(channel);
+                    return nextSync;
+                }
+            default:
+                return DURABLE;
+        }
+    }
+
+    // Reads data/<user>.log.old and data/<user>.log and hands every row that isn't in the snapshot
+    // (the first snapshotRows rows) to the sink, in order. Returns how many rows were replayed.
+    public int replay(String username, int snapshotRows, Consumer<Expense> sink) {
+        int replayed = 0;
+
+        for (Path file : Arrays.asList(rotatedFile(username), logFile(username))) {
+            if (!Files.exists(file)) {
+                continue;
+            }
+
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab <= 0) {
+                        continue;
+                    }
+                    try {
+                        int row = Integer.parseInt(line.substring(0, tab));
+                        int nextRow = snapshotRows + replayed;
+                        if (row < nextRow) {
+                            continue; // the snapshot already has this one
+                        }
+                        if (row > nextRow) {
+                            ServerLog.warn("WAL", "Gap in log for " + username + " at row " + nextRow);
+                        }
+                        Expense expense = ExpenseJson.fromJson(line.substring(tab + 1));
+                        if (expense != null) {
+                            sink.accept(expense);
+                            replayed++;
+                        }
+                    } catch (RuntimeException e) {
+                        // most likely a torn write from a crash
+                        ServerLog.warn("WAL", "Skipping unreadable record for " + username);
+                    }
+                }
+            } catch (IOException e) {
+                ServerLog.error("ERROR", "Error replaying log for " + username + ": " + e.getMessage());
+            }
+        }
+
+        if (replayed > 0) {
+            pendingRecords.put(username, replayed);
+        }
+        return replayed;
+    }
+
+    // Moves the live log aside so a snapshot can be written without blocking new appends.
+    // Must be called under the user's lock, together with taking the snapshot copy.
+    public void rotate(String username) throws IOException {
+        FileChannel channel = channels.remove(username);
+        if (channel != null) {
+            if (fsyncPolicy != FsyncPolicy.OS) {
+                // group commit waiters may still be counting on this file
+                force(channel);
+            }
+            channel.close();
+        }
+        pendingRecords.remove(username);
+
+        Path log = logFile(username);
+        if (!Files.exists(log)) {
+            return;
+        }
+
+        Path rotated = rotatedFile(username);
+        if (Files.exists(rotated)) {
+            // a previous compaction failed half way, keep both generations in order
+            try (FileChannel from = FileChannel.open(log, StandardOpenOption.READ);
+                 FileChannel to = FileChannel.open(rotated, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long position = 0;
+                while (position < from.size()) {
+                    position += from.transferTo(position, from.size() - position, to);
+                }
+                force(to);
+            }
+            Files.delete(log);
+        } else {
+            Files.move(log, rotated, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // Called once the snapshot covering the rotated log is safely on disk.
+    public void deleteRotated(String username) throws IOException {
+        Files.deleteIfExists(rotatedFile(username));
+    }
+
+    public int pendingRecords(String username) {
+        return pendingRecords.getOrDefault(username, 0);
+    }
+
+    // whether the user has a log on disk, live or rotated
+    public boolean hasLog(String username) {
+        return Files.exists(logFile(username)) || Files.exists(rotatedFile(username));
+    }
+
+    public Set<String> usernames() {
+        Set<String> usernames = new HashSet<>();
+        File[] files = directory.toFile().listFiles((dir, name) ->
+                name.endsWith(LOG_SUFFIX) || name.endsWith(ROTATED_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                int suffix = name.endsWith(ROTATED_SUFFIX) ? ROTATED_SUFFIX.length() : LOG_SUFFIX.length();
+                usernames.add(name.substring(0, name.length() - suffix));
+            }
+        }
+        return usernames;
+    }
+
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        groupCommit();
+
+        for (FileChannel channel : channels.values()) {
+            try {
+                force(channel);
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.error("ERROR", "Error closing log: " + e.getMessage());
+            }
+        }
+        channels.clear();
+    }
+
+    private void groupCommit() {
+        Set<FileChannel> toSync;
+        CompletableFuture<Void> done;
+        synchronized (syncLock) {
+            if (dirtyChannels.isEmpty()) {
+                return;
+            }
+            toSync = dirtyChannels;
+            done = nextSync;
+            dirtyChannels = new HashSet<>();
+            nextSync = new CompletableFuture<>();
+        }
+
+        IOException failure = null;
+        for (FileChannel channel : toSync) {
+            try {
+                force(channel);
+            } catch (ClosedChannelException e) {
+                // rotated away, rotate() already forced it
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if (failure != null) {
+            ServerLog.error("ERROR", "Group commit failed: " + failure.getMessage());
+            done.completeExceptionally(failure);
+        } else {
+            done.complete(null);
+        }
+    }
+
+    private static void force(FileChannel channel) throws IOException {
+        long start = System.nanoTime();
+        channel.force(false);
+        ServerMetrics.fsync(start);
+    }
+
+    private FileChannel channelFor(String username) throws IOException {
+        try {
+            return channels.computeIfAbsent(username, key -> {
+                try {
+                    return openChannel(logFile(key));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private FileChannel openChannel(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        // if we crashed mid-record, terminate the torn line so the next record starts clean
+        long size = channel.size();
+        if (size > 0) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+                reader.read(last, size - 1);
+            }
+            if (last.get(0) != '\n') {
+                channel.write(ByteBuffer.wrap(new byte[]{'\n'}));
+            }
+        }
+        return channel;
+    }
+
+    private Path logFile(String username) {
+        return directory.resolve(username + LOG_SUFFIX);
+    }
+
+    private Path rotatedFile(String username) {
+        return directory.resolve(username + ROTATED_SUFFIX);
+    }
+}